@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Saves the library in the background shortly after it changes.
+ *
+ * Bursts of edits are coalesced: a save runs once the library has been quiet
+ * for QUIET_MILLIS, but never later than MAX_DELAY_MILLIS after the first
+ * unsaved change, which bounds how much work a crash can lose. The snapshot
+ * is captured on the model thread (BookMenu.snapshot only captures the books
+ * changed since the last one) and everything slow - encoding, writing, fsync
+ * and compaction - happens on the autosave thread. The final save on close runs there too,
+ * after any save still in flight, so saves never overlap.
+ *
+ * Each change is counted, and a save remembers the count it captured, so
+ * closing knows exactly whether anything is unsaved - including changes made
+ * while a save was in flight, or captured by a save that failed.
+ */
+public class Autosaver {
+    // --- Constants ---
+    private static final long QUIET_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = 5000;
+    private static final long CLOSE_TIMEOUT_SECONDS = 60; // How long close waits for the last save
+
+    // A snapshot and the number of changes it includes
+    private record Capture(BookMenu.Snapshot snapshot, long changes) {
+    }
+
+    private final LibrarySnapshots snapshots;
+    private final Supplier<BookMenu.Snapshot> capture;
+    private final Executor modelThread;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // Guarded by this
+    private long firstDirty; // Time of the first unsaved change, 0 when clean
+    private long lastDirty; // Time of the latest unsaved change
+    private boolean scheduled; // Whether a save check is pending
+    private long changes; // Number of changes so far
+    private long saved; // Number of changes in the last snapshot written
+    private CompletableFuture<Capture> pendingCapture; // A capture waiting for the model thread
+    private boolean closed;
+
+    /**
+     * @param snapshots   Where to write snapshots.
+     * @param capture     Copies the current library; only called on the model
+     *                    thread.
+     * @param modelThread Runs tasks on the thread that owns the library (the
+     *                    EDT in the UI).
+     */
+    public Autosaver(LibrarySnapshots snapshots, Supplier<BookMenu.Snapshot> capture, Executor modelThread) {
+        this.snapshots = snapshots;
+        this.capture = capture;
+        this.modelThread = modelThread;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "booktrackr-autosave");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        // Once closing, only the save in flight and the final one still run.
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Records that the library changed. Cheap enough to call on every edit.
+     */
+    public synchronized void markDirty() {
+        changes++;
+        scheduleSave();
+    }
+
+    // Makes sure a save check is pending, unless closing
+    private synchronized void scheduleSave() {
+        if (closed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (firstDirty == 0) {
+            firstDirty = now;
+        }
+        lastDirty = now;
+        if (!scheduled) {
+            scheduled = true;
+            scheduler.schedule(this::check, QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs on the autosave thread: saves if the quiet period or the maximum
+     * delay has passed, otherwise checks again later.
+     */
+    private void check() {
+        CompletableFuture<Capture> future;
+        synchronized (this) {
+            if (closed) {
+                return; // close saves instead, and must not wait for the model thread
+            }
+            long now = System.currentTimeMillis();
+            long quietLeft = lastDirty + QUIET_MILLIS - now;
+            long deadlineLeft = firstDirty + MAX_DELAY_MILLIS - now;
+            if (quietLeft > 0 && deadlineLeft > 0) {
+                scheduler.schedule(this::check, Math.min(quietLeft, deadlineLeft), TimeUnit.MILLISECONDS);
+                return;
+            }
+            firstDirty = 0;
+            scheduled = false;
+            future = new CompletableFuture<>();
+            pendingCapture = future;
+        }
+        modelThread.execute(() -> future.complete(captureIfOpen()));
+        // Completed with null instead if close gets to the model thread first
+        Capture c = future.join();
+        synchronized (this) {
+            pendingCapture = null;
+        }
+        if (c != null) {
+            save(c);
+        }
+    }
+
+    // Runs on the model thread
+    private Capture captureIfOpen() {
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+        }
+        return captureNow();
+    }
+
+    // Runs on the model thread, which is also where changes are counted
+    private Capture captureNow() {
+        long count;
+        synchronized (this) {
+            count = changes;
+        }
+        return new Capture(capture.get(), count);
+    }
+
+    // Runs on the autosave thread
+    private void save(Capture c) {
+        synchronized (this) {
+            if (c.changes() <= saved) {
+                return; // Already written
+            }
+        }
+        try {
+            snapshots.write(c.snapshot());
+            synchronized (this) {
+                saved = Math.max(saved, c.changes());
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Autosave failed: " + e);
+            scheduleSave(); // Try again later
+        }
+    }
+
+    /**
+     * Saves any unsaved changes and stops the autosave thread, waiting for a
+     * save in flight to finish first. Must be called on the model thread,
+     * e.g. when the window is closing.
+     */
+    public void close() {
+        boolean dirty;
+        synchronized (this) {
+            closed = true;
+            dirty = changes != saved;
+            if (pendingCapture != null) {
+                pendingCapture.complete(null); // This final capture covers it
+            }
+        }
+        if (dirty) {
+            // Captured here since the model thread is busy until close returns,
+            // and written after any save in flight, on the autosave thread.
+            Capture last = captureNow();
+            scheduler.execute(() -> save(last));
+        }
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("Final save did not finish in " + CLOSE_TIMEOUT_SECONDS + " seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (changes != saved) {
+                System.err.println("Final save failed; the last changes were not saved");
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * An index from string keys to compressed bitmaps of book ordinals (see
+ * BookBitmap and Book.ordinal). A book can be filed under several keys, as
+ * with tags, or under one, as with status and genre.
+ *
+ * Like BookIndex, the index remembers the keys each book was filed under in
+ * an array indexed by ordinal, and refiles it when update is called.
+ */
+public class BitmapIndex {
+    private static final String[] NO_KEYS = {};
+
+    private final Function<Book, String[]> keysOf;
+    private final Map<String, BookBitmap> bitmaps = new HashMap<>();
+    private String[][] filedUnder = new String[16][];
+
+    /**
+     * @param keysOf Extracts the keys of a book. The returned array is kept,
+     *               so it must not be modified afterwards.
+     */
+    public BitmapIndex(Function<Book, String[]> keysOf) {
+        this.keysOf = keysOf;
+    }
+
+    /**
+     * Creates an index over a single-valued key. Books with a null key are not
+     * indexed.
+     */
+    public static BitmapIndex single(Function<Book, String> keyOf) {
+        // One shared array per distinct key, so filing a book allocates nothing.
+        Map<String, String[]> arrays = new HashMap<>();
+        return new BitmapIndex(b -> {
+            String key = keyOf.apply(b);
+            return key == null ? NO_KEYS : arrays.computeIfAbsent(key, k -> new String[] { k });
+        });
+    }
+
+    public void add(Book b) {
+        String[] keys = keysOf.apply(b);
+        for (String key : keys) {
+            bitmaps.computeIfAbsent(key, k -> new BookBitmap()).add(b.ordinal);
+        }
+        if (b.ordinal >= filedUnder.length) {
+            filedUnder = Arrays.copyOf(filedUnder, Math.max(b.ordinal + 1, filedUnder.length * 2));
+        }
+        filedUnder[b.ordinal] = keys;
+    }
+
+    public void remove(Book b) {
+        if (b.ordinal >= filedUnder.length || filedUnder[b.ordinal] == null) {
+            return;
+        }
+        for (String key : filedUnder[b.ordinal]) {
+            BookBitmap bitmap = bitmaps.get(key);
+            bitmap.remove(b.ordinal);
+            if (bitmap.isEmpty()) {
+                bitmaps.remove(key);
+            }
+        }
+        filedUnder[b.ordinal] = null;
+    }
+
+    /**
+     * Refiles a book whose keys may have changed since it was added.
+     */
+    public void update(Book b) {
+        if (b.ordinal >= filedUnder.length || !Arrays.equals(filedUnder[b.ordinal], keysOf.apply(b))) {
+            remove(b);
+            add(b);
+        }
+    }
+
+    public void clear() {
+        bitmaps.clear();
+        filedUnder = new String[16][];
+    }
+
+    /**
+     * @return The ordinals of the books filed under a key, possibly empty. The
+     *         bitmap belongs to the index and must not be modified.
+     */
+    public BookBitmap get(String key) {
+        BookBitmap bitmap = bitmaps.get(key);
+        return bitmap == null ? new BookBitmap() : bitmap;
+    }
+
+    /**
+     * @return Every key with at least one book (read-only).
+     */
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(bitmaps.keySet());
+    }
+}
@@ -1,4 +1,10 @@
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.TreeSet;
 import java.util.UUID;
 
 // Book class stores info about a book including title, author, and user-provided data
@@ -10,8 +16,13 @@ public class Book implements Comparable<Book> {
 
     public static final String[] STATUSES = { " ", "to-be-read", "reading", "finished", "did-not-finish" };
 
+    // Fields that are versioned separately for sync
+    static final int FIELD_NAME = 0, FIELD_AUTHOR = 1, FIELD_YEAR = 2, FIELD_GENRE = 3, FIELD_STATUS = 4,
+            FIELD_RATING = 5, FIELD_REVIEW = 6, FIELD_TAGS = 7, FIELD_COUNT = 8;
+    private static final String[] NO_TAGS = {};
+
     // Core book info
-    private final UUID id;
+    private final long id; // Time-ordered id from BookId
     private String name;
     private String author;
     private int year; // ! optional; 0 will be unspecified
@@ -19,23 +30,30 @@ public class Book implements Comparable<Book> {
     private String readingStatus; // status options include "to-be-read," "reading," "finished," and
                                   // "did-not-finish."
     private int rating; // Optional rating (0-5, where 0 = not rated)
-    private String review; // Optional user review
+    private long reviewHandle; // Handle of the optional user review in the ReviewStore
+    private String[] tags = NO_TAGS; // User tags ("shelves"), normalized and sorted; never modified in place
+    int ordinal = -1; // Dense number assigned by the BookMenu holding the book, used by its bitmaps
+    // Sync versions: every field starts at the creation stamp and tick
+    private long baseStamp;
+    private long baseSeq;
+    private long[] versions; // null until a field is edited, then FIELD_COUNT stamps followed by FIELD_COUNT ticks
 
     // Constructor for basic book info without optional fields
     public Book(String name, String author, String genre, String readingStatus) {
-        this.id = UUID.randomUUID();
+        this.id = BookId.next();
         this.name = name;
         this.author = author;
         this.year = 0;
         this.genre = genre;
         this.readingStatus = readingStatus;
         this.rating = 0; // ! a rating of 0 means the user chose not to rate the book
-        this.review = "";
+        this.reviewHandle = ReviewStore.NO_REVIEW;
+        stampCreated();
     }
 
     // Constructor with optional year, rating, and review
     public Book(String name, String author, String genre, String readingStatus, int rating, String review) {
-        this.id = UUID.randomUUID();
+        this.id = BookId.next();
         this.name = name;
         this.author = author;
         this.year = 0;
@@ -47,19 +65,35 @@ public class Book implements Comparable<Book> {
         } else {
             this.rating = rating;
         }
-        this.review = review;
+        this.reviewHandle = ReviewStore.getDefault().append(review);
+        stampCreated();
     }
 
     // Constructor for UI with name, author, and year only
     public Book(String name, String author, int year) {
-        this.id = UUID.randomUUID();
+        this.id = BookId.next();
         this.name = name;
         this.author = author;
         this.year = year;
         this.genre = "";
         this.readingStatus = "to-be-read";
         this.rating = 0;
-        this.review = "";
+        this.reviewHandle = ReviewStore.NO_REVIEW;
+        stampCreated();
+    }
+
+    // Constructor for restoring a saved book with its original id
+    Book(long id, String name, String author, int year, String genre, String readingStatus, int rating,
+            long reviewHandle) {
+        this.id = id;
+        this.name = name;
+        this.author = author;
+        this.year = year;
+        this.genre = genre;
+        this.readingStatus = readingStatus;
+        this.rating = rating >= 0 && rating <= 5 ? rating : 0;
+        this.reviewHandle = reviewHandle;
+        stampCreated(); // Replaced by restoreVersions when the versions were saved too
     }
 
     // Getter methods for book information
@@ -83,32 +117,80 @@ public class Book implements Comparable<Book> {
         return rating;
     }
 
+    // Reviews are kept compressed in the ReviewStore and decoded on demand
     public String getReview() {
-        return review;
+        return ReviewStore.getDefault().read(reviewHandle);
+    }
+
+    // Handle of the review in the ReviewStore, used when saving snapshots
+    long getReviewHandle() {
+        return reviewHandle;
     }
 
     public int getYear() {
         return year;
     }
 
-    public UUID getId() {
+    /**
+     * @return The book's tags in alphabetical order (read-only).
+     */
+    public List<String> getTags() {
+        return List.of(tags);
+    }
+
+    /**
+     * @return true if the book has the tag (compared after normalizeTag).
+     */
+    public boolean hasTag(String tag) {
+        String t = normalizeTag(tag);
+        return t != null && hasNormalizedTag(t);
+    }
+
+    // Like hasTag, for a tag that is already normalized
+    boolean hasNormalizedTag(String tag) {
+        return Arrays.binarySearch(tags, tag) >= 0;
+    }
+
+    // The tag array itself, shared with the tag index; it is never modified
+    String[] tagArray() {
+        return tags;
+    }
+
+    public long getId() {
         return id;
     }
 
+    // UUID view of the id, kept for code that still expects UUIDs
+    public UUID getUuid() {
+        return BookId.toUuid(id);
+    }
+
     // Setter methods for updating book information
     public void setName(String name) {
+        if (!Objects.equals(this.name, name)) {
+            touch(FIELD_NAME);
+        }
         this.name = name;
     }
 
     public void setAuthor(String author) {
+        if (!Objects.equals(this.author, author)) {
+            touch(FIELD_AUTHOR);
+        }
         this.author = author;
     }
 
     public void setGenre(String genre) {
+        if (!Objects.equals(this.genre, genre)) {
+            touch(FIELD_GENRE);
+        }
         this.genre = genre;
     }
 
     public void setReadingStatus(String readingStatus) {
+        if (!Objects.equals(this.readingStatus, readingStatus)) {
+            touch(FIELD_STATUS);
+        }
         this.readingStatus = readingStatus;
     }
 
@@ -117,17 +199,196 @@ public class Book implements Comparable<Book> {
             System.out.println("Invalid rating. Please enter a rating value between 0 and 5.");
             return;
         }
+        if (this.rating != rating) {
+            touch(FIELD_RATING);
+        }
         this.rating = rating;
     }
 
     public void setReview(String review) {
-        this.review = review;
+        if (!getReview().equals(review == null ? "" : review)) {
+            touch(FIELD_REVIEW);
+            this.reviewHandle = ReviewStore.getDefault().append(review);
+        }
+    }
+
+    // Points the review at text already in the ReviewStore
+    void setReviewHandle(long reviewHandle) {
+        if (this.reviewHandle != reviewHandle) {
+            touch(FIELD_REVIEW);
+        }
+        this.reviewHandle = reviewHandle;
     }
 
     public void setYear(int year) {
+        if (this.year != year) {
+            touch(FIELD_YEAR);
+        }
         this.year = year;
     }
 
+    /**
+     * Replaces the book's tags. Tags are normalized with normalizeTag; blank
+     * ones and duplicates are dropped.
+     */
+    public void setTags(Collection<String> newTags) {
+        String[] array = normalizeTags(newTags);
+        if (!Arrays.equals(tags, array)) {
+            touch(FIELD_TAGS);
+            tags = array;
+        }
+    }
+
+    // Tags as stored: normalized, sorted and without blanks or duplicates
+    private static String[] normalizeTags(Collection<String> newTags) {
+        TreeSet<String> sorted = new TreeSet<>();
+        for (String tag : newTags) {
+            String t = normalizeTag(tag);
+            if (t != null) {
+                sorted.add(t);
+            }
+        }
+        return sorted.isEmpty() ? NO_TAGS : sorted.toArray(new String[0]);
+    }
+
+    /**
+     * Normalizes a tag: trimmed, lower case, inner whitespace collapsed to
+     * single spaces, and commas removed (they separate tags in the UI).
+     * 
+     * @return The normalized tag, or null if nothing is left.
+     */
+    public static String normalizeTag(String tag) {
+        if (tag == null) {
+            return null;
+        }
+        String t = tag.replace(',', ' ').trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+        return t.isEmpty() ? null : t;
+    }
+
+    // --- Sync versions ---
+
+    // Gives every field of a new book the same fresh stamp
+    private void stampCreated() {
+        this.baseSeq = SyncClock.tick();
+        this.baseStamp = SyncClock.stamp(baseSeq);
+    }
+
+    // Gives one field a fresh stamp after a local edit
+    private void touch(int field) {
+        long tick = SyncClock.tick();
+        setVersion(field, SyncClock.stamp(tick), tick);
+    }
+
+    private void setVersion(int field, long stamp, long tick) {
+        if (versions == null) {
+            versions = new long[2 * FIELD_COUNT];
+            Arrays.fill(versions, 0, FIELD_COUNT, baseStamp);
+            Arrays.fill(versions, FIELD_COUNT, 2 * FIELD_COUNT, baseSeq);
+        }
+        versions[field] = stamp;
+        versions[FIELD_COUNT + field] = tick;
+    }
+
+    // The stamp that decides conflicts on a field
+    long stampOf(int field) {
+        return versions == null ? baseStamp : versions[field];
+    }
+
+    // The local tick at which a field last changed, compared against watermarks
+    long seqOf(int field) {
+        return versions == null ? baseSeq : versions[FIELD_COUNT + field];
+    }
+
+    long getBaseStamp() {
+        return baseStamp;
+    }
+
+    long getBaseSeq() {
+        return baseSeq;
+    }
+
+    // The local tick of the latest change to any field
+    long lastSeq() {
+        long last = baseSeq;
+        if (versions != null) {
+            for (int f = 0; f < FIELD_COUNT; f++) {
+                last = Math.max(last, versions[FIELD_COUNT + f]);
+            }
+        }
+        return last;
+    }
+
+    // A copy of the per-field versions, or null if no field was edited since creation
+    long[] copyVersions() {
+        return versions == null ? null : versions.clone();
+    }
+
+    // Restores tags saved in a snapshot, without touching their version
+    void restoreTags(String[] savedTags) {
+        this.tags = savedTags == null || savedTags.length == 0 ? NO_TAGS : savedTags.clone();
+    }
+
+    // Restores versions saved in a snapshot
+    void restoreVersions(long baseStamp, long baseSeq, long[] versions) {
+        this.baseStamp = baseStamp;
+        this.baseSeq = baseSeq;
+        this.versions = versions == null ? null : versions.clone();
+    }
+
+    // The value of a field as exchanged by sync: a String (tags joined by newlines), or an Integer for year and rating
+    Object fieldValue(int field) {
+        return switch (field) {
+            case FIELD_NAME -> name;
+            case FIELD_AUTHOR -> author;
+            case FIELD_YEAR -> year;
+            case FIELD_GENRE -> genre;
+            case FIELD_STATUS -> readingStatus;
+            case FIELD_RATING -> rating;
+            case FIELD_REVIEW -> getReview();
+            case FIELD_TAGS -> String.join("\n", tags);
+            default -> throw new IllegalArgumentException("Unknown field " + field);
+        };
+    }
+
+    /**
+     * Merges a field value from another instance. The higher stamp wins; equal
+     * stamps with different values (only possible if two instances share a
+     * node number) are settled by comparing the values, so every instance
+     * picks the same one.
+     *
+     * @return true if the remote value was taken.
+     */
+    boolean mergeField(int field, Object value, long stamp) {
+        SyncClock.observe(SyncClock.tickOf(stamp));
+        long local = stampOf(field);
+        if (stamp < local || (stamp == local && compareValues(value, fieldValue(field)) <= 0)) {
+            return false;
+        }
+        switch (field) {
+            case FIELD_NAME -> name = (String) value;
+            case FIELD_AUTHOR -> author = (String) value;
+            case FIELD_YEAR -> year = (Integer) value;
+            case FIELD_GENRE -> genre = (String) value;
+            case FIELD_STATUS -> readingStatus = (String) value;
+            case FIELD_RATING -> rating = Math.max(0, Math.min(5, (Integer) value));
+            case FIELD_REVIEW -> reviewHandle = ReviewStore.getDefault().append((String) value);
+            // Normalized like local edits, so a peer cannot bring in tags setTags would refuse
+            case FIELD_TAGS -> tags = value == null ? NO_TAGS
+                    : normalizeTags(Arrays.asList(((String) value).split("\n")));
+            default -> throw new IllegalArgumentException("Unknown field " + field);
+        }
+        setVersion(field, stamp, SyncClock.tick());
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
     // Returns a formatted string of detailed book information
     public String getFormattedInfo() {
         StringBuilder sb = new StringBuilder();
@@ -140,8 +401,10 @@ public class Book implements Comparable<Book> {
         sb.append("Status: ").append(readingStatus).append("\n");
         if (rating > 0)
             sb.append("Rating: ").append(rating).append("/5\n");
-        if (!review.isEmpty())
-            sb.append("Review: ").append(review).append("\n");
+        if (tags.length > 0)
+            sb.append("Tags: ").append(String.join(", ", tags)).append("\n");
+        if (reviewHandle != ReviewStore.NO_REVIEW)
+            sb.append("Review: ").append(getReview()).append("\n");
         return sb.toString();
     }
 
@@ -0,0 +1,594 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * A compressed set of non-negative ints (book ordinals), organized like a
+ * Roaring bitmap.
+ *
+ * Values are split by their high 16 bits into chunks of 65536. Each non-empty
+ * chunk is stored in a container keyed by those bits: a sorted array of the
+ * low 16 bits while the chunk holds at most ARRAY_MAX values, otherwise a
+ * plain 65536-bit bitmap. Sparse sets stay small, and dense ones are combined
+ * a 64-bit word at a time. Set operations only visit chunks present in both
+ * (or either) operand, and the *Cardinality variants count the result without
+ * building it.
+ */
+public final class BookBitmap {
+    // --- Constants ---
+    private static final int ARRAY_MAX = 4096; // Above this an array container takes more room than a bitmap
+    private static final int WORDS = 1 << 10; // 65536 bits
+    private static final Container[] NO_CONTAINERS = {};
+
+    // Chunks sorted by key
+    private char[] keys = new char[0];
+    private Container[] containers = NO_CONTAINERS;
+    private int size; // Number of chunks in use
+    private int cardinality;
+
+    public void add(int value) {
+        checkValue(value);
+        char key = (char) (value >>> 16);
+        int i = find(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertChunk(i, key, new ArrayContainer());
+        }
+        int before = containers[i].cardinality();
+        containers[i] = containers[i].add((char) value);
+        cardinality += containers[i].cardinality() - before;
+    }
+
+    public void remove(int value) {
+        if (value < 0) {
+            return;
+        }
+        int i = find((char) (value >>> 16));
+        if (i < 0) {
+            return;
+        }
+        int before = containers[i].cardinality();
+        containers[i] = containers[i].remove((char) value);
+        cardinality += containers[i].cardinality() - before;
+        if (containers[i].cardinality() == 0) {
+            removeChunk(i);
+        }
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int i = find((char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    /**
+     * @return The number of values in the set. Kept up to date, so O(1).
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Calls the consumer for every value, in ascending order.
+     */
+    public void forEach(IntConsumer consumer) {
+        forEachWhile(v -> {
+            consumer.accept(v);
+            return true;
+        });
+    }
+
+    /**
+     * Calls the visitor for every value, in ascending order, until it returns
+     * false.
+     *
+     * @return Whether every value was visited.
+     */
+    public boolean forEachWhile(IntPredicate visitor) {
+        for (int i = 0; i < size; i++) {
+            if (!containers[i].forEachWhile(keys[i] << 16, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The values in ascending order.
+     */
+    public int[] toArray() {
+        int[] values = new int[cardinality];
+        int[] n = { 0 };
+        forEach(v -> values[n[0]++] = v);
+        return values;
+    }
+
+    public BookBitmap copy() {
+        BookBitmap c = new BookBitmap();
+        c.keys = Arrays.copyOf(keys, size);
+        c.containers = new Container[size];
+        for (int i = 0; i < size; i++) {
+            c.containers[i] = containers[i].copy();
+        }
+        c.size = size;
+        c.cardinality = cardinality;
+        return c;
+    }
+
+    // --- Set operations ---
+
+    /**
+     * @return The values in both a and b.
+     */
+    public static BookBitmap and(BookBitmap a, BookBitmap b) {
+        BookBitmap result = new BookBitmap();
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            int c = Character.compare(a.keys[i], b.keys[j]);
+            if (c < 0) {
+                i++;
+            } else if (c > 0) {
+                j++;
+            } else {
+                result.appendChunk(a.keys[i], a.containers[i].and(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The values in a or b.
+     */
+    public static BookBitmap or(BookBitmap a, BookBitmap b) {
+        BookBitmap result = new BookBitmap();
+        int i = 0, j = 0;
+        while (i < a.size || j < b.size) {
+            int c = i == a.size ? 1 : j == b.size ? -1 : Character.compare(a.keys[i], b.keys[j]);
+            if (c < 0) {
+                result.appendChunk(a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (c > 0) {
+                result.appendChunk(b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.appendChunk(a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The values in a but not in b.
+     */
+    public static BookBitmap andNot(BookBitmap a, BookBitmap b) {
+        BookBitmap result = new BookBitmap();
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < b.size && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            if (j < b.size && b.keys[j] == a.keys[i]) {
+                result.appendChunk(a.keys[i], a.containers[i].andNot(b.containers[j]));
+            } else {
+                result.appendChunk(a.keys[i], a.containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The size of and(a, b), without building it.
+     */
+    public static int andCardinality(BookBitmap a, BookBitmap b) {
+        int count = 0;
+        int i = 0, j = 0;
+        while (i < a.size && j < b.size) {
+            int c = Character.compare(a.keys[i], b.keys[j]);
+            if (c < 0) {
+                i++;
+            } else if (c > 0) {
+                j++;
+            } else {
+                count += a.containers[i].andCardinality(b.containers[j]);
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The size of or(a, b), without building it.
+     */
+    public static int orCardinality(BookBitmap a, BookBitmap b) {
+        return a.cardinality + b.cardinality - andCardinality(a, b);
+    }
+
+    /**
+     * @return The size of andNot(a, b), without building it.
+     */
+    public static int andNotCardinality(BookBitmap a, BookBitmap b) {
+        return a.cardinality - andCardinality(a, b);
+    }
+
+    // --- Chunk bookkeeping ---
+
+    private int find(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insertChunk(int i, char key, Container container) {
+        if (size == keys.length) {
+            int capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        size++;
+    }
+
+    private void removeChunk(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+        size--;
+        containers[size] = null;
+    }
+
+    // Adds a chunk past the last one; empty results are dropped.
+    private void appendChunk(char key, Container container) {
+        if (container.cardinality() > 0) {
+            insertChunk(size, key, container);
+            cardinality += container.cardinality();
+        }
+    }
+
+    private static void checkValue(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Bitmap values must not be negative: " + value);
+        }
+    }
+
+    // --- Containers ---
+
+    /**
+     * The low 16 bits of the values in one chunk. Mutating operations return
+     * the container to use from then on, which is a different kind when the
+     * chunk crosses ARRAY_MAX.
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract boolean contains(char value);
+
+        abstract boolean forEachWhile(int base, IntPredicate visitor);
+
+        abstract Container copy();
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        abstract Container andNot(Container other);
+
+        abstract int andCardinality(Container other);
+    }
+
+    /** A sorted array of up to ARRAY_MAX values. */
+    private static final class ArrayContainer extends Container {
+        char[] values;
+        int n;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int n) {
+            this.values = values;
+            this.n = n;
+        }
+
+        @Override
+        int cardinality() {
+            return n;
+        }
+
+        @Override
+        Container add(char value) {
+            int i = Arrays.binarySearch(values, 0, n, value);
+            if (i >= 0) {
+                return this;
+            }
+            if (n == ARRAY_MAX) {
+                BitmapContainer bitmap = toBitmap();
+                bitmap.set(value);
+                return bitmap;
+            }
+            i = -i - 1;
+            if (n == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, n * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, n - i);
+            values[i] = value;
+            n++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int i = Arrays.binarySearch(values, 0, n, value);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, n - i - 1);
+                n--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, n, value) >= 0;
+        }
+
+        @Override
+        boolean forEachWhile(int base, IntPredicate visitor) {
+            for (int i = 0; i < n; i++) {
+                if (!visitor.test(base | values[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(n, 1)), n);
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < n; i++) {
+                bitmap.set(values[i]);
+            }
+            return bitmap;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] out = new char[Math.min(n, other.cardinality())];
+            int k = 0;
+            if (other instanceof ArrayContainer a) {
+                // Merge of two sorted arrays
+                int i = 0, j = 0;
+                while (i < n && j < a.n) {
+                    if (values[i] < a.values[j]) {
+                        i++;
+                    } else if (values[i] > a.values[j]) {
+                        j++;
+                    } else {
+                        out[k++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    if (other.contains(values[i])) {
+                        out[k++] = values[i];
+                    }
+                }
+            }
+            return new ArrayContainer(out, k);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer a = (ArrayContainer) other;
+            if (n + a.n > ARRAY_MAX) {
+                BitmapContainer bitmap = toBitmap();
+                for (int j = 0; j < a.n; j++) {
+                    bitmap.set(a.values[j]);
+                }
+                return bitmap.n <= ARRAY_MAX ? bitmap.toArray() : bitmap;
+            }
+            char[] out = new char[n + a.n];
+            int i = 0, j = 0, k = 0;
+            while (i < n || j < a.n) {
+                if (j == a.n || (i < n && values[i] < a.values[j])) {
+                    out[k++] = values[i++];
+                } else if (i == n || values[i] > a.values[j]) {
+                    out[k++] = a.values[j++];
+                } else {
+                    out[k++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+            return new ArrayContainer(out, k);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            char[] out = new char[n];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                if (!other.contains(values[i])) {
+                    out[k++] = values[i];
+                }
+            }
+            return new ArrayContainer(out, k);
+        }
+
+        @Override
+        int andCardinality(Container other) {
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (other.contains(values[i])) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /** A 65536-bit bitmap, used for chunks with more than ARRAY_MAX values. */
+    private static final class BitmapContainer extends Container {
+        final long[] words = new long[WORDS];
+        int n;
+
+        @Override
+        int cardinality() {
+            return n;
+        }
+
+        void set(char value) {
+            long bit = 1L << value;
+            int w = value >>> 6;
+            if ((words[w] & bit) == 0) {
+                words[w] |= bit;
+                n++;
+            }
+        }
+
+        @Override
+        Container add(char value) {
+            set(value);
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long bit = 1L << value;
+            int w = value >>> 6;
+            if ((words[w] & bit) != 0) {
+                words[w] &= ~bit;
+                n--;
+            }
+            return n <= ARRAY_MAX ? toArray() : this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        boolean forEachWhile(int base, IntPredicate visitor) {
+            for (int w = 0; w < WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    if (!visitor.test(base | (w << 6) | Long.numberOfTrailingZeros(word))) {
+                        return false;
+                    }
+                    word &= word - 1;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Container copy() {
+            BitmapContainer c = new BitmapContainer();
+            System.arraycopy(words, 0, c.words, 0, WORDS);
+            c.n = n;
+            return c;
+        }
+
+        ArrayContainer toArray() {
+            char[] values = new char[Math.max(n, 1)];
+            int[] k = { 0 };
+            forEachWhile(0, v -> {
+                values[k[0]++] = (char) v;
+                return true;
+            });
+            return new ArrayContainer(values, n);
+        }
+
+        // Recounts after a word-wise operation and picks the smaller representation.
+        private Container normalized() {
+            int count = 0;
+            for (long word : words) {
+                count += Long.bitCount(word);
+            }
+            n = count;
+            return n <= ARRAY_MAX ? toArray() : this;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            BitmapContainer b = (BitmapContainer) other;
+            BitmapContainer out = new BitmapContainer();
+            for (int w = 0; w < WORDS; w++) {
+                out.words[w] = words[w] & b.words[w];
+            }
+            return out.normalized();
+        }
+
+        @Override
+        Container or(Container other) {
+            BitmapContainer out = (BitmapContainer) copy();
+            if (other instanceof ArrayContainer a) {
+                for (int i = 0; i < a.n; i++) {
+                    out.set(a.values[i]);
+                }
+                return out;
+            }
+            BitmapContainer b = (BitmapContainer) other;
+            for (int w = 0; w < WORDS; w++) {
+                out.words[w] |= b.words[w];
+            }
+            return out.normalized();
+        }
+
+        @Override
+        Container andNot(Container other) {
+            BitmapContainer out = (BitmapContainer) copy();
+            if (other instanceof ArrayContainer a) {
+                for (int i = 0; i < a.n; i++) {
+                    char v = a.values[i];
+                    out.words[v >>> 6] &= ~(1L << v);
+                }
+            } else {
+                BitmapContainer b = (BitmapContainer) other;
+                for (int w = 0; w < WORDS; w++) {
+                    out.words[w] &= ~b.words[w];
+                }
+            }
+            return out.normalized();
+        }
+
+        @Override
+        int andCardinality(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.andCardinality(this);
+            }
+            BitmapContainer b = (BitmapContainer) other;
+            int count = 0;
+            for (int w = 0; w < WORDS; w++) {
+                count += Long.bitCount(words[w] & b.words[w]);
+            }
+            return count;
+        }
+    }
+}
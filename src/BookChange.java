@@ -0,0 +1,67 @@
+/**
+ * A set of field changes to apply to one or more books. Fields that are left
+ * unset are not touched.
+ *
+ * Setters return the change itself so they can be chained, e.g.
+ * {@code new BookChange().setReadingStatus("finished").setRating(5)}.
+ */
+public class BookChange {
+    private String readingStatus; // null = unchanged
+    private Integer rating; // null = unchanged
+    private String review; // null = unchanged
+    private long reviewHandle = ReviewStore.NO_REVIEW; // Stored review, shared by every book the change is applied to
+    private boolean reviewStored;
+
+    public BookChange setReadingStatus(String readingStatus) {
+        this.readingStatus = readingStatus;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the rating is not between 0 and 5,
+     *                                  so a bad rating is rejected once rather
+     *                                  than by every book it is applied to.
+     */
+    public BookChange setRating(int rating) {
+        if (rating < 0 || rating > 5) {
+            throw new IllegalArgumentException("rating must be between 0 and 5");
+        }
+        this.rating = rating;
+        return this;
+    }
+
+    public BookChange setReview(String review) {
+        this.review = review;
+        this.reviewStored = false;
+        return this;
+    }
+
+    /**
+     * @return true if the change does not set any field.
+     */
+    public boolean isEmpty() {
+        return readingStatus == null && rating == null && review == null;
+    }
+
+    /**
+     * Applies the set fields to a book.
+     *
+     * @param book The book to update.
+     */
+    public void applyTo(Book book) {
+        if (readingStatus != null) {
+            book.setReadingStatus(readingStatus);
+        }
+        if (rating != null) {
+            book.setRating(rating);
+        }
+        if (review != null) {
+            // Store the text once; review handles are immutable, so books can share one.
+            if (!reviewStored) {
+                reviewHandle = ReviewStore.getDefault().append(review);
+                reviewStored = true;
+            }
+            book.setReviewHandle(reviewHandle);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 import javax.swing.*;
 import java.awt.*;
+import java.util.Arrays;
+import java.util.List; // Not java.awt.List
 import java.util.Optional;
 
 /**
@@ -12,7 +14,7 @@ public class BookDialog extends JDialog {
     // Use the shared constants from Book
 
     // UI Components
-    private JTextField titleField, authorField, yearField, ratingField;
+    private JTextField titleField, authorField, yearField, ratingField, tagsField;
     private JComboBox<String> genreBox, statusBox;
     private JTextArea reviewArea;
 
@@ -129,9 +131,23 @@ public class BookDialog extends JDialog {
         c.gridx = 1;
         input.add(reviewScrollPane, c);
 
+        // Tags
+        c.gridx = 0;
+        c.gridy = 7;
+        input.add(new JLabel("Tags:"), c);
+        tagsField = new JTextField(24);
+        tagsField.setToolTipText("Comma-separated, e.g. favourites, book club");
+        c.gridx = 1;
+        input.add(tagsField, c);
+
         add(input, BorderLayout.CENTER);
     }
 
+    // Tags are entered comma-separated; Book.setTags normalizes them
+    private List<String> enteredTags() {
+        return Arrays.asList(tagsField.getText().split(","));
+    }
+
     /**
      * Populates the form fields with data from an existing book.
      */
@@ -143,6 +159,7 @@ public class BookDialog extends JDialog {
         statusBox.setSelectedItem(book.getReadingStatus());
         ratingField.setText(String.valueOf(book.getRating()));
         reviewArea.setText(book.getReview());
+        tagsField.setText(String.join(", ", book.getTags()));
     }
 
     /**
@@ -163,6 +180,7 @@ public class BookDialog extends JDialog {
 
                 this.newBook = new Book(t, a, genre, "to-be-read", rating, review);
                 this.newBook.setYear(y);
+                this.newBook.setTags(enteredTags());
 
                 this.saved = true;
                 dispose();
@@ -204,6 +222,7 @@ public class BookDialog extends JDialog {
                 book.setReadingStatus(newStatus);
                 book.setRating(newRating);
                 book.setReview(newReview);
+                book.setTags(enteredTags());
 
                 this.saved = true;
                 dispose();
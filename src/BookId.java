@@ -0,0 +1,104 @@
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates compact 64-bit, time-ordered book ids.
+ *
+ * An id is laid out as [41 bits milliseconds since EPOCH][10 bits node][12
+ * bits sequence], so ids created later sort later. The node belongs to the
+ * library (see useNode) and is kept different from that of every library it
+ * syncs with, so two instances never create the same id. Generating one is a
+ * clock read and a CAS, unlike UUID.randomUUID() which goes through
+ * SecureRandom.
+ */
+public final class BookId {
+    // --- Constants ---
+    private static final long EPOCH = 1735689600000L; // 2025-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    // Fixed high half of the UUID view of an id ("Book", version nibble 8)
+    private static final long UUID_MSB = 0x426f6f6b_0000_8000L;
+
+    public static final int NODES = 1 << NODE_BITS;
+
+    private static volatile long node = new Random().nextInt(NODES); // Until a library is loaded
+    private static final AtomicLong last = new AtomicLong();
+
+    private BookId() {
+    }
+
+    /**
+     * Returns a new id, strictly greater than any id returned before by this
+     * process. If more than 4096 ids are requested within one millisecond the
+     * clock part is advanced ahead of real time.
+     */
+    public static long next() {
+        while (true) {
+            long prev = last.get();
+            long prevTime = prev >>> TIME_SHIFT;
+            long time = Math.max(System.currentTimeMillis() - EPOCH, prevTime);
+            long sequence = time == prevTime ? (prev & SEQUENCE_MASK) + 1 : 0;
+            if (sequence > SEQUENCE_MASK) {
+                time++;
+                sequence = 0;
+            }
+            long id = (time << TIME_SHIFT) | (node << SEQUENCE_BITS) | sequence;
+            if (id <= prev) { // The node was just lowered
+                id = ((prevTime + 1) << TIME_SHIFT) | (node << SEQUENCE_BITS);
+            }
+            if (last.compareAndSet(prev, id)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * @return The 10-bit node number embedded in new ids.
+     */
+    public static int node() {
+        return (int) node;
+    }
+
+    /**
+     * Sets the node embedded in new ids (and in SyncClock stamps) to the one
+     * saved with the library, so it stays the same across runs.
+     *
+     * @param node A node number below NODES.
+     */
+    public static void useNode(int node) {
+        if (node < 0 || node >= NODES) {
+            throw new IllegalArgumentException("Node out of range: " + node);
+        }
+        BookId.node = node;
+    }
+
+    /**
+     * @return The node a library with this instance id starts with, spread
+     *         evenly over all nodes.
+     */
+    public static int nodeOf(long instanceId) {
+        return (int) ((instanceId * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - NODE_BITS));
+    }
+
+    /**
+     * Returns a UUID view of an id, for code that still expects UUIDs.
+     */
+    public static UUID toUuid(long id) {
+        return new UUID(UUID_MSB, id);
+    }
+
+    /**
+     * Converts a UUID created by toUuid back into an id.
+     *
+     * @throws IllegalArgumentException If the UUID was not created by toUuid.
+     */
+    public static long fromUuid(UUID uuid) {
+        if (uuid.getMostSignificantBits() != UUID_MSB) {
+            throw new IllegalArgumentException("Not a book id: " + uuid);
+        }
+        return uuid.getLeastSignificantBits();
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * A secondary index over one field of the books in a BookMenu, mapping each
+ * key to a bitmap of the ordinals of the books that have it (see BookBitmap
+ * and Book.ordinal). Keys are kept sorted so the index can answer range
+ * lookups (e.g. rating &gt;= 4) as well as equality lookups.
+ *
+ * Because books can be edited in place, the index remembers the key each book
+ * was filed under, in an array indexed by ordinal, and moves it when update is
+ * called.
+ */
+public class BookIndex<K extends Comparable<K>> {
+    private final Function<Book, K> keyOf;
+    private final TreeMap<K, BookBitmap> buckets = new TreeMap<>();
+    private Object[] filedUnder = new Object[16];
+
+    /**
+     * @param keyOf Extracts the indexed key from a book. A null key means the
+     *              book is not indexed.
+     */
+    public BookIndex(Function<Book, K> keyOf) {
+        this.keyOf = keyOf;
+    }
+
+    public void add(Book b) {
+        K key = keyOf.apply(b);
+        if (key != null) {
+            buckets.computeIfAbsent(key, k -> new BookBitmap()).add(b.ordinal);
+            if (b.ordinal >= filedUnder.length) {
+                filedUnder = Arrays.copyOf(filedUnder, Math.max(b.ordinal + 1, filedUnder.length * 2));
+            }
+            filedUnder[b.ordinal] = key;
+        }
+    }
+
+    public void remove(Book b) {
+        if (b.ordinal >= filedUnder.length || filedUnder[b.ordinal] == null) {
+            return;
+        }
+        BookBitmap bucket = buckets.get(filedUnder[b.ordinal]);
+        bucket.remove(b.ordinal);
+        if (bucket.isEmpty()) {
+            buckets.remove(filedUnder[b.ordinal]);
+        }
+        filedUnder[b.ordinal] = null;
+    }
+
+    /**
+     * Refiles a book whose key may have changed since it was added.
+     */
+    public void update(Book b) {
+        K key = keyOf.apply(b);
+        Object old = b.ordinal < filedUnder.length ? filedUnder[b.ordinal] : null;
+        if (key == null ? old != null : !key.equals(old)) {
+            remove(b);
+            add(b);
+        }
+    }
+
+    public void clear() {
+        buckets.clear();
+        filedUnder = new Object[16];
+    }
+
+    /**
+     * @return The ordinals of the books with the given key, possibly empty.
+     *         The bitmap belongs to the index and must not be modified.
+     */
+    public BookBitmap get(K key) {
+        BookBitmap bucket = buckets.get(key);
+        return bucket == null ? new BookBitmap() : bucket;
+    }
+
+    /**
+     * @return The buckets whose keys lie in [from, to], in key order. Either
+     *         bound may be null for an open range; the range is empty if from
+     *         is greater than to. The bitmaps must not be modified.
+     */
+    public NavigableMap<K, BookBitmap> range(K from, K to) {
+        if (from != null && to != null && from.compareTo(to) > 0) {
+            return Collections.emptyNavigableMap(); // TreeMap would reject the inverted bounds
+        }
+        NavigableMap<K, BookBitmap> map = buckets;
+        if (from != null) {
+            map = map.tailMap(from, true);
+        }
+        if (to != null) {
+            map = map.headMap(to, true);
+        }
+        return Collections.unmodifiableNavigableMap(map);
+    }
+
+    /**
+     * @return The number of books with keys in [from, to].
+     */
+    public int count(K from, K to) {
+        int n = 0;
+        for (BookBitmap bucket : range(from, to).values()) {
+            n += bucket.cardinality();
+        }
+        return n;
+    }
+}
@@ -1,33 +1,256 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 
 public class BookMenu {
-    private Map<UUID, Book> books;
+    private LongBookMap books;
+    private final List<Runnable> changeListeners = new ArrayList<>();
+    private final List<LongConsumer> bookListeners = new ArrayList<>();
+    private final List<MergeListener> mergeListeners = new ArrayList<>();
+    // --- Secondary indexes used by the query planner ---
+    private final BitmapIndex statusIndex = BitmapIndex.single(BookQuery::statusKey);
+    private final BitmapIndex genreIndex = BitmapIndex.single(BookQuery::genreKey);
+    private final BitmapIndex tagIndex = new BitmapIndex(Book::tagArray);
+    private final BookIndex<Integer> ratingIndex = new BookIndex<>(Book::getRating);
+    private final BookIndex<Integer> yearIndex = new BookIndex<>(Book::getYear);
+    private final FuzzyIndex fuzzyIndex = new FuzzyIndex(); // Typo-tolerant title/author lookup
+    // --- Dense ordinals for the bitmap indexes; freed ordinals are reused ---
+    private Book[] byOrdinal = new Book[16];
+    private int ordinalCount;
+    private int[] freeOrdinals = new int[16];
+    private int freeCount;
+    // --- Sync state (see SyncState) ---
+    private long instanceId = newInstanceId();
+    private int node = BookId.nodeOf(instanceId); // See BookId.useNode
+    private final Map<Long, Long> watermarks = new HashMap<>();
+    private final Map<Long, SyncState.Tombstone> tombstones = new HashMap<>();
+    // Every book by the last tick it changed at, as {tick, id}, so changesSince visits only changed books
+    private final TreeSet<long[]> changeLog = new TreeSet<>(
+            Comparator.<long[]>comparingLong(e -> e[0]).thenComparingLong(e -> e[1]));
+    private final Map<Long, long[]> changeLogEntries = new HashMap<>();
+    // --- Saved state: a record of every book, brought up to date by snapshot() ---
+    private PersistentBookMap records = PersistentBookMap.EMPTY;
+    private final Set<Long> unsaved = new HashSet<>(); // Books changed since records was last brought up to date
 
     public BookMenu() {
-        this.books = new HashMap<>();
+        this.books = new LongBookMap();
     }
 
     /**
-     * Finds a book in the list by its UUID.
+     * Registers a listener that is run after every change to the library.
      * 
-     * @param id The UUID of the book to find.
+     * @param listener The listener to run.
+     */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Registers a listener that is called with the id of every book that is
+     * added, removed or changed, before the change listeners run.
+     * 
+     * @param listener The listener to call.
+     */
+    public void addBookListener(LongConsumer listener) {
+        bookListeners.add(listener);
+    }
+
+    /**
+     * Hears about merges of changes from other instances (see applyChanges),
+     * which arrive in between local edits.
+     */
+    public interface MergeListener {
+        /**
+         * Called before a merge, while the library holds only local edits.
+         */
+        void beforeMerge();
+
+        /**
+         * Called after a merge, once the book listeners have heard about
+         * every book it changed and before the change listeners run.
+         */
+        void afterMerge();
+    }
+
+    /**
+     * Registers a listener that is told when changes from another instance
+     * are merged, e.g. to keep them out of the undo history.
+     */
+    public void addMergeListener(MergeListener listener) {
+        mergeListeners.add(listener);
+    }
+
+    private void fireBookChanged(long id) {
+        unsaved.add(id);
+        for (LongConsumer listener : bookListeners) {
+            listener.accept(id);
+        }
+    }
+
+    private void fireChanged() {
+        for (Runnable listener : changeListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Notifies listeners that a book's fields were edited directly, e.g. by
+     * BookDialog, rather than through one of the update methods.
+     * 
+     * @param book The edited book.
+     */
+    public void notifyBookChanged(Book book) {
+        reindex(book);
+        fireChanged();
+    }
+
+    private void indexAdd(Book b) {
+        fireBookChanged(b.getId());
+        logChange(b);
+        assignOrdinal(b);
+        statusIndex.add(b);
+        genreIndex.add(b);
+        tagIndex.add(b);
+        ratingIndex.add(b);
+        yearIndex.add(b);
+        fuzzyIndex.add(b);
+    }
+
+    private void indexRemove(Book b) {
+        fireBookChanged(b.getId());
+        changeLog.remove(changeLogEntries.remove(b.getId()));
+        statusIndex.remove(b);
+        genreIndex.remove(b);
+        tagIndex.remove(b);
+        ratingIndex.remove(b);
+        yearIndex.remove(b);
+        fuzzyIndex.remove(b);
+        releaseOrdinal(b);
+    }
+
+    private void reindex(Book b) {
+        fireBookChanged(b.getId());
+        logChange(b);
+        statusIndex.update(b);
+        genreIndex.update(b);
+        tagIndex.update(b);
+        ratingIndex.update(b);
+        yearIndex.update(b);
+        fuzzyIndex.update(b);
+    }
+
+    private void logChange(Book b) {
+        long[] entry = { b.lastSeq(), b.getId() };
+        long[] old = changeLogEntries.put(b.getId(), entry);
+        if (old != null) {
+            changeLog.remove(old);
+        }
+        changeLog.add(entry);
+    }
+
+    private void assignOrdinal(Book b) {
+        if (freeCount > 0) {
+            b.ordinal = freeOrdinals[--freeCount];
+        } else {
+            if (ordinalCount == byOrdinal.length) {
+                byOrdinal = Arrays.copyOf(byOrdinal, ordinalCount * 2);
+            }
+            b.ordinal = ordinalCount++;
+        }
+        byOrdinal[b.ordinal] = b;
+    }
+
+    private void releaseOrdinal(Book b) {
+        byOrdinal[b.ordinal] = null;
+        if (freeCount == freeOrdinals.length) {
+            freeOrdinals = Arrays.copyOf(freeOrdinals, freeCount * 2);
+        }
+        freeOrdinals[freeCount++] = b.ordinal;
+        b.ordinal = -1;
+    }
+
+    /**
+     * Captures the current state of every book and the sync state, for saving
+     * in the background. The records are kept between calls in a persistent
+     * map, and only the books changed since the last call are captured again,
+     * so this costs O(log n) per changed book rather than a copy of the
+     * library.
+     * 
+     * @return Immutable records, one per book, the first
+     *         LibrarySnapshots.HEAD_SIZE of them in list order, and a copy of
+     *         the sync state.
+     */
+    public Snapshot snapshot() {
+        if (records.size() == 0 && unsaved.size() == books.size()) {
+            // Everything is new, e.g. just after loading: build the map in one pass
+            List<BookRecord> all = new ArrayList<>(books.size());
+            for (Book b : books.values()) {
+                all.add(BookRecord.of(b));
+            }
+            records = PersistentBookMap.of(all);
+        } else {
+            for (long id : unsaved) {
+                Book b = books.get(id);
+                records = b == null ? records.remove(id) : records.put(BookRecord.of(b));
+            }
+        }
+        unsaved.clear();
+        List<BookRecord> head = new ArrayList<>(Math.min(LibrarySnapshots.HEAD_SIZE, books.size()));
+        for (Book b : books.values()) {
+            if (head.size() == LibrarySnapshots.HEAD_SIZE) {
+                break;
+            }
+            head.add(records.get(b.getId()));
+        }
+        return new Snapshot(records, head, getSyncState());
+    }
+
+    /**
+     * Finds a book in the list by its id.
+     * 
+     * @param id The id of the book to find.
      * @return The Book object if found, otherwise null.
      */
-    private Book findBookById(UUID id) {
+    public Book findBookById(long id) {
         return books.get(id);
     }
 
     public void addBook(Book b) {
-        books.put(b.getId(), b);
+        Book old = books.put(b.getId(), b);
+        if (old != null) {
+            indexRemove(old);
+        }
+        indexAdd(b);
+        fireChanged();
     }
 
     public void removeBook(Book b) {
-        books.remove(b.getId());
+        Book removed = books.remove(b.getId());
+        if (removed != null) {
+            indexRemove(removed);
+            addTombstone(removed.getId());
+        }
+        fireChanged();
+    }
+
+    /**
+     * @return The number of books in the library.
+     */
+    public int size() {
+        return books.size();
     }
 
     public ArrayList<Book> listAllBooks() {
@@ -41,9 +264,10 @@ public class BookMenu {
      * @return A new list containing only the books with the specified status.
      */
     public ArrayList<Book> listBooksByStatus(String readingStatus) {
-        return books.values().stream()
-                .filter(book -> book.getReadingStatus().equalsIgnoreCase(readingStatus))
-                .collect(Collectors.toCollection(ArrayList::new));
+        if (readingStatus == null) {
+            return new ArrayList<>(); // No book has a null status
+        }
+        return query(new BookQuery().status(readingStatus));
     }
 
     /**
@@ -53,9 +277,271 @@ public class BookMenu {
      * @return A new list containing only the books with the specified rating.
      */
     public ArrayList<Book> listBooksByRating(int rating) {
-        return books.values().stream()
-                .filter(book -> book.getRating() == rating)
-                .collect(Collectors.toCollection(ArrayList::new));
+        return query(new BookQuery().rating(rating));
+    }
+
+    /**
+     * Finds books by title or author, tolerating typos (e.g. "Tolkein" finds
+     * Tolkien).
+     * 
+     * @param text  The words to search for.
+     * @param limit The maximum number of books to return.
+     * @return Matching books, closest matches first.
+     */
+    public List<Book> searchBooks(String text, int limit) {
+        return fuzzyIndex.search(text, limit);
+    }
+
+    /**
+     * Like searchBooks(text, limit), but only books accepted by the filter
+     * count towards the limit.
+     */
+    public List<Book> searchBooks(String text, int limit, Predicate<Book> filter) {
+        return fuzzyIndex.search(text, limit, filter);
+    }
+
+    /**
+     * Runs a query. The planner estimates how many books each indexed
+     * condition matches and scans only the candidates of the most selective
+     * one; all conditions are then checked together in a single pass. Unordered
+     * queries, and queries ordered by year, stop visiting candidates as soon as
+     * the limit is reached; other orders keep only offset + limit books in a
+     * bounded heap.
+     * 
+     * @param q The query to run.
+     * @return The matching books, in the query's order if it has one.
+     */
+    public ArrayList<Book> query(BookQuery q) {
+        ArrayList<Book> result = new ArrayList<>();
+        int end = q.end();
+        if (end == 0) {
+            return result;
+        }
+
+        // --- Pick the access path with the fewest candidates ---
+        // Status, genre and tag conditions are combined into one bitmap first.
+        Collection<BookBitmap> candidates = null; // Buckets of ordinals, or null to scan every book
+        int best = books.size();
+        boolean yearOrdered = false;
+        BookBitmap bitmap = planBitmap(q);
+        if (bitmap != null && bitmap.cardinality() < best) {
+            candidates = List.of(bitmap);
+            best = bitmap.cardinality();
+        }
+        if (q.minRating != null || q.maxRating != null) {
+            int n = ratingIndex.count(q.minRating, q.maxRating);
+            if (n < best) {
+                candidates = ratingIndex.range(q.minRating, q.maxRating).values();
+                best = n;
+            }
+        }
+        boolean byYear = "Year".equals(q.orderBy);
+        if (q.minYear != null || q.maxYear != null || byYear) {
+            int n = yearIndex.count(q.minYear, q.maxYear);
+            // Walking the year index in order avoids sorting, so prefer it on ties.
+            if (n < best || (byYear && n <= best)) {
+                candidates = yearIndex.range(q.minYear, q.maxYear).values();
+                best = n;
+                yearOrdered = true;
+            }
+        }
+
+        // --- Filter the candidates in one pass ---
+        Comparator<Book> comp = q.comparator();
+        if (comp == null) {
+            int[] seen = { 0 };
+            forEachCandidate(candidates, b -> {
+                if (q.matches(b) && seen[0]++ >= q.offset) {
+                    result.add(b);
+                }
+                return seen[0] < end;
+            });
+            return result;
+        }
+        if (byYear && yearOrdered) {
+            int seen = 0;
+            for (BookBitmap bucket : candidates) {
+                // Books within one year are ordered by id, as in comparatorFor. One
+                // year (0, when unknown) can hold most of the library, so only the
+                // matches still needed are kept, in a bounded heap.
+                TopK<Book> inYear = new TopK<>(comp, end - seen);
+                bucket.forEach(ord -> {
+                    Book b = byOrdinal[ord];
+                    if (q.matches(b)) {
+                        inYear.offer(b);
+                    }
+                });
+                for (Book b : inYear.toSortedList()) {
+                    if (seen++ >= q.offset) {
+                        result.add(b);
+                    }
+                    if (seen >= end) {
+                        return result;
+                    }
+                }
+            }
+            return result;
+        }
+        TopK<Book> top = new TopK<>(comp, end);
+        forEachCandidate(candidates, b -> {
+            if (q.matches(b)) {
+                top.offer(b);
+            }
+            return true;
+        });
+        ArrayList<Book> sorted = top.toSortedList();
+        if (q.offset < sorted.size()) {
+            result.addAll(sorted.subList(q.offset, sorted.size()));
+        }
+        return result;
+    }
+
+    /**
+     * Counts the books matching a query, ignoring its order and window. When
+     * the query only has status, genre and tag conditions the count comes
+     * straight from the bitmaps, and the last set operation is only counted,
+     * not built.
+     * 
+     * @param q The query to count.
+     * @return The number of matching books.
+     */
+    public int count(BookQuery q) {
+        if (q.onlyBitmapConditions()) {
+            List<BookBitmap> all = new ArrayList<>(); // Every one must match
+            List<BookBitmap> none = new ArrayList<>(); // None may match
+            bitmapTerms(q, all, none);
+            if (all.isEmpty()) {
+                BookBitmap excluded = new BookBitmap();
+                for (BookBitmap b : none) {
+                    excluded = BookBitmap.or(excluded, b);
+                }
+                return books.size() - excluded.cardinality();
+            }
+            BookBitmap acc = all.get(0);
+            if (none.isEmpty()) {
+                for (int i = 1; i < all.size() - 1; i++) {
+                    acc = BookBitmap.and(acc, all.get(i));
+                }
+                return all.size() == 1 ? acc.cardinality() : BookBitmap.andCardinality(acc, all.get(all.size() - 1));
+            }
+            for (int i = 1; i < all.size(); i++) {
+                acc = BookBitmap.and(acc, all.get(i));
+            }
+            for (int i = 0; i < none.size() - 1; i++) {
+                acc = BookBitmap.andNot(acc, none.get(i));
+            }
+            return BookBitmap.andNotCardinality(acc, none.get(none.size() - 1));
+        }
+        int[] n = { 0 };
+        BookBitmap bitmap = planBitmap(q);
+        if (bitmap != null) {
+            bitmap.forEach(ord -> {
+                if (q.matches(byOrdinal[ord])) {
+                    n[0]++;
+                }
+            });
+            return n[0];
+        }
+        for (Book b : books.values()) {
+            if (q.matches(b)) {
+                n[0]++;
+            }
+        }
+        return n[0];
+    }
+
+    /**
+     * @return Every tag in use and how many books have it, in tag order.
+     */
+    public SortedMap<String, Integer> tagCounts() {
+        SortedMap<String, Integer> counts = new TreeMap<>();
+        for (String tag : tagIndex.keys()) {
+            counts.put(tag, tagIndex.get(tag).cardinality());
+        }
+        return counts;
+    }
+
+    /**
+     * Collects the bitmaps a query's status, genre and tag conditions reduce
+     * to: books must be in every bitmap of all and in no bitmap of none. The
+     * genres and taggedAny alternatives are each merged into one bitmap.
+     */
+    private void bitmapTerms(BookQuery q, List<BookBitmap> all, List<BookBitmap> none) {
+        if (q.status != null) {
+            all.add(statusIndex.get(q.status));
+        }
+        if (q.genres != null) {
+            all.add(union(genreIndex, q.genres));
+        }
+        if (q.tagsAll != null) {
+            for (String tag : q.tagsAll) {
+                all.add(tagIndex.get(tag));
+            }
+        }
+        if (q.tagsAny != null) {
+            all.add(union(tagIndex, q.tagsAny));
+        }
+        if (q.tagsNone != null) {
+            for (String tag : q.tagsNone) {
+                none.add(tagIndex.get(tag));
+            }
+        }
+    }
+
+    private static BookBitmap union(BitmapIndex index, Set<String> keys) {
+        BookBitmap result = new BookBitmap();
+        for (String key : keys) {
+            result = BookBitmap.or(result, index.get(key));
+        }
+        return result;
+    }
+
+    /**
+     * Combines a query's status, genre and tag conditions into one bitmap of
+     * candidates, smallest operands first.
+     * 
+     * @return The candidates, or null if the query has no such condition that
+     *         narrows them (notTagged alone does not).
+     */
+    private BookBitmap planBitmap(BookQuery q) {
+        List<BookBitmap> all = new ArrayList<>();
+        List<BookBitmap> none = new ArrayList<>();
+        bitmapTerms(q, all, none);
+        if (all.isEmpty()) {
+            return null;
+        }
+        all.sort(Comparator.comparingInt(BookBitmap::cardinality));
+        BookBitmap result = all.get(0);
+        for (int i = 1; i < all.size() && !result.isEmpty(); i++) {
+            result = BookBitmap.and(result, all.get(i));
+        }
+        for (BookBitmap excluded : none) {
+            result = BookBitmap.andNot(result, excluded);
+        }
+        return result;
+    }
+
+    /**
+     * Passes the books of an access path to the visitor until it returns
+     * false, without collecting them first.
+     *
+     * @param candidates Buckets of ordinals visited in order, or null for
+     *                   every book.
+     */
+    private void forEachCandidate(Collection<BookBitmap> candidates, Predicate<Book> visitor) {
+        if (candidates == null) {
+            for (Book b : books.values()) {
+                if (!visitor.test(b)) {
+                    return;
+                }
+            }
+            return;
+        }
+        for (BookBitmap bucket : candidates) {
+            if (!bucket.forEachWhile(ord -> visitor.test(byOrdinal[ord]))) {
+                return;
+            }
+        }
     }
 
     /**
@@ -64,39 +550,423 @@ public class BookMenu {
      * @param id            The id of the book to update.
      * @param readingStatus The new reading status.
      */
-    public void updateBookReadingStatus(UUID id, String readingStatus) {
+    public void updateBookReadingStatus(long id, String readingStatus) {
         Book book = findBookById(id);
         if (book != null) {
             book.setReadingStatus(readingStatus);
+            reindex(book);
+            fireChanged();
         }
     }
 
+    // UUID overload kept for compatibility
+    public void updateBookReadingStatus(UUID id, String readingStatus) {
+        updateBookReadingStatus(BookId.fromUuid(id), readingStatus);
+    }
+
     /**
      * Updates the rating of a specific book.
      * 
      * @param id     The id of the book to update.
      * @param rating The new rating.
      */
-    public void updateBookRating(UUID id, int rating) {
+    public void updateBookRating(long id, int rating) {
         Book book = findBookById(id);
         if (book != null) {
             book.setRating(rating);
+            reindex(book);
+            fireChanged();
         }
     }
 
+    // UUID overload kept for compatibility
+    public void updateBookRating(UUID id, int rating) {
+        updateBookRating(BookId.fromUuid(id), rating);
+    }
+
     /**
      * Updates the review of a specific book.
      * 
      * @param id     The id of the book to update.
      * @param review The new review text.
      */
-    public void updateBookReview(UUID id, String review) {
+    public void updateBookReview(long id, String review) {
         Book book = findBookById(id);
         if (book != null) {
             book.setReview(review);
+            reindex(book);
+            fireChanged();
         }
     }
 
+    // UUID overload kept for compatibility
+    public void updateBookReview(UUID id, String review) {
+        updateBookReview(BookId.fromUuid(id), review);
+    }
+
+    /**
+     * Replaces the tags of a specific book.
+     * 
+     * @param id   The id of the book to update.
+     * @param tags The new tags; see Book.setTags.
+     */
+    public void updateBookTags(long id, Collection<String> tags) {
+        Book book = findBookById(id);
+        if (book != null) {
+            book.setTags(tags);
+            reindex(book);
+            fireChanged();
+        }
+    }
+
+    /**
+     * Applies the same change to many books in a single pass. Listeners are
+     * notified once at the end rather than once per book.
+     * 
+     * @param ids    The ids of the books to update. Unknown ids are ignored.
+     * @param change The fields to set on every book.
+     * @return The number of books that were updated.
+     */
+    public int updateBooks(long[] ids, BookChange change) {
+        if (change.isEmpty()) {
+            return 0;
+        }
+        int updated = 0;
+        for (long id : ids) {
+            Book book = findBookById(id);
+            if (book != null) {
+                change.applyTo(book);
+                reindex(book);
+                updated++;
+            }
+        }
+        if (updated > 0) {
+            fireChanged();
+        }
+        return updated;
+    }
+
+    /**
+     * Removes many books in a single pass, notifying listeners once.
+     * 
+     * @param ids The ids of the books to remove. Unknown ids are ignored.
+     * @return The number of books that were removed.
+     */
+    public int removeBooks(long[] ids) {
+        int removed = 0;
+        for (long id : ids) {
+            Book book = books.remove(id);
+            if (book != null) {
+                indexRemove(book);
+                addTombstone(id);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            fireChanged();
+        }
+        return removed;
+    }
+
+    /**
+     * Brings books back to recorded states, e.g. to undo edits. Each book is
+     * changed through its setters, so the change is a new edit that syncs
+     * like any other; a book that comes back after being removed is added
+     * again under its old id. Listeners are notified once at the end.
+     * 
+     * @param states The state to restore for each book id; null removes the
+     *               book.
+     * @return The number of books that were added, changed or removed.
+     */
+    public int revertBooks(Map<Long, BookRecord> states) {
+        int reverted = 0;
+        for (Map.Entry<Long, BookRecord> e : states.entrySet()) {
+            Book book = findBookById(e.getKey());
+            BookRecord r = e.getValue();
+            if (r == null) {
+                if (book != null) {
+                    books.remove(book.getId());
+                    indexRemove(book);
+                    addTombstone(book.getId());
+                    reverted++;
+                }
+            } else if (book == null) {
+                Book restored = new Book(r.id(), r.name(), r.author(), r.year(), r.genre(), r.readingStatus(),
+                        r.rating(), r.reviewHandle());
+                restored.restoreTags(r.tags());
+                tombstones.remove(r.id());
+                books.put(r.id(), restored);
+                indexAdd(restored);
+                reverted++;
+            } else {
+                book.setName(r.name());
+                book.setAuthor(r.author());
+                book.setYear(r.year());
+                book.setGenre(r.genre());
+                book.setReadingStatus(r.readingStatus());
+                book.setRating(r.rating());
+                book.setReviewHandle(r.reviewHandle());
+                book.setTags(Arrays.asList(r.tags()));
+                reindex(book);
+                reverted++;
+            }
+        }
+        if (reverted > 0) {
+            fireChanged();
+        }
+        return reverted;
+    }
+
+    // --- Sync ---
+
+    /**
+     * @return The id this library is known by to the instances it syncs with.
+     */
+    public long getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * @return The highest local tick whose changes a peer has received, or 0
+     *         if it never synced with this library.
+     */
+    public long getWatermark(long peerId) {
+        return watermarks.getOrDefault(peerId, 0L);
+    }
+
+    /**
+     * Records that a peer has received every change up to a local tick.
+     */
+    public void setWatermark(long peerId, long seq) {
+        if (seq > getWatermark(peerId)) {
+            watermarks.put(peerId, seq);
+            pruneTombstones();
+            fireChanged();
+        }
+    }
+
+    /**
+     * @return A copy of the sync state, for saving.
+     */
+    public SyncState getSyncState() {
+        return new SyncState(instanceId, node, SyncClock.current(), new HashMap<>(watermarks),
+                new HashMap<>(tombstones));
+    }
+
+    /**
+     * Restores the sync state of a loaded snapshot. A state without an
+     * instance id (from a snapshot written before sync existed) keeps the
+     * fresh id and node. Either way, new ids and stamps carry this library's
+     * node from now on.
+     * 
+     * @param state The saved state, or null if nothing was loaded.
+     */
+    public void restoreSyncState(SyncState state) {
+        if (state != null) {
+            if (state.instanceId() != 0) {
+                instanceId = state.instanceId();
+                node = state.node();
+            }
+            SyncClock.observe(state.clock());
+            watermarks.putAll(state.watermarks());
+            tombstones.putAll(state.tombstones());
+            pruneTombstones();
+        }
+        BookId.useNode(node);
+    }
+
+    /**
+     * @return The BookId node of this library's ids and stamps.
+     */
+    public int getNode() {
+        return node;
+    }
+
+    /**
+     * Moves this library to a random node other than the given one, when a
+     * peer turns out to use the same node; otherwise the two could create
+     * the same book id. Books created so far keep their ids.
+     * 
+     * @param taken The peer's node.
+     */
+    public void changeNode(int taken) {
+        int fresh;
+        do {
+            fresh = new Random().nextInt(BookId.NODES);
+        } while (fresh == taken || fresh == node);
+        node = fresh;
+        BookId.useNode(node);
+        fireChanged(); // So the new node is saved
+    }
+
+    private void addTombstone(long id) {
+        long tick = SyncClock.tick();
+        tombstones.put(id, new SyncState.Tombstone(SyncClock.stamp(tick), tick));
+    }
+
+    /**
+     * Forgets the deletions every peer this library has synced with has
+     * received; a tombstone is only kept to pass a deletion on. A library
+     * that never synced keeps none past loading. A peer that first syncs
+     * after a deletion was forgotten and still has the book (through a
+     * third instance) brings it back.
+     */
+    private void pruneTombstones() {
+        long received = Long.MAX_VALUE;
+        for (long w : watermarks.values()) {
+            received = Math.min(received, w);
+        }
+        long allReceived = received;
+        tombstones.values().removeIf(t -> t.seq() <= allReceived);
+    }
+
+    /**
+     * Collects the fields and deletions that changed after a local tick.
+     * Only changed fields are included, and only the books changed since are
+     * visited (found through the change log), so the work and the delta are
+     * proportional to the edits rather than to the library.
+     * 
+     * @param watermark The peer's watermark.
+     * @return The changes, with high set to the current tick.
+     */
+    public SyncDelta changesSince(long watermark) {
+        SyncDelta delta = new SyncDelta();
+        delta.high = SyncClock.current();
+        for (long[] entry : changeLog.tailSet(new long[] { watermark, Long.MAX_VALUE }, false)) {
+            Book b = books.get(entry[1]);
+            SyncDelta.BookChanges changes = null;
+            for (int f = 0; f < Book.FIELD_COUNT; f++) {
+                if (b.seqOf(f) > watermark) {
+                    if (changes == null) {
+                        changes = new SyncDelta.BookChanges(b.getId());
+                    }
+                    changes.put(f, b.fieldValue(f), b.stampOf(f));
+                }
+            }
+            if (changes != null) {
+                delta.books.add(changes);
+            }
+        }
+        for (Map.Entry<Long, SyncState.Tombstone> e : tombstones.entrySet()) {
+            if (e.getValue().seq() > watermark) {
+                delta.deleted.add(new long[] { e.getKey(), e.getValue().stamp() });
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Collects the full records of books a peer asked for (see applyChanges):
+     * every field of each book this library has, and the deletions of those
+     * it deleted.
+     * 
+     * @param ids The ids the peer asked for.
+     * @return The records, with high set to the current tick.
+     */
+    public SyncDelta fullRecords(List<Long> ids) {
+        SyncDelta delta = new SyncDelta();
+        delta.high = SyncClock.current();
+        for (long id : ids) {
+            Book b = books.get(id);
+            if (b != null) {
+                SyncDelta.BookChanges changes = new SyncDelta.BookChanges(id);
+                for (int f = 0; f < Book.FIELD_COUNT; f++) {
+                    changes.put(f, b.fieldValue(f), b.stampOf(f));
+                }
+                delta.books.add(changes);
+            } else if (tombstones.containsKey(id)) {
+                delta.deleted.add(new long[] { id, tombstones.get(id).stamp() });
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Merges changes received from another instance. Each field keeps the
+     * value with the higher stamp, so both sides converge whichever order
+     * edits arrive in; a deletion wins over any edit. Merge listeners are
+     * told before and after, and change listeners are notified once if
+     * anything changed.
+     * 
+     * A book this library does not have is only added if the delta holds
+     * every field of it. Otherwise (e.g. the book was deleted here and the
+     * deletion forgotten, or the library was restored from an older
+     * snapshot) its id is added to incomplete, so the caller can ask the
+     * peer for the full record.
+     * 
+     * @param delta      The changes to merge.
+     * @param incomplete Receives the ids of unknown books the delta held only
+     *                   some fields of.
+     * @return The number of books added, changed or removed.
+     */
+    public int applyChanges(SyncDelta delta, List<Long> incomplete) {
+        if (delta.books.isEmpty() && delta.deleted.isEmpty()) {
+            return 0;
+        }
+        for (MergeListener listener : mergeListeners) {
+            listener.beforeMerge();
+        }
+        int changed = 0;
+        for (long[] d : delta.deleted) {
+            long id = d[0];
+            SyncClock.observe(SyncClock.tickOf(d[1]));
+            if (!tombstones.containsKey(id)) {
+                // Take a local tick so the deletion is passed on to other peers.
+                tombstones.put(id, new SyncState.Tombstone(d[1], SyncClock.tick()));
+                Book removed = books.remove(id);
+                if (removed != null) {
+                    indexRemove(removed);
+                    changed++;
+                }
+            }
+        }
+        for (SyncDelta.BookChanges c : delta.books) {
+            if (tombstones.containsKey(c.id)) {
+                continue;
+            }
+            Book b = books.get(c.id);
+            boolean isNew = b == null;
+            if (isNew && c.mask != (1 << Book.FIELD_COUNT) - 1) {
+                incomplete.add(c.id);
+                continue;
+            }
+            if (isNew) {
+                // Versions start at 0 so that every received field is taken.
+                b = new Book(c.id, "", "", 0, "", "", 0, ReviewStore.NO_REVIEW);
+                b.restoreVersions(0, 0, null);
+            }
+            boolean merged = false;
+            for (int f = 0; f < Book.FIELD_COUNT; f++) {
+                if (c.has(f)) {
+                    merged |= b.mergeField(f, c.values[f], c.stamps[f]);
+                }
+            }
+            if (isNew) {
+                books.put(c.id, b);
+                indexAdd(b);
+                changed++;
+            } else if (merged) {
+                reindex(b);
+                changed++;
+            }
+        }
+        for (MergeListener listener : mergeListeners) {
+            listener.afterMerge();
+        }
+        if (changed > 0) {
+            fireChanged();
+        }
+        return changed;
+    }
+
+    private static long newInstanceId() {
+        long id;
+        do {
+            id = new Random().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
     /**
      * Returns a new list of all books sorted by the given key.
      *
@@ -105,13 +975,118 @@ public class BookMenu {
      * @return A sorted ArrayList of books.
      */
     public ArrayList<Book> getSortedBooks(String sortBy) {
+        ArrayList<Book> list = listAllBooks();
+        list.sort(comparatorFor(sortBy));
+        return list;
+    }
+
+    /**
+     * Returns one page of books sorted by the given key. Only the first
+     * offset + limit books are kept while scanning (or, for "Year", the year
+     * index is walked in order), so small pages of a large library do not cost
+     * a full sort and copy.
+     *
+     * @param sortBy One of "Title", "Author", or "Year".
+     * @param offset Number of sorted books to skip.
+     * @param limit  Maximum number of books to return.
+     * @return The requested page, possibly empty.
+     */
+    public ArrayList<Book> getSortedBooks(String sortBy, int offset, int limit) {
+        return query(new BookQuery().orderBy(sortBy).offset(offset).limit(limit));
+    }
+
+    /**
+     * Returns the page of books that follows a keyset cursor. Unlike an offset,
+     * the cursor remembers the sort key of the last book seen, so books added
+     * or removed before it do not shift or repeat later pages.
+     *
+     * @param sortBy One of "Title", "Author", or "Year".
+     * @param after  The cursor from the previous page, or null for the first
+     *               page.
+     * @param limit  Maximum number of books to return.
+     * @return The page, whose next cursor is null when there are no more books.
+     * @throws IllegalArgumentException If the cursor is from a listing in
+     *                                  another order.
+     */
+    public Page getBooksPage(String sortBy, Cursor after, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        if (after != null && !after.sortBy().equals(sortBy)) {
+            throw new IllegalArgumentException(
+                    "Cursor is for books sorted by " + after.sortBy() + ", not " + sortBy);
+        }
+        // Books after the cursor go straight into the bounded heap; fetch one
+        // extra to know whether another page exists.
+        TopK<Book> top = new TopK<>(comparatorFor(sortBy), (int) Math.min((long) limit + 1, Integer.MAX_VALUE));
+        for (Book b : books.values()) {
+            if (after == null || after.precedes(b)) {
+                top.offer(b);
+            }
+        }
+        List<Book> sorted = top.toSortedList();
+        if (sorted.size() <= limit) {
+            return new Page(sorted, null);
+        }
+        List<Book> page = sorted.subList(0, limit);
+        Cursor next = limit == 0 ? after : Cursor.of(sortBy, page.get(limit - 1));
+        return new Page(page, next);
+    }
+
+    /**
+     * Returns the comparator for a UI sort key. Ties are broken by id so that
+     * the order is total, which paging relies on.
+     */
+    static Comparator<Book> comparatorFor(String sortBy) {
         Comparator<Book> comp = switch (sortBy) {
             case "Author" -> Book.BY_AUTHOR;
             case "Year" -> Book.BY_YEAR;
             default -> Book.BY_TITLE;
         };
-        ArrayList<Book> list = listAllBooks();
-        list.sort(comp);
-        return list;
+        return comp.thenComparingLong(Book::getId);
+    }
+
+    /**
+     * A keyset position in a sorted listing: the sort key and id of the last
+     * book on a page.
+     */
+    public record Cursor(String sortBy, String key, int year, long id) {
+
+        public static Cursor of(String sortBy, Book last) {
+            String key = switch (sortBy) {
+                case "Author" -> last.getAuthor();
+                case "Year" -> null;
+                default -> last.getName();
+            };
+            return new Cursor(sortBy, key, last.getYear(), last.getId());
+        }
+
+        /**
+         * @return true if the book sorts strictly after this position.
+         */
+        boolean precedes(Book b) {
+            int c = switch (sortBy) {
+                case "Author" -> key.compareToIgnoreCase(b.getAuthor());
+                case "Year" -> Integer.compare(year, b.getYear());
+                default -> key.compareToIgnoreCase(b.getName());
+            };
+            if (c == 0) {
+                c = Long.compare(id, b.getId());
+            }
+            return c < 0;
+        }
+    }
+
+    /**
+     * One page of a listing together with the cursor for the next page.
+     */
+    public record Page(List<Book> books, Cursor next) {
+    }
+
+    /**
+     * Everything a saved library holds: the books and the sync state, and the
+     * head of the list for LibrarySnapshots' head-of-list cache.
+     */
+    public record Snapshot(PersistentBookMap books, List<BookRecord> head, SyncState sync) {
     }
 }
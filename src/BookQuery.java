@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A composable query over books: a conjunction of conditions, an optional
+ * order, and an offset/limit window.
+ *
+ * Conditions on status, genre, tags, rating and year are kept as plain values so
+ * that BookMenu's planner can answer them from an index; anything else can be
+ * added with where(). Every method returns the query itself, e.g.
+ * {@code new BookQuery().status("reading").minRating(4).orderBy("Author").limit(50)}.
+ */
+public class BookQuery {
+    // --- Indexable conditions (null = no condition) ---
+    String status; // Lower-case reading status
+    Set<String> genres; // Lower-case genres, any of which may match
+    Set<String> tagsAll, tagsAny, tagsNone; // Normalized tags (see Book.normalizeTag)
+    Integer minRating, maxRating;
+    Integer minYear, maxYear;
+    // --- Other conditions ---
+    private final List<Predicate<Book>> filters = new ArrayList<>();
+    // --- Ordering and window ---
+    String orderBy; // "Title", "Author", "Year", or null for no particular order
+    int offset = 0;
+    int limit = Integer.MAX_VALUE;
+
+    public BookQuery status(String readingStatus) {
+        this.status = readingStatus.toLowerCase(Locale.ROOT);
+        return this;
+    }
+
+    public BookQuery genreIn(String... genreNames) {
+        this.genres = new HashSet<>();
+        for (String g : genreNames) {
+            genres.add(g.toLowerCase(Locale.ROOT));
+        }
+        return this;
+    }
+
+    /**
+     * Matches books that have every one of the given tags.
+     */
+    public BookQuery tagged(String... tags) {
+        this.tagsAll = normalizedTags(tags);
+        return this;
+    }
+
+    /**
+     * Matches books that have at least one of the given tags.
+     */
+    public BookQuery taggedAny(String... tags) {
+        this.tagsAny = normalizedTags(tags);
+        return this;
+    }
+
+    /**
+     * Matches books that have none of the given tags.
+     */
+    public BookQuery notTagged(String... tags) {
+        this.tagsNone = normalizedTags(tags);
+        return this;
+    }
+
+    private static Set<String> normalizedTags(String... tags) {
+        Set<String> result = new HashSet<>();
+        for (String t : tags) {
+            String tag = Book.normalizeTag(t);
+            if (tag != null) {
+                result.add(tag);
+            }
+        }
+        return result;
+    }
+
+    public BookQuery rating(int rating) {
+        this.minRating = rating;
+        this.maxRating = rating;
+        return this;
+    }
+
+    public BookQuery minRating(int rating) {
+        this.minRating = rating;
+        return this;
+    }
+
+    public BookQuery yearBetween(int from, int to) {
+        this.minYear = from;
+        this.maxYear = to;
+        return this;
+    }
+
+    /**
+     * Adds an arbitrary condition. It is always evaluated by scanning, after
+     * the indexed conditions have narrowed the candidates.
+     */
+    public BookQuery where(Predicate<Book> filter) {
+        filters.add(filter);
+        return this;
+    }
+
+    /**
+     * @param sortBy One of "Title", "Author", or "Year".
+     */
+    public BookQuery orderBy(String sortBy) {
+        this.orderBy = sortBy;
+        return this;
+    }
+
+    public BookQuery offset(int offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        this.offset = offset;
+        return this;
+    }
+
+    public BookQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Tests every condition of the query against a book in one pass.
+     */
+    public boolean matches(Book b) {
+        if (status != null && !status.equals(statusKey(b))) {
+            return false;
+        }
+        if (genres != null && !genres.contains(genreKey(b))) {
+            return false;
+        }
+        if (tagsAll != null) {
+            for (String tag : tagsAll) {
+                if (!b.hasNormalizedTag(tag)) {
+                    return false;
+                }
+            }
+        }
+        if (tagsAny != null && tagsAny.stream().noneMatch(b::hasNormalizedTag)) {
+            return false;
+        }
+        if (tagsNone != null && tagsNone.stream().anyMatch(b::hasNormalizedTag)) {
+            return false;
+        }
+        if (minRating != null && b.getRating() < minRating) {
+            return false;
+        }
+        if (maxRating != null && b.getRating() > maxRating) {
+            return false;
+        }
+        if (minYear != null && b.getYear() < minYear) {
+            return false;
+        }
+        if (maxYear != null && b.getYear() > maxYear) {
+            return false;
+        }
+        for (Predicate<Book> filter : filters) {
+            if (!filter.test(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The order of the results, or null if any order will do.
+     */
+    public Comparator<Book> comparator() {
+        return orderBy == null ? null : BookMenu.comparatorFor(orderBy);
+    }
+
+    /**
+     * @return Whether every condition is on status, genre or tags, so the
+     *         planner can count matches from its bitmaps alone.
+     */
+    boolean onlyBitmapConditions() {
+        return minRating == null && maxRating == null && minYear == null && maxYear == null
+                && filters.isEmpty();
+    }
+
+    /**
+     * @return offset + limit, capped so it fits in an int.
+     */
+    int end() {
+        return (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+    }
+
+    // Keys used by both the query and BookMenu's indexes, so they always agree.
+    static String statusKey(Book b) {
+        return b.getReadingStatus() == null ? null : b.getReadingStatus().toLowerCase(Locale.ROOT);
+    }
+
+    static String genreKey(Book b) {
+        return b.getGenre() == null ? null : b.getGenre().toLowerCase(Locale.ROOT);
+    }
+}
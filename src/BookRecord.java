@@ -0,0 +1,42 @@
+/**
+ * An immutable copy of a book's fields at one point in time.
+ *
+ * Records are what snapshots are built from: they are cheap to capture on the
+ * event dispatch thread and safe to hand to a background thread afterwards.
+ * The review is kept as a ReviewStore handle, which never changes once
+ * written, so capturing a record does not decompress anything.
+ *
+ * tags holds the book's tags, normalized and sorted (the array is shared
+ * with the book, which never modifies it). baseStamp, baseSeq and versions
+ * are the book's sync versions (see Book.stampOf); versions is null when no
+ * field was edited since the book was created.
+ */
+public record BookRecord(long id, String name, String author, int year, String genre, String readingStatus,
+        int rating, long reviewHandle, String[] tags, long baseStamp, long baseSeq, long[] versions) {
+
+    /**
+     * Captures the current state of a book.
+     */
+    public static BookRecord of(Book b) {
+        return new BookRecord(b.getId(), b.getName(), b.getAuthor(), b.getYear(), b.getGenre(),
+                b.getReadingStatus(), b.getRating(), b.getReviewHandle(), b.tagArray(), b.getBaseStamp(),
+                b.getBaseSeq(), b.copyVersions());
+    }
+
+    /**
+     * @return The review text, decompressed from the ReviewStore.
+     */
+    public String review() {
+        return ReviewStore.getDefault().read(reviewHandle);
+    }
+
+    /**
+     * Creates a new Book with the same id and fields as this record.
+     */
+    public Book toBook() {
+        Book b = new Book(id, name, author, year, genre, readingStatus, rating, reviewHandle);
+        b.restoreTags(tags);
+        b.restoreVersions(baseStamp, baseSeq, versions);
+        return b;
+    }
+}
@@ -0,0 +1,639 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Headless command-line mode for scripting BookTrackr without a display.
+ *
+ * This class must not reference any AWT or Swing class, so that running it
+ * directly ({@code java BookTrackrCli list}) starts without loading the GUI
+ * toolkit. Read-only commands stream the newest snapshot record by record and
+ * run in constant memory; commands that change the library load it into a
+ * BookMenu, apply the change and write a new snapshot.
+ */
+public class BookTrackrCli {
+    // --- Constants ---
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_ERROR = 1;
+    private static final int EXIT_USAGE = 2;
+    private static final String USAGE = String.join("\n",
+            "Usage: BookTrackrCli [--library DIR] COMMAND [ARGS]",
+            "",
+            "Commands:",
+            "  list [--status S] [--rating N] [--min-rating N] [--genre G1,G2] [--years FROM-TO]",
+            "       [--tag T1,T2] [--any-tag T1,T2] [--without-tag T1,T2]",
+            "       [--sort Title|Author|Year] [--offset N] [--limit N]",
+            "  search TEXT [--limit N]   (typo-tolerant title/author search)",
+            "  set-status ID STATUS",
+            "  set-rating ID RATING",
+            "  set-tags ID T1,T2      (replaces the book's tags; empty to clear)",
+            "  tags                   (every tag and how many books have it)",
+            "  log-pages ID PAGES",
+            "  stats [--by day|week|year] [--from YYYY-MM-DD] [--to YYYY-MM-DD]",
+            "  import FILE.csv",
+            "  export FILE.csv        (use - for stdout)",
+            "  sync HOST[:PORT]       (exchange changes with another instance)",
+            "  serve [[ADDRESS:]PORT] (accept sync sessions until killed; localhost unless",
+            "                         ADDRESS is given, which needs a sync.secret file)",
+            "",
+            "Books are printed one per line as tab-separated",
+            "id, title, author, year, genre, status and rating.",
+            "Stats are printed as period start, pages, sessions and books finished.",
+            "Sync prints the peer id, books sent, received and changed, and bytes sent and received.");
+
+    private final LibrarySnapshots snapshots;
+    private final Writer out;
+    private final PrintStream err;
+
+    public BookTrackrCli(LibrarySnapshots snapshots, Writer out, PrintStream err) {
+        this.snapshots = snapshots;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * The entry point for headless use. Also reached through Main.main when it
+     * is given arguments.
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Parses the global options and runs one command.
+     *
+     * @return The process exit code.
+     */
+    public static int run(String[] args) {
+        Path dir = LibrarySnapshots.defaultDirectory();
+        int i = 0;
+        if (args.length >= 2 && args[0].equals("--library")) {
+            dir = Path.of(args[1]);
+            i = 2;
+        }
+        if (i >= args.length || args[i].equals("--help") || args[i].equals("-h")) {
+            System.err.println(USAGE);
+            return i >= args.length ? EXIT_USAGE : EXIT_OK;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        LibrarySnapshots snapshots = new LibrarySnapshots(dir);
+        BookTrackrCli cli = new BookTrackrCli(snapshots, out, System.err);
+        try {
+            ReviewStore.setDefault(snapshots.reviews()); // So books refer to the library's own reviews
+            return cli.execute(args[i], Arrays.copyOfRange(args, i + 1, args.length));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return EXIT_ERROR;
+        } finally {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                // stdout is gone; nothing left to report to
+            }
+        }
+    }
+
+    /**
+     * Runs a single command.
+     *
+     * @throws IllegalArgumentException If the command or its arguments are
+     *                                  invalid.
+     */
+    public int execute(String command, String[] args) throws IOException {
+        switch (command) {
+            case "list":
+                return list(args);
+            case "search":
+                return search(args);
+            case "set-status":
+                return setStatus(args);
+            case "set-rating":
+                requireArgs(args, 2);
+                int rating = parseInt(args[1], "rating");
+                if (rating < 0 || rating > 5) {
+                    throw new IllegalArgumentException("Rating must be between 0 and 5.");
+                }
+                return update(args[0], menu -> menu.updateBookRating(parseId(args[0]), rating));
+            case "set-tags":
+                requireArgs(args, 2);
+                return update(args[0], menu -> menu.updateBookTags(parseId(args[0]), List.of(args[1].split(","))));
+            case "tags":
+                return tags();
+            case "log-pages":
+                requireArgs(args, 2);
+                int pages = parseInt(args[1], "pages");
+                if (pages <= 0) {
+                    throw new IllegalArgumentException("Pages must be greater than 0.");
+                }
+                try (ReadingLog log = ReadingLog.inLibrary(snapshots.getDirectory())) {
+                    log.record(parseId(args[0]), ReadingLog.PROGRESS, pages);
+                }
+                return EXIT_OK;
+            case "stats":
+                return stats(args);
+            case "import":
+                requireArgs(args, 1);
+                return importCsv(Path.of(args[0]));
+            case "export":
+                requireArgs(args, 1);
+                return exportCsv(args[0]);
+            case "sync":
+                requireArgs(args, 1);
+                return sync(args[0]);
+            case "serve":
+                if (args.length > 1) {
+                    throw new IllegalArgumentException("Expected [[ADDRESS:]PORT]");
+                }
+                return serve(args.length == 1 ? args[0] : Integer.toString(SyncService.DEFAULT_PORT));
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    /**
+     * Prints books matching the filters. The filters are a BookQuery, so the
+     * CLI and the UI share the same matching rules. Without --sort the
+     * snapshot is streamed and reading stops as soon as the page is complete;
+     * with --sort only the first offset + limit books are kept in memory.
+     */
+    private int list(String[] args) throws IOException {
+        BookQuery query = new BookQuery();
+        for (int i = 0; i < args.length; i++) {
+            String opt = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + opt);
+            }
+            String value = args[++i];
+            switch (opt) {
+                case "--status" -> query.status(value);
+                case "--rating" -> query.rating(parseInt(value, "rating"));
+                case "--min-rating" -> query.minRating(parseInt(value, "rating"));
+                case "--genre" -> query.genreIn(value.split(","));
+                case "--tag" -> query.tagged(value.split(","));
+                case "--any-tag" -> query.taggedAny(value.split(","));
+                case "--without-tag" -> query.notTagged(value.split(","));
+                case "--years" -> {
+                    String[] range = value.split("-", 2);
+                    if (range.length != 2) {
+                        throw new IllegalArgumentException("Invalid year range: " + value);
+                    }
+                    int from = parseInt(range[0], "year");
+                    int to = parseInt(range[1], "year");
+                    if (from > to) {
+                        throw new IllegalArgumentException("Invalid year range: " + value + " (FROM is after TO)");
+                    }
+                    query.yearBetween(from, to);
+                }
+                case "--sort" -> query.orderBy(value);
+                case "--offset" -> query.offset(parseInt(value, "offset"));
+                case "--limit" -> query.limit(parseInt(value, "limit"));
+                default -> throw new IllegalArgumentException("Unknown option: " + opt);
+            }
+        }
+
+        Comparator<Book> comp = query.comparator();
+        if (comp != null) {
+            TopK<Book> top = new TopK<>(comp, query.end());
+            snapshots.loadLatest(r -> {
+                Book b = r.toBook();
+                if (query.matches(b)) {
+                    top.offer(b);
+                }
+            }, false);
+            List<Book> page = top.toSortedList();
+            for (int i = query.offset; i < page.size(); i++) {
+                printRow(BookRecord.of(page.get(i)));
+            }
+            return EXIT_OK;
+        }
+
+        // Streaming path: skip the offset, print up to the limit, then stop reading.
+        if (query.end() == 0) {
+            return EXIT_OK;
+        }
+        int[] seen = { 0 };
+        try {
+            snapshots.loadLatest(r -> {
+                if (!query.matches(r.toBook())) {
+                    return;
+                }
+                if (seen[0] >= query.offset) {
+                    printRow(r);
+                }
+                if (++seen[0] >= query.end()) {
+                    throw new PageComplete();
+                }
+            }, false);
+        } catch (PageComplete e) {
+            // Enough rows printed
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Prints every tag in use with the number of books that have it.
+     */
+    private int tags() throws IOException {
+        BookMenu menu = new BookMenu();
+        snapshots.loadLatest(r -> menu.addBook(r.toBook()), false);
+        for (Map.Entry<String, Integer> e : menu.tagCounts().entrySet()) {
+            out.write(tsvField(e.getKey()) + "\t" + e.getValue() + "\n");
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Prints the books whose title or author best match the given words.
+     */
+    private int search(String[] args) throws IOException {
+        if (args.length != 1 && !(args.length == 3 && args[1].equals("--limit"))) {
+            throw new IllegalArgumentException("Expected TEXT [--limit N]");
+        }
+        int limit = args.length == 3 ? parseInt(args[2], "limit") : 20;
+        BookMenu menu = new BookMenu();
+        snapshots.loadLatest(r -> menu.addBook(r.toBook()), false);
+        for (Book b : menu.searchBooks(args[0], limit)) {
+            printRow(BookRecord.of(b));
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Sets a book's reading status and records the start or finish in the
+     * reading log.
+     */
+    private int setStatus(String[] args) throws IOException {
+        requireArgs(args, 2);
+        long id = parseId(args[0]);
+        String status = args[1];
+        if (!isValidStatus(status)) {
+            throw new IllegalArgumentException("Invalid status: " + status);
+        }
+        String[] oldStatus = { null };
+        int result = update(args[0], menu -> {
+            Book book = menu.findBookById(id);
+            if (book != null) {
+                oldStatus[0] = book.getReadingStatus();
+            }
+            menu.updateBookReadingStatus(id, status);
+        });
+        if (result == EXIT_OK) {
+            try (ReadingLog log = ReadingLog.inLibrary(snapshots.getDirectory())) {
+                log.recordStatusChange(id, oldStatus[0], status);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Prints reading totals per day, week or year from the reading log.
+     */
+    private int stats(String[] args) throws IOException {
+        ReadingLog.Period period = ReadingLog.Period.DAY;
+        LocalDate from = LocalDate.of(1, 1, 1);
+        LocalDate to = LocalDate.now();
+        for (int i = 0; i < args.length; i++) {
+            String opt = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + opt);
+            }
+            String value = args[++i];
+            try {
+                switch (opt) {
+                    case "--by" -> period = ReadingLog.Period.valueOf(value.toUpperCase());
+                    case "--from" -> from = LocalDate.parse(value);
+                    case "--to" -> to = LocalDate.parse(value);
+                    default -> throw new IllegalArgumentException("Unknown option: " + opt);
+                }
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid date: " + value);
+            }
+        }
+        ReadingLog log = ReadingLog.inLibrary(snapshots.getDirectory());
+        for (Map.Entry<LocalDate, ReadingLog.Totals> e : log.rollup(period, from, to).entrySet()) {
+            ReadingLog.Totals t = e.getValue();
+            out.write(e.getKey() + "\t" + t.pages() + "\t" + t.sessions() + "\t" + t.finished() + "\n");
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Loads the library into a BookMenu, applies an update and saves it.
+     */
+    private int update(String idText, Consumer<BookMenu> change) throws IOException {
+        long id = parseId(idText);
+        BookMenu menu = load();
+        boolean[] changed = { false };
+        menu.addChangeListener(() -> changed[0] = true);
+        change.accept(menu);
+        if (!changed[0]) {
+            err.println("No book with id " + id);
+            return EXIT_ERROR;
+        }
+        snapshots.write(menu.snapshot());
+        return EXIT_OK;
+    }
+
+    /**
+     * Adds every book in a CSV file (as written by export) to the library.
+     * Rows whose id is already in the library get a new id.
+     */
+    private int importCsv(Path file) throws IOException {
+        BookMenu menu = load();
+        int imported = 0;
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            List<String> header = readCsvRow(in);
+            if (header == null) {
+                return EXIT_OK;
+            }
+            List<String> row;
+            int rowNumber = 0;
+            while ((row = readCsvRow(in)) != null) {
+                rowNumber++;
+                if (row.size() < 8) {
+                    throw new IllegalArgumentException(file + ": row " + rowNumber + " has " + row.size()
+                            + " columns, expected 8");
+                }
+                String status = row.get(5);
+                if (!isValidStatus(status)) {
+                    throw new IllegalArgumentException(file + ": row " + rowNumber + " has invalid status " + status);
+                }
+                int year = row.get(3).isEmpty() ? 0 : parseInt(row.get(3), "year");
+                int rating = row.get(6).isEmpty() ? 0 : parseInt(row.get(6), "rating");
+                long id = row.get(0).isEmpty() ? 0 : parseId(row.get(0));
+                if (id == 0 || menu.findBookById(id) != null) {
+                    id = BookId.next();
+                }
+                long review = ReviewStore.getDefault().append(row.get(7));
+                Book book = new Book(id, row.get(1), row.get(2), year, row.get(4), status, rating, review);
+                if (row.size() > 8) {
+                    book.setTags(List.of(row.get(8).split(","))); // Optional tags column
+                }
+                menu.addBook(book);
+                imported++;
+            }
+        }
+        snapshots.write(menu.snapshot());
+        err.println("Imported " + imported + " books.");
+        return EXIT_OK;
+    }
+
+    /**
+     * Writes the whole library as CSV, streaming it from the newest snapshot.
+     * Reviews are read straight from the library's review store, which run
+     * makes the default, so nothing is copied or appended.
+     */
+    private int exportCsv(String target) throws IOException {
+        Writer csv = target.equals("-") ? out : Files.newBufferedWriter(Path.of(target), StandardCharsets.UTF_8);
+        try {
+            csv.write("id,title,author,year,genre,status,rating,review,tags\n");
+            snapshots.loadLatest(r -> {
+                try {
+                    csv.write(r.id() + "," + csvField(r.name()) + "," + csvField(r.author()) + ","
+                            + (r.year() > 0 ? r.year() : "") + "," + csvField(r.genre()) + ","
+                            + csvField(r.readingStatus()) + "," + r.rating() + "," + csvField(r.review()) + ","
+                            + csvField(String.join(",", r.tags())) + "\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, true);
+        } finally {
+            if (csv != out) {
+                csv.close();
+            }
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Runs one sync session with another instance and saves the result.
+     */
+    private int sync(String address) throws IOException {
+        String host = address;
+        int port = SyncService.DEFAULT_PORT;
+        int colon = address.lastIndexOf(':');
+        if (colon >= 0) {
+            host = address.substring(0, colon);
+            port = parseInt(address.substring(colon + 1), "port");
+        }
+        BookMenu menu = load();
+        boolean[] changed = { false };
+        menu.addChangeListener(() -> changed[0] = true);
+        SyncService.Result r = new SyncService(menu, Runnable::run, snapshots, readSecret()).syncWith(host, port);
+        if (changed[0]) {
+            snapshots.write(menu.snapshot()); // Also saves the new watermark
+        }
+        out.write(r.peerId() + "\t" + r.booksSent() + "\t" + r.booksReceived() + "\t" + r.booksChanged() + "\t"
+                + r.bytesSent() + "\t" + r.bytesReceived() + "\n");
+        return EXIT_OK;
+    }
+
+    /**
+     * Accepts sync sessions until the process is killed. The library is owned
+     * by a single model thread and saved in the background like in the UI.
+     *
+     * @param address PORT to listen on localhost, or ADDRESS:PORT.
+     */
+    private int serve(String address) throws IOException {
+        InetSocketAddress bindTo;
+        int colon = address.lastIndexOf(':');
+        if (colon >= 0) {
+            bindTo = new InetSocketAddress(address.substring(0, colon), parseInt(address.substring(colon + 1), "port"));
+        } else {
+            bindTo = new InetSocketAddress(InetAddress.getLoopbackAddress(), parseInt(address, "port"));
+        }
+        String secret = readSecret();
+        BookMenu menu = load();
+        ExecutorService modelThread = Executors.newSingleThreadExecutor();
+        Autosaver autosaver = new Autosaver(snapshots, menu::snapshot, modelThread);
+        menu.addChangeListener(autosaver::markDirty);
+        SyncService service = new SyncService(menu, modelThread, snapshots, secret);
+        service.onSession(r -> err.println("Synced with " + r.peerId() + ": sent " + r.booksSent()
+                + ", received " + r.booksReceived() + ", changed " + r.booksChanged() + " (" + r.bytesSent()
+                + "/" + r.bytesReceived() + " bytes)"));
+        int bound = service.listen(bindTo);
+        err.println("Listening for sync on " + bindTo.getHostString() + ":" + bound);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.close();
+            try {
+                modelThread.submit(autosaver::close).get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("Final save failed: " + e);
+            }
+        }));
+        try {
+            new CountDownLatch(1).await(); // Until killed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return EXIT_OK;
+    }
+
+    private String readSecret() throws IOException {
+        return SyncService.readSecret(snapshots.getDirectory());
+    }
+
+    private BookMenu load() throws IOException {
+        BookMenu menu = new BookMenu();
+        menu.restoreSyncState(snapshots.loadLatest(r -> menu.addBook(r.toBook()), true));
+        return menu;
+    }
+
+    private void printRow(BookRecord r) {
+        try {
+            out.write(Long.toString(r.id()));
+            out.write('\t');
+            out.write(tsvField(r.name()));
+            out.write('\t');
+            out.write(tsvField(r.author()));
+            out.write('\t');
+            out.write(r.year() > 0 ? Integer.toString(r.year()) : "");
+            out.write('\t');
+            out.write(tsvField(r.genre()));
+            out.write('\t');
+            out.write(tsvField(r.readingStatus()));
+            out.write('\t');
+            out.write(Integer.toString(r.rating()));
+            out.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // --- Parsing helpers ---
+
+    private static boolean isValidStatus(String status) {
+        for (int i = 1; i < Book.STATUSES.length; i++) {
+            if (Book.STATUSES[i].equals(status)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void requireArgs(String[] args, int count) {
+        if (args.length != count) {
+            throw new IllegalArgumentException("Expected " + count + " argument(s), got " + args.length);
+        }
+    }
+
+    private static int parseInt(String text, String what) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + what + ": " + text);
+        }
+    }
+
+    private static long parseId(String text) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid id: " + text);
+        }
+    }
+
+    private static String tsvField(String s) {
+        if (s == null) {
+            return "";
+        }
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String csvField(String s) {
+        if (s == null) {
+            return "";
+        }
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+            return s;
+        }
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Reads one CSV row, allowing quoted fields to contain commas, quotes and
+     * line breaks. Rows may end in LF or CRLF; blank lines are skipped.
+     *
+     * @param in A reader that supports mark, e.g. a BufferedReader.
+     * @return The fields of the row, or null at the end of input.
+     */
+    static List<String> readCsvRow(Reader in) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int c = in.read();
+        while (c == '\n' || c == '\r') {
+            c = in.read();
+        }
+        if (c < 0) {
+            return null;
+        }
+        while (c >= 0) {
+            if (quoted) {
+                if (c == '"') {
+                    in.mark(1);
+                    int next = in.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        if (next >= 0) {
+                            in.reset();
+                        }
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+            c = in.read();
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Thrown to stop streaming a snapshot once a page is complete.
+     */
+    private static class PageComplete extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        PageComplete() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,1096 @@
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List; // Not java.awt.List
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+// ! BookTrackrGui creates and manages the BookTrackr GUI application (started by Main)
+public class BookTrackrGui {
+
+    // --- Constants ---
+    private static final int SEARCH_LIMIT = 200; // Maximum number of search results shown
+    private static final int SEARCH_DELAY_MILLIS = 150; // Typing pause before the search runs
+    private static final long FIRST_PAINT_BUDGET_MILLIS = 300; // Target time from JVM start to first paint
+    private static final boolean STARTUP_TIMING = Boolean.getBoolean("booktrackr.startupTiming");
+
+    // --- UI Components ---
+    private JFrame frame; // The main window of the application.
+    private DefaultListModel<Book> listModel; // The model that holds the list of books.
+    private JList<Book> bookList; // The visual list that displays the books.
+    private JComboBox<String> sortBox; // Dropdown for selecting sorting criteria.
+    private JComboBox<String> statusFilterBox; // Dropdown for showing only books with one status.
+    private JComboBox<String> tagFilterBox; // Dropdown for showing only books with one tag.
+    private boolean updatingTagFilter; // Set while the tag list is rebuilt, to ignore its events
+    private JTextField searchField; // Typo-tolerant search over titles and authors.
+    private Timer searchTimer; // Coalesces keystrokes in searchField into one refresh.
+    private String listOrder; // The sort key applied with sortBtn, or null for no particular order.
+    private JButton sortBtn; // Button to apply the selected sorting.
+    private JButton removeBtn; // Button to remove the selected books.
+    private JComboBox<String> markStatusBox; // Dropdown for the status to apply to the selected books.
+    private JButton markBtn; // Button to apply the chosen status to all selected books.
+    private JButton openAddBookDialogBtn; // Button to open the "Add Book" dialog.
+    private JCheckBox debugBox; // Checkbox to enable/disable debug features.
+    private JButton quickAddBtn; // Button to add a book with semi-random data (debug only).
+    private JButton syncBtn; // Button to sync the library with another instance.
+    private JButton undoBtn, redoBtn; // Buttons to step back and forth through the edit history.
+    private JSplitPane splitPane; // Splits the main view between the book list and details.
+    private JPanel rightPanel; // The panel on the right that shows book details; built on first use.
+    private JTabbedPane detailsTabs; // The Details and Review tabs; the Review tab is built on first use.
+    private Book detailsBook; // The book shown in the details panel, or null.
+    private JLabel coverPlaceholder; // A placeholder for the book cover image.
+    // --- Detail Panel Components ---
+    private JLabel authorLabel, yearLabel, genreLabel, statusLabel, ratingLabel, tagsLabel, pagesLabel;
+    private JTextArea reviewArea;
+    // --- Data Management ---
+    private BookMenu bookMenu;
+    private LibrarySnapshots snapshots; // Saved copies of the library on disk
+    private Autosaver autosaver; // Saves the library in the background after changes
+    private ReadingLog readingLog; // History of reading sessions
+    private SyncService syncService; // Exchanges changes with other instances
+    private UndoHistory history; // Versions of the library for undo and redo
+    // --- Startup ---
+    private boolean firstPaintSeen; // Whether the first paint was reported
+
+    // (Moved GENRES into Book.java as Book.GENRES)
+
+    /**
+     * The entry point of the GUI, reached through Main.main when it is given
+     * no arguments. Schedules the creation of the GUI on the Event Dispatch
+     * Thread.
+     */
+    public static void main(String[] args) {
+        SwingUtilities.invokeLater(() -> {
+            BookTrackrGui app = new BookTrackrGui();
+            app.createAndShowGui();
+        });
+    }
+
+    /**
+     * Initializes and displays the main GUI components of the application.
+     * This method sets up the main frame, panels, buttons, and listeners.
+     *
+     * Startup is staged so the window appears quickly: the list first shows the
+     * small head-of-list cache saved with the last snapshot, while the full
+     * library loads in the background. The details panel and the review tab
+     * are only built when first needed.
+     */
+    private void createAndShowGui() {
+        // --- Frame Setup ---
+        frame = new JFrame("BookTrackr");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setSize(900, 650);
+
+        // --- Data Model ---
+        bookMenu = new BookMenu(); // Replaced by the loaded library
+        snapshots = new LibrarySnapshots(LibrarySnapshots.defaultDirectory());
+
+        // --- Root Panel ---
+        JPanel root = new JPanel(new BorderLayout(8, 8)) {
+            @Override
+            public void paint(Graphics g) {
+                super.paint(g);
+                if (!firstPaintSeen) {
+                    firstPaintSeen = true;
+                    reportStartup("first paint");
+                }
+            }
+        };
+
+        // --- UI Component Creation ---
+        JPanel topPanel = createTopPanel();
+        JScrollPane scroll = createBookListPanel();
+        JPanel detailsPlaceholder = new JPanel();
+        detailsPlaceholder.setVisible(false); // Replaced by the details panel on first selection.
+
+        // --- Split Pane ---
+        splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, scroll, detailsPlaceholder);
+        splitPane.setDividerLocation(600);
+
+        // --- Bottom Controls Panel ---
+        JPanel controls = createControlsPanel();
+
+        // --- Final Assembly ---
+        root.add(topPanel, BorderLayout.NORTH);
+        root.add(splitPane, BorderLayout.CENTER);
+        root.add(controls, BorderLayout.SOUTH);
+
+        // --- Keyboard Shortcuts ---
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx(); // Ctrl, or Cmd on macOS
+        bindShortcut(root, KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut), "undo", () -> handleUndo(false));
+        bindShortcut(root, KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcut), "redo", () -> handleUndo(true));
+        bindShortcut(root, KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut | InputEvent.SHIFT_DOWN_MASK), "redo",
+                () -> handleUndo(true));
+
+        // --- Persistence ---
+        showCachedHead();
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                if (syncService != null) {
+                    syncService.close();
+                }
+                if (autosaver != null) {
+                    autosaver.close(); // Flush unsaved changes before exiting
+                }
+                if (readingLog != null) {
+                    readingLog.close(); // Saves the rollups, so the next start need not read the whole log
+                }
+            }
+        });
+
+        // Add the root panel to the frame and make it visible.
+        frame.getContentPane().add(root);
+        frame.setLocationRelativeTo(null);
+        frame.setVisible(true);
+        loadLibrary();
+    }
+
+    /**
+     * Fills the list with the head-of-list cache, so the first screenful is
+     * visible before the library has loaded. Controls stay disabled until then.
+     */
+    private void showCachedHead() {
+        setLibraryControlsEnabled(false);
+        for (BookRecord record : snapshots.readHead()) {
+            listModel.addElement(record.toBook());
+        }
+    }
+
+    /**
+     * Enables or disables everything that reads or changes the library.
+     */
+    private void setLibraryControlsEnabled(boolean enabled) {
+        openAddBookDialogBtn.setEnabled(enabled);
+        syncBtn.setEnabled(enabled);
+        quickAddBtn.setEnabled(enabled);
+        searchField.setEnabled(enabled);
+        bookList.setEnabled(enabled);
+        statusFilterBox.setEnabled(enabled);
+        tagFilterBox.setEnabled(enabled);
+        sortBtn.setEnabled(enabled);
+        removeBtn.setEnabled(enabled);
+        markBtn.setEnabled(enabled);
+        if (enabled) {
+            updateUndoButtons();
+        } else {
+            undoBtn.setEnabled(false);
+            redoBtn.setEnabled(false);
+        }
+    }
+
+    /**
+     * What the background load produced. Errors are kept so they can be shown
+     * on the EDT.
+     */
+    private static class LoadedLibrary {
+        final BookMenu menu = new BookMenu();
+        ReadingLog readingLog;
+        String syncSecret; // Null if the library has none
+        IOException libraryError;
+        IOException readingLogError;
+        IOException syncSecretError;
+    }
+
+    /**
+     * Loads the newest saved snapshot of the library, if there is one, and the
+     * reading history in the background. The library is built into its own
+     * BookMenu, indexes included, and only handed to the EDT once complete.
+     */
+    private void loadLibrary() {
+        new SwingWorker<LoadedLibrary, Void>() {
+            @Override
+            protected LoadedLibrary doInBackground() {
+                LoadedLibrary loaded = new LoadedLibrary();
+                try {
+                    ReviewStore.setDefault(snapshots.reviews()); // Before any book refers to a review
+                    loaded.menu.restoreSyncState(
+                            snapshots.loadLatest(record -> loaded.menu.addBook(record.toBook()), true));
+                    loaded.menu.snapshot(); // Builds the saved records here, so autosaves on the EDT only update them
+                } catch (IOException e) {
+                    loaded.libraryError = e;
+                }
+                try {
+                    loaded.readingLog = ReadingLog.inLibrary(snapshots.getDirectory());
+                    loaded.readingLog.loadEvents(); // So the details panel never reads the log on the EDT
+                } catch (IOException e) {
+                    loaded.readingLogError = e;
+                }
+                try {
+                    loaded.syncSecret = SyncService.readSecret(snapshots.getDirectory());
+                } catch (IOException e) {
+                    loaded.syncSecretError = e;
+                }
+                return loaded;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    libraryLoaded(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(frame, "Could not load your library: " + cause,
+                            "Load Failed", JOptionPane.WARNING_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Installs the loaded library and starts everything that depends on it.
+     * Runs on the EDT.
+     */
+    private void libraryLoaded(LoadedLibrary loaded) {
+        bookMenu = loaded.menu;
+        readingLog = loaded.readingLog;
+        history = new UndoHistory(bookMenu); // Starts at the loaded library, on the EDT that owns it
+        if (loaded.libraryError != null) {
+            JOptionPane.showMessageDialog(frame, "Could not load your library: " + loaded.libraryError.getMessage(),
+                    "Load Failed", JOptionPane.WARNING_MESSAGE);
+        }
+        if (loaded.readingLogError != null) {
+            JOptionPane.showMessageDialog(frame,
+                    "Could not load your reading history: " + loaded.readingLogError.getMessage(),
+                    "Load Failed", JOptionPane.WARNING_MESSAGE);
+        }
+        autosaver = new Autosaver(snapshots, bookMenu::snapshot, SwingUtilities::invokeLater);
+        bookMenu.addChangeListener(autosaver::markDirty);
+        startSync(loaded);
+        setLibraryControlsEnabled(true);
+        refreshBookList();
+        if (STARTUP_TIMING) {
+            reportStartup("library loaded (" + bookMenu.size() + " books)");
+        }
+        if (Boolean.getBoolean("booktrackr.trainingRun")) {
+            finishTrainingRun();
+        }
+    }
+
+    /**
+     * Prints how long after JVM start a startup milestone was reached, when
+     * the booktrackr.startupTiming system property is set.
+     */
+    private static void reportStartup(String milestone) {
+        if (!STARTUP_TIMING) {
+            return;
+        }
+        Optional<Instant> started = ProcessHandle.current().info().startInstant();
+        if (started.isEmpty()) {
+            System.err.println("Startup: " + milestone + " (JVM start time unknown)");
+            return;
+        }
+        long millis = Duration.between(started.get(), Instant.now()).toMillis();
+        System.err.println("Startup: " + milestone + " after " + millis + " ms"
+                + (milestone.equals("first paint") && millis > FIRST_PAINT_BUDGET_MILLIS
+                        ? " (over the " + FIRST_PAINT_BUDGET_MILLIS + " ms budget)"
+                        : ""));
+    }
+
+    /**
+     * Ends a training run for the AppCDS archive (see README): builds the
+     * parts of the UI that are normally created later, so their classes are
+     * archived too, then exits without changing the library.
+     */
+    private void finishTrainingRun() {
+        ensureDetailsPanel();
+        ensureReviewTab();
+        new BookDialog(frame).dispose();
+        syncService.close();
+        System.exit(0);
+    }
+
+    /**
+     * Creates the sync service and, if the booktrackr.syncPort system property
+     * is set, accepts sync sessions from other instances on that port: on
+     * localhost, or on the address in booktrackr.syncAddress (which needs a
+     * sync secret).
+     */
+    private void startSync(LoadedLibrary loaded) {
+        if (loaded.syncSecretError != null) {
+            JOptionPane.showMessageDialog(frame, "Could not read the sync secret: "
+                    + loaded.syncSecretError.getMessage(), "Sync Unavailable", JOptionPane.WARNING_MESSAGE);
+        }
+        syncService = new SyncService(bookMenu, SwingUtilities::invokeLater, snapshots, loaded.syncSecret);
+        syncService.onSession(result -> {
+            updateUndoButtons(); // Merges are not steps, but pending edits became one before
+            if (result.booksChanged() > 0) {
+                refreshBookList();
+                updateBookDetails(bookList.getSelectedIndices().length == 1 ? bookList.getSelectedValue() : null);
+            }
+        });
+        String port = System.getProperty("booktrackr.syncPort");
+        String address = System.getProperty("booktrackr.syncAddress");
+        if (port != null && loaded.syncSecretError == null) {
+            try {
+                int p = Integer.parseInt(port.trim());
+                if (address == null) {
+                    syncService.listen(p);
+                } else {
+                    syncService.listen(new InetSocketAddress(address.trim(), p));
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(frame, "Could not listen for sync on port " + port + ": "
+                        + e.getMessage(), "Sync Unavailable", JOptionPane.WARNING_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * Asks for the address of another instance and syncs with it in the
+     * background, refreshing the list when done.
+     */
+    private void handleSync() {
+        String address = (String) JOptionPane.showInputDialog(frame, "Sync with (host:port):", "Sync",
+                JOptionPane.QUESTION_MESSAGE, null, null, "localhost:" + SyncService.DEFAULT_PORT);
+        if (address == null || address.trim().isEmpty()) {
+            return; // Cancelled
+        }
+        String host = address.trim();
+        int port = SyncService.DEFAULT_PORT;
+        int colon = host.lastIndexOf(':');
+        if (colon >= 0) {
+            try {
+                port = Integer.parseInt(host.substring(colon + 1));
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(frame, "Port must be a valid number.");
+                return;
+            }
+            host = host.substring(0, colon);
+        }
+        String syncHost = host;
+        int syncPort = port;
+        syncBtn.setEnabled(false);
+        // The session waits on the EDT for model access, so it must not run on it.
+        new SwingWorker<SyncService.Result, Void>() {
+            @Override
+            protected SyncService.Result doInBackground() throws IOException {
+                return syncService.syncWith(syncHost, syncPort);
+            }
+
+            @Override
+            protected void done() {
+                syncBtn.setEnabled(true);
+                try {
+                    SyncService.Result result = get();
+                    updateUndoButtons(); // Merges are not steps, but pending edits became one before
+                    refreshBookList();
+                    updateBookDetails(bookList.getSelectedIndices().length == 1 ? bookList.getSelectedValue() : null);
+                    JOptionPane.showMessageDialog(frame, "Sent " + result.booksSent() + " and received "
+                            + result.booksReceived() + " changed books.", "Sync Complete",
+                            JOptionPane.INFORMATION_MESSAGE);
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(frame, "Sync failed: " + cause.getMessage(), "Sync Failed",
+                            JOptionPane.WARNING_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Records a reading event, warning the user if it could not be saved.
+     * 
+     * @param action Writes the event to the reading log.
+     */
+    private void logReading(ReadingLogAction action) {
+        if (readingLog == null) {
+            return;
+        }
+        try {
+            action.run(readingLog);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(frame, "Could not save reading history: " + e.getMessage(),
+                    "Save Failed", JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    // A reading log write that may fail with an IOException
+    private interface ReadingLogAction {
+        void run(ReadingLog log) throws IOException;
+    }
+
+    /**
+     * Updates the right-hand details panel with the information of the selected
+     * book.
+     * 
+     * @param book The book whose details are to be displayed.
+     */
+    private void updateBookDetails(Book book) {
+        if (rightPanel == null) {
+            return; // Nothing has been shown yet
+        }
+        detailsBook = book;
+        showReview(book);
+        if (book != null) {
+            // Update the border title with the book's name
+            rightPanel.setBorder(BorderFactory.createTitledBorder(book.getName()));
+            // Display the book's title in the cover placeholder.
+            coverPlaceholder.setText(
+                    "<html><div style='text-align: center;'>" + book.getName() + "<br>Cover Placeholder</div></html>");
+
+            // Populate the detail labels
+            authorLabel.setText(book.getAuthor());
+            yearLabel.setText(book.getYear() > 0 ? String.valueOf(book.getYear()) : "N/A");
+            genreLabel.setText(book.getGenre() != null && !book.getGenre().trim().isEmpty() ? book.getGenre() : "N/A");
+            statusLabel.setText(book.getReadingStatus());
+            ratingLabel.setText(book.getRating() > 0 ? book.getRating() + "/5" : "Not Rated");
+            tagsLabel.setText(book.getTags().isEmpty() ? "None" : String.join(", ", book.getTags()));
+            pagesLabel.setText(formatReadingHistory(book));
+
+        } else {
+            // Reset the panel if no book is selected.
+            rightPanel.setBorder(BorderFactory.createTitledBorder("Details"));
+            coverPlaceholder.setText("Book Cover Placeholder");
+            authorLabel.setText("");
+            yearLabel.setText("");
+            genreLabel.setText("");
+            statusLabel.setText("");
+            ratingLabel.setText("");
+            tagsLabel.setText("");
+            pagesLabel.setText("");
+        }
+    }
+
+    /**
+     * Summarizes the reading history of a book for the details panel.
+     * 
+     * @param book The book to summarize.
+     * @return Pages read, plus how long the book took if it was finished.
+     */
+    private String formatReadingHistory(Book book) {
+        if (readingLog == null) {
+            return "N/A";
+        }
+        String text = readingLog.pagesRead(book.getId()) + " pages";
+        Duration took = readingLog.timeToFinish(book.getId());
+        if (took != null) {
+            long days = Math.max(1, took.toDays());
+            text += " (finished in " + days + (days == 1 ? " day)" : " days)");
+        }
+        return text;
+    }
+
+    /**
+     * Asks how many pages were read and records a reading session for the book.
+     * 
+     * @param book The book that was read.
+     */
+    private void handleLogPages(Book book) {
+        String input = JOptionPane.showInputDialog(frame, "Pages read in this session:", "Log Pages",
+                JOptionPane.QUESTION_MESSAGE);
+        if (input == null) {
+            return; // Cancelled
+        }
+        int pages;
+        try {
+            pages = Integer.parseInt(input.trim());
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(frame, "Pages must be a valid number.");
+            return;
+        }
+        if (pages <= 0) {
+            JOptionPane.showMessageDialog(frame, "Pages must be greater than 0.");
+            return;
+        }
+        logReading(log -> log.record(book.getId(), ReadingLog.PROGRESS, pages));
+        updateBookDetails(book);
+    }
+
+    /**
+     * Runs an action when a key combination is pressed anywhere in the window.
+     */
+    private static void bindShortcut(JComponent component, KeyStroke key, String name, Runnable action) {
+        component.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(key, name);
+        component.getActionMap().put(name, new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Records the changes made by an action as one undo step.
+     * 
+     * @param label Describes the action in the Undo and Redo tooltips.
+     */
+    private void recordStep(String label) {
+        history.checkpoint(label);
+        updateUndoButtons();
+    }
+
+    /**
+     * Enables the Undo and Redo buttons when there is a step to undo or redo,
+     * naming the step in the tooltip.
+     */
+    private void updateUndoButtons() {
+        undoBtn.setEnabled(history.canUndo());
+        undoBtn.setToolTipText(history.canUndo() ? "Undo " + history.undoLabel() : null);
+        redoBtn.setEnabled(history.canRedo());
+        redoBtn.setToolTipText(history.canRedo() ? "Redo " + history.redoLabel() : null);
+    }
+
+    /**
+     * Reverts the last step, or repeats the last undone one, and refreshes
+     * the list and details. Edits to the reading history are not undone.
+     * 
+     * @param redo true to redo, false to undo.
+     */
+    private void handleUndo(boolean redo) {
+        if (history == null || !(redo ? history.redo() : history.undo())) {
+            return;
+        }
+        updateUndoButtons();
+        refreshBookList();
+        updateBookDetails(bookList.getSelectedIndices().length == 1 ? bookList.getSelectedValue() : null);
+    }
+
+    /**
+     * Handles opening the dialog to add a new book and adding the book to the
+     * menu if created.
+     */
+    private void handleAddBook() {
+        BookDialog dialog = new BookDialog(frame);
+        dialog.setVisible(true); // Show the dialog and wait for user input
+
+        if (dialog.isSaved()) {
+            dialog.getNewBook().ifPresent(book -> {
+                bookMenu.addBook(book);
+                recordStep("Add \"" + book.getName() + "\"");
+                refreshBookList();
+                bookList.setSelectedValue(book, true); // Select the newly added book
+            });
+        }
+    }
+
+    /**
+     * Handles opening the dialog to edit a selected book and applying the changes.
+     * 
+     * @param bookToEdit The book to be edited.
+     */
+    private void handleEditBook(Book bookToEdit) {
+        String oldStatus = bookToEdit.getReadingStatus();
+        BookDialog dialog = new BookDialog(frame, bookToEdit);
+        dialog.setVisible(true); // Show the dialog and wait for user input
+
+        if (dialog.isSaved()) {
+            // The dialog modifies the book object directly, so we just need to refresh.
+            bookMenu.notifyBookChanged(bookToEdit);
+            recordStep("Edit \"" + bookToEdit.getName() + "\"");
+            logReading(log -> log.recordStatusChange(bookToEdit.getId(), oldStatus, bookToEdit.getReadingStatus()));
+            refreshBookList();
+            updateBookDetails(bookToEdit); // Update the details panel with the new info
+        }
+    }
+
+    /**
+     * Removes the currently selected books from the list.
+     */
+    private void handleRemoveBook() {
+        List<Book> selected = bookList.getSelectedValuesList();
+        // Ensure that at least one book is actually selected.
+        if (!selected.isEmpty()) {
+            String what = selected.size() == 1 ? "\"" + selected.get(0).getName() + "\""
+                    : selected.size() + " books";
+            int choice = JOptionPane.showConfirmDialog(frame,
+                    "Are you sure you want to remove " + what + "?",
+                    "Confirm Removal",
+                    JOptionPane.YES_NO_OPTION,
+                    JOptionPane.WARNING_MESSAGE);
+
+            if (choice == JOptionPane.YES_OPTION) {
+                bookMenu.removeBooks(selectedIds());
+                recordStep("Remove " + what);
+                refreshBookList();
+            }
+        }
+    }
+
+    /**
+     * Sets the reading status chosen in markStatusBox on every selected book in
+     * one batch.
+     */
+    private void handleMarkSelected() {
+        String status = (String) markStatusBox.getSelectedItem();
+        long[] ids = selectedIds();
+        if (ids.length == 0 || status == null || status.trim().isEmpty()) {
+            return;
+        }
+        List<Book> selected = bookList.getSelectedValuesList();
+        String[] oldStatuses = new String[selected.size()];
+        for (int i = 0; i < oldStatuses.length; i++) {
+            oldStatuses[i] = selected.get(i).getReadingStatus();
+        }
+        bookMenu.updateBooks(ids, new BookChange().setReadingStatus(status));
+        recordStep("Mark " + (ids.length == 1 ? "1 book" : ids.length + " books") + " as " + status);
+        logReading(log -> log.recordStatusChanges(ids, oldStatuses, status)); // One write for the batch
+        refreshBookList();
+        updateBookDetails(bookList.getSelectedIndices().length == 1 ? bookList.getSelectedValue() : null);
+    }
+
+    /**
+     * @return The ids of all selected books.
+     */
+    private long[] selectedIds() {
+        List<Book> selected = bookList.getSelectedValuesList();
+        long[] ids = new long[selected.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = selected.get(i).getId();
+        }
+        return ids;
+    }
+
+    /**
+     * Sorts the books in the list based on the criteria selected in the sortBox.
+     */
+    private void handleSortBooks() {
+        // Remember the order so later refreshes keep it; BookMenu does the sorting.
+        listOrder = (String) sortBox.getSelectedItem();
+        refreshBookList();
+    }
+
+    /**
+     * Returns the books to show in the list: search results ranked by how well
+     * they match when there is search text, otherwise the filtered and sorted
+     * library.
+     * 
+     * @return The books to display.
+     */
+    private List<Book> findListBooks() {
+        BookQuery query = currentListQuery();
+        String text = searchField.getText().trim();
+        if (text.isEmpty()) {
+            return bookMenu.query(query);
+        }
+        // Filtered while ranking, so the limit counts only books that are shown
+        return bookMenu.searchBooks(text, SEARCH_LIMIT, query::matches);
+    }
+
+    /**
+     * Builds the query for the books shown in the list from the filter and
+     * sort controls.
+     * 
+     * @return The query to pass to BookMenu.
+     */
+    private BookQuery currentListQuery() {
+        BookQuery query = statusFilterQuery();
+        String tag = (String) tagFilterBox.getSelectedItem();
+        if (tag != null && !tag.equals("All")) {
+            query.tagged(tag);
+        }
+        if (listOrder != null) {
+            query.orderBy(listOrder);
+        }
+        return query;
+    }
+
+    /**
+     * @return A query for the books with the status chosen in the filter.
+     */
+    private BookQuery statusFilterQuery() {
+        BookQuery query = new BookQuery();
+        String status = (String) statusFilterBox.getSelectedItem();
+        if (status != null && !status.equals("All")) {
+            query.status(status);
+        }
+        return query;
+    }
+
+    /**
+     * Rebuilds the tag filter when tags were added or removed, keeping the
+     * chosen tag if it is still in use.
+     */
+    private void refreshTagFilter() {
+        List<String> tags = new ArrayList<>(bookMenu.tagCounts().keySet());
+        List<String> shown = new ArrayList<>();
+        for (int i = 1; i < tagFilterBox.getItemCount(); i++) {
+            shown.add(tagFilterBox.getItemAt(i));
+        }
+        if (tags.equals(shown)) {
+            tagFilterBox.repaint(); // Counts may have changed
+            return;
+        }
+        Object selected = tagFilterBox.getSelectedItem();
+        updatingTagFilter = true;
+        try {
+            tagFilterBox.removeAllItems();
+            tagFilterBox.addItem("All");
+            for (String tag : tags) {
+                tagFilterBox.addItem(tag);
+            }
+            tagFilterBox.setSelectedItem(tags.contains(selected) ? selected : "All");
+        } finally {
+            updatingTagFilter = false;
+        }
+    }
+
+    /**
+     * Refreshes the book list displayed in the UI from the BookMenu's data.
+     */
+
+    private void refreshBookList() {
+        // Save the currently selected books so we can re-select them after the refresh.
+        long[] selected = selectedIds();
+        refreshTagFilter();
+        listModel.clear();
+        listModel.addAll(findListBooks()); // One model event instead of one per book
+        // If there was a selection before, try to restore it.
+        if (selected.length > 0) {
+            Arrays.sort(selected);
+            List<Integer> indices = new ArrayList<>();
+            for (int i = 0; i < listModel.size(); i++) {
+                if (Arrays.binarySearch(selected, listModel.get(i).getId()) >= 0) {
+                    indices.add(i);
+                }
+            }
+            bookList.setSelectedIndices(indices.stream().mapToInt(Integer::intValue).toArray());
+            if (!indices.isEmpty()) {
+                bookList.ensureIndexIsVisible(indices.get(0));
+            }
+        }
+    }
+
+    /**
+     * A helper method to reduce boilerplate when adding a labeled field to a panel
+     * with GridBagLayout. It adds a static label and a value label in a new row.
+     *
+     * @param panel     The parent panel to add the components to.
+     * @param gbc       The GridBagConstraints object used for layout.
+     * @param labelText The text for the static label (e.g., "Author:").
+     * @param boldFont  The font to use for the static label.
+     * @return The newly created JLabel for the value, which can be stored as a
+     *         field.
+     */
+    private JLabel addDetailRow(JPanel panel, GridBagConstraints gbc, String labelText, Font boldFont) {
+        // Configure and add the static label (e.g., "Author:")
+        gbc.gridx = 0;
+        gbc.weightx = 0; // Column for labels should not expand.
+        JLabel staticLabel = new JLabel(labelText);
+        staticLabel.setFont(boldFont);
+        panel.add(staticLabel, gbc);
+
+        // Configure and add the value label (the one that will be updated)
+        gbc.gridx = 1;
+        gbc.weightx = 1; // Column for data should take up the remaining space.
+        JLabel valueLabel = new JLabel();
+        panel.add(valueLabel, gbc);
+
+        gbc.gridy++; // Move to the next row for the subsequent call.
+        return valueLabel;
+    }
+
+    /**
+     * Creates and returns the top panel containing action buttons.
+     * 
+     * @return The configured top panel.
+     */
+    private JPanel createTopPanel() {
+        openAddBookDialogBtn = new JButton("Add New Book...");
+        openAddBookDialogBtn.addActionListener(e -> handleAddBook());
+
+        // Panel for sync and debug controls
+        JPanel rightPanelLayout = new JPanel(new FlowLayout(FlowLayout.RIGHT, 8, 8));
+        quickAddBtn = new JButton("Quick Add");
+        quickAddBtn.setVisible(false);
+        quickAddBtn.addActionListener(e -> handleQuickAdd());
+
+        debugBox = new JCheckBox("Debug");
+        debugBox.addActionListener(e -> quickAddBtn.setVisible(debugBox.isSelected()));
+
+        syncBtn = new JButton("Sync...");
+        syncBtn.addActionListener(e -> handleSync());
+
+        undoBtn = new JButton("Undo");
+        undoBtn.addActionListener(e -> handleUndo(false));
+        redoBtn = new JButton("Redo");
+        redoBtn.addActionListener(e -> handleUndo(true));
+
+        rightPanelLayout.add(undoBtn);
+        rightPanelLayout.add(redoBtn);
+        rightPanelLayout.add(syncBtn);
+        rightPanelLayout.add(quickAddBtn);
+        rightPanelLayout.add(debugBox);
+
+        // Search box; the list updates as the user types.
+        searchField = new JTextField(20);
+        searchField.setToolTipText("Search titles and authors (typos are OK)");
+        searchTimer = new Timer(SEARCH_DELAY_MILLIS, e -> refreshBookList());
+        searchTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+        });
+        JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 8));
+        searchPanel.add(new JLabel("Search:"));
+        searchPanel.add(searchField);
+
+        JPanel topPanel = new JPanel(new BorderLayout(8, 8));
+        topPanel.add(openAddBookDialogBtn, BorderLayout.WEST);
+        topPanel.add(searchPanel, BorderLayout.CENTER);
+        topPanel.add(rightPanelLayout, BorderLayout.EAST);
+        return topPanel;
+    }
+
+    /**
+     * Creates and returns the scrollable panel for the book list.
+     * 
+     * @return The configured book list panel.
+     */
+    private JScrollPane createBookListPanel() {
+        listModel = new DefaultListModel<>();
+        bookList = new JList<>(listModel);
+        bookList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        bookList.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                // Details are only shown when exactly one book is selected.
+                Book selected = bookList.getSelectedIndices().length == 1 ? bookList.getSelectedValue() : null;
+                boolean isBookSelected = selected != null;
+
+                if (isBookSelected) {
+                    ensureDetailsPanel();
+                }
+                if (rightPanel != null) {
+                    rightPanel.setVisible(isBookSelected);
+                }
+
+                if (isBookSelected) {
+                    if (debugBox.isSelected()) {
+                        selected.printInfo();
+                    }
+                    updateBookDetails(selected);
+                    splitPane.setDividerLocation(0.67);
+                } else {
+                    updateBookDetails(null);
+                }
+            }
+        });
+        return new JScrollPane(bookList);
+    }
+
+    /**
+     * Builds the details panel the first time a book is selected and puts it
+     * in the split pane.
+     */
+    private void ensureDetailsPanel() {
+        if (rightPanel == null) {
+            rightPanel = createDetailsPanel();
+            int divider = splitPane.getDividerLocation();
+            splitPane.setRightComponent(rightPanel);
+            splitPane.setDividerLocation(divider);
+        }
+    }
+
+    /**
+     * Creates and returns the details panel that displays information about the
+     * selected book. The review tab starts empty and is filled in by
+     * ensureReviewTab when it is first opened.
+     * 
+     * @return The configured details panel.
+     */
+    private JPanel createDetailsPanel() {
+        // --- Cover Panel ---
+        coverPlaceholder = new JLabel("Book Cover Placeholder", SwingConstants.CENTER);
+        coverPlaceholder.setBorder(BorderFactory.createLineBorder(Color.BLACK));
+        coverPlaceholder.setPreferredSize(new Dimension(200, 300));
+
+        JButton editBtn = new JButton("Edit");
+        editBtn.addActionListener(e -> {
+            Book selected = bookList.getSelectedValue();
+            if (selected != null) {
+                handleEditBook(selected);
+            }
+        });
+
+        JButton logPagesBtn = new JButton("Log Pages...");
+        logPagesBtn.addActionListener(e -> {
+            Book selected = bookList.getSelectedValue();
+            if (selected != null) {
+                handleLogPages(selected);
+            }
+        });
+
+        JPanel coverButtons = new JPanel(new GridLayout(1, 2, 8, 8));
+        coverButtons.add(editBtn);
+        coverButtons.add(logPagesBtn);
+
+        JPanel coverPanel = new JPanel(new BorderLayout(8, 8));
+        coverPanel.add(coverPlaceholder, BorderLayout.CENTER);
+        coverPanel.add(coverButtons, BorderLayout.SOUTH);
+
+        // --- Details Tab ---
+        JPanel detailsTabPanel = new JPanel(new GridBagLayout());
+        detailsTabPanel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(2, 4, 2, 4);
+        gbc.anchor = GridBagConstraints.WEST;
+        gbc.gridy = 0;
+
+        Font boldFont = new Font(detailsTabPanel.getFont().getName(), Font.BOLD, detailsTabPanel.getFont().getSize());
+        authorLabel = addDetailRow(detailsTabPanel, gbc, "Author:", boldFont);
+        yearLabel = addDetailRow(detailsTabPanel, gbc, "Year:", boldFont);
+        genreLabel = addDetailRow(detailsTabPanel, gbc, "Genre:", boldFont);
+        statusLabel = addDetailRow(detailsTabPanel, gbc, "Status:", boldFont);
+        ratingLabel = addDetailRow(detailsTabPanel, gbc, "Rating:", boldFont);
+        tagsLabel = addDetailRow(detailsTabPanel, gbc, "Tags:", boldFont);
+        pagesLabel = addDetailRow(detailsTabPanel, gbc, "Read:", boldFont);
+
+        // --- Tabbed Pane ---
+        detailsTabs = new JTabbedPane();
+        detailsTabs.addTab("Details", detailsTabPanel);
+        detailsTabs.addTab("Review", new JPanel(new BorderLayout())); // Built when first opened
+        detailsTabs.addChangeListener(e -> {
+            if (detailsTabs.getSelectedIndex() == 1) {
+                ensureReviewTab();
+            }
+        });
+
+        // --- Final Assembly ---
+        JPanel panel = new JPanel(new BorderLayout(8, 8));
+        panel.add(coverPanel, BorderLayout.NORTH);
+        panel.add(detailsTabs, BorderLayout.CENTER);
+        panel.setBorder(BorderFactory.createTitledBorder("Details"));
+        return panel;
+    }
+
+    /**
+     * Builds the review tab the first time it is opened and shows the review
+     * of the current book.
+     */
+    private void ensureReviewTab() {
+        if (reviewArea != null) {
+            return;
+        }
+        reviewArea = new JTextArea();
+        reviewArea.setEditable(false);
+        reviewArea.setLineWrap(true);
+        reviewArea.setWrapStyleWord(true);
+        JPanel reviewTabPanel = (JPanel) detailsTabs.getComponentAt(1);
+        reviewTabPanel.add(new JScrollPane(reviewArea), BorderLayout.CENTER);
+        reviewTabPanel.revalidate();
+        showReview(detailsBook);
+    }
+
+    /**
+     * Shows a book's review in the review tab, if the tab has been built.
+     * 
+     * @param book The book, or null to clear the tab.
+     */
+    private void showReview(Book book) {
+        if (reviewArea == null) {
+            return; // Filled in when the tab is first opened
+        }
+        if (book == null) {
+            reviewArea.setText("");
+            return;
+        }
+        String review = book.getReview(); // Decompressed on demand, so read it once
+        reviewArea.setText(!review.trim().isEmpty() ? review : "No review.");
+        reviewArea.setCaretPosition(0); // Scroll to the top
+    }
+
+    /**
+     * Creates and returns the bottom controls panel.
+     * 
+     * @return The configured controls panel.
+     */
+    private JPanel createControlsPanel() {
+        sortBox = new JComboBox<>(new String[] { "Title", "Author", "Year" });
+        sortBtn = new JButton("Sort");
+        sortBtn.addActionListener(e -> handleSortBooks());
+
+        removeBtn = new JButton("Remove Selected");
+        removeBtn.addActionListener(e -> handleRemoveBook());
+
+        markStatusBox = new JComboBox<>(Book.STATUSES);
+        markBtn = new JButton("Mark Selected");
+        markBtn.addActionListener(e -> handleMarkSelected());
+
+        String[] filters = Book.STATUSES.clone();
+        filters[0] = "All"; // Replace the blank entry
+        statusFilterBox = new JComboBox<>(filters);
+        statusFilterBox.addActionListener(e -> refreshBookList());
+
+        tagFilterBox = new JComboBox<>(new String[] { "All" });
+        tagFilterBox.setPrototypeDisplayValue("science fiction (0000)");
+        tagFilterBox.addActionListener(e -> {
+            if (!updatingTagFilter) {
+                refreshBookList();
+            }
+        });
+        // Show how many books with the chosen status have each tag; counted from the bitmaps
+        tagFilterBox.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                    boolean cellHasFocus) {
+                if (value != null && !value.equals("All") && bookMenu != null) {
+                    value = value + " (" + bookMenu.count(statusFilterQuery().tagged((String) value)) + ")";
+                }
+                return super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            }
+        });
+
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 8));
+        controls.add(new JLabel("Show:"));
+        controls.add(statusFilterBox);
+        controls.add(new JLabel("Tag:"));
+        controls.add(tagFilterBox);
+        controls.add(new JLabel("Sort by:"));
+        controls.add(sortBox);
+        controls.add(sortBtn);
+        controls.add(removeBtn);
+        controls.add(new JLabel("Mark as:"));
+        controls.add(markStatusBox);
+        controls.add(markBtn);
+        return controls;
+    }
+
+    /**
+     * Handles the action of the "Quick Add" button to add a semi-random book for
+     * debugging.
+     */
+    private void handleQuickAdd() {
+        java.util.Random rand = new java.util.Random();
+        int randomNum = rand.nextInt(1000);
+        String randomlet = String.valueOf((char) (rand.nextInt(26) + 'A'));
+        String title = randomlet + ".Vitle " + randomNum;
+        String author = randomlet + randomNum;
+        int year = 2000 + rand.nextInt(100);
+        String genre = Book.GENRES[1 + rand.nextInt(Book.GENRES.length - 1)];
+        int rating = 1 + rand.nextInt(5); // 1-5 rating
+        String review = "Generic detailed text that tests multi-line + Title: '" + title + "'.\n"
+                + "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod"
+                + "sed ut perspiciatis unde omnis iste natus error sit voluptatem. At vero eos et "
+                + "excepturi sint occaecati cupiditate non provident, similique sunt in culpa";
+
+        Book b = new Book(title, author, genre, "to-be-read", rating, review);
+        b.setYear(year);
+        bookMenu.addBook(b);
+        recordStep("Quick Add");
+        refreshBookList();
+    }
+}
\ No newline at end of file
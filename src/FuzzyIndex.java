@@ -0,0 +1,350 @@
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Typo-tolerant lookup of books by the words in their title and author.
+ *
+ * Every distinct word (term) is kept in a sorted dictionary mapping it to the
+ * books that contain it; the number of such books is the term's popularity,
+ * used to rank equally close matches. A lookup walks the dictionary in order
+ * while running the Levenshtein dynamic program one character at a time, in
+ * effect a Levenshtein automaton over the implicit trie of the sorted terms.
+ * Consecutive terms share the rows of their common prefix, and as soon as a
+ * prefix is out of range every term starting with it is skipped with a single
+ * ceiling lookup, so only a small part of a large dictionary is visited.
+ *
+ * Books are added, removed and refiled incrementally.
+ */
+public class FuzzyIndex {
+    // --- Constants ---
+    private static final Comparator<Book> BY_TITLE_THEN_ID = Book.BY_TITLE.thenComparingLong(Book::getId);
+
+    private final TreeMap<String, Term> terms = new TreeMap<>();
+    private final Map<Book, String> indexedText = new IdentityHashMap<>(); // Text each book was indexed with
+
+    /** A word in the dictionary and the books that contain it. */
+    private static class Term {
+        final String text;
+        final Set<Book> books = new HashSet<>();
+
+        Term(String text) {
+            this.text = text;
+        }
+    }
+
+    /** A matching book and how well it matched. */
+    private static class Match {
+        final Book book;
+        int distance; // Sum over query words of the closest term distance
+        int popularity; // Highest popularity among the matched terms
+        int wordsMatched;
+
+        Match(Book book) {
+            this.book = book;
+        }
+    }
+
+    public void add(Book b) {
+        String text = textOf(b);
+        indexedText.put(b, text);
+        for (String word : tokenize(text)) {
+            terms.computeIfAbsent(word, Term::new).books.add(b);
+        }
+    }
+
+    public void remove(Book b) {
+        String text = indexedText.remove(b);
+        if (text == null) {
+            return;
+        }
+        for (String word : tokenize(text)) {
+            Term term = terms.get(word);
+            if (term != null && term.books.remove(b) && term.books.isEmpty()) {
+                terms.remove(word);
+            }
+        }
+    }
+
+    /**
+     * Refiles a book if its title or author changed since it was added.
+     */
+    public void update(Book b) {
+        String old = indexedText.get(b);
+        if (old == null || !old.equals(textOf(b))) {
+            remove(b);
+            add(b);
+        }
+    }
+
+    public void clear() {
+        terms.clear();
+        indexedText.clear();
+    }
+
+    /**
+     * Finds books whose title or author contain words close to every word of
+     * the query. Words of up to 3 letters must match exactly, words of 4-7
+     * letters may have one typo, and longer words two.
+     *
+     * @param query The text to search for.
+     * @param limit The maximum number of books to return.
+     * @return Matching books, closest first, then most popular, then by title.
+     */
+    public List<Book> search(String query, int limit) {
+        return search(query, limit, b -> true);
+    }
+
+    /**
+     * Like search(query, limit), but only books accepted by the filter are
+     * ranked, so the limit counts filtered books.
+     */
+    public List<Book> search(String query, int limit, Predicate<Book> filter) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        if (words.size() == 1) {
+            return searchWord(words.get(0), limit, filter);
+        }
+        Map<Book, Match> matches = new IdentityHashMap<>();
+        for (String word : words) {
+            // The closest term of each book to this word, as a Match for this word alone
+            Map<Book, Match> forWord = new IdentityHashMap<>();
+            lookup(word, maxDistance(word), (term, distance) -> {
+                for (Book b : term.books) {
+                    Match m = forWord.get(b);
+                    if (m == null) {
+                        m = new Match(b);
+                        m.distance = Integer.MAX_VALUE;
+                        forWord.put(b, m);
+                    }
+                    // Rank by the closest term, and among equally close ones the most popular.
+                    if (distance < m.distance) {
+                        m.distance = distance;
+                        m.popularity = term.books.size();
+                    } else if (distance == m.distance) {
+                        m.popularity = Math.max(m.popularity, term.books.size());
+                    }
+                }
+            });
+            for (Match w : forWord.values()) {
+                Match m = matches.computeIfAbsent(w.book, Match::new);
+                m.distance += w.distance;
+                m.popularity = Math.max(m.popularity, w.popularity);
+                m.wordsMatched++;
+            }
+        }
+        TopK<Match> top = new TopK<>((x, y) -> {
+            int c = Integer.compare(x.distance, y.distance);
+            if (c == 0) {
+                c = Integer.compare(y.popularity, x.popularity);
+            }
+            return c != 0 ? c : BY_TITLE_THEN_ID.compare(x.book, y.book);
+        }, limit);
+        for (Match m : matches.values()) {
+            if (m.wordsMatched == words.size() && filter.test(m.book)) {
+                top.offer(m);
+            }
+        }
+        List<Book> result = new ArrayList<>();
+        for (Match m : top.toSortedList()) {
+            result.add(m.book);
+        }
+        return result;
+    }
+
+    /**
+     * Single-word search. Matching terms are ranked first and their books are
+     * taken tier by tier (same distance and popularity), so a popular term with
+     * many books does not need every book to be scored.
+     */
+    private List<Book> searchWord(String word, int limit, Predicate<Book> filter) {
+        List<Term> hits = new ArrayList<>();
+        List<Integer> distances = new ArrayList<>();
+        lookup(word, maxDistance(word), (term, distance) -> {
+            hits.add(term);
+            distances.add(distance);
+        });
+        Integer[] order = new Integer[hits.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> {
+            int c = Integer.compare(distances.get(x), distances.get(y));
+            return c != 0 ? c : Integer.compare(hits.get(y).books.size(), hits.get(x).books.size());
+        });
+
+        List<Book> result = new ArrayList<>();
+        Set<Book> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < order.length && result.size() < limit;) {
+            // Gather one tier of equally ranked terms
+            int tierDistance = distances.get(order[i]);
+            int tierPopularity = hits.get(order[i]).books.size();
+            int tierEnd = i;
+            while (tierEnd < order.length && distances.get(order[tierEnd]) == tierDistance
+                    && hits.get(order[tierEnd]).books.size() == tierPopularity) {
+                tierEnd++;
+            }
+            TopK<Book> tier = new TopK<>(BY_TITLE_THEN_ID, limit - result.size());
+            if (tierEnd - i == 1 && seen.isEmpty()) {
+                // Common case: one term, so no book can be offered twice.
+                for (Book b : hits.get(order[i]).books) {
+                    if (filter.test(b)) {
+                        tier.offer(b);
+                    }
+                }
+            } else {
+                Set<Book> inTier = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (int t = i; t < tierEnd; t++) {
+                    for (Book b : hits.get(order[t]).books) {
+                        if (!seen.contains(b) && inTier.add(b) && filter.test(b)) {
+                            tier.offer(b);
+                        }
+                    }
+                }
+            }
+            i = tierEnd;
+            for (Book b : tier.toSortedList()) {
+                result.add(b);
+                seen.add(b);
+            }
+        }
+        return result;
+    }
+
+    // Receives each live term found within the distance bound
+    private interface TermVisitor {
+        void visit(Term term, int distance);
+    }
+
+    /**
+     * Visits every term within maxDistance of word, in dictionary order.
+     */
+    private void lookup(String word, int maxDistance, TermVisitor visitor) {
+        int n = word.length();
+        // rows[i] is the Levenshtein row for the first i characters of the current term.
+        int[][] rows = new int[8][];
+        rows[0] = new int[n + 1];
+        for (int j = 0; j <= n; j++) {
+            rows[0][j] = j;
+        }
+        String prev = "";
+        String key = terms.isEmpty() ? null : terms.firstKey();
+        while (key != null) {
+            int depth = commonPrefix(prev, key);
+            boolean pruned = false;
+            for (int i = depth; i < key.length(); i++) {
+                if (i + 1 >= rows.length) {
+                    rows = Arrays.copyOf(rows, rows.length * 2);
+                }
+                int[] row = rows[i + 1] == null ? (rows[i + 1] = new int[n + 1]) : rows[i + 1];
+                int[] twoBack = i > 0 ? rows[i - 1] : null;
+                char before = i > 0 ? key.charAt(i - 1) : 0;
+                if (step(twoBack, rows[i], row, word, key.charAt(i), before) > maxDistance) {
+                    // No term starting with key[0..i] can match: skip past all of them.
+                    prev = key.substring(0, i + 1);
+                    key = nextAfterPrefix(prev);
+                    pruned = true;
+                    break;
+                }
+            }
+            if (pruned) {
+                continue;
+            }
+            int d = rows[key.length()][n];
+            if (d <= maxDistance) {
+                visitor.visit(terms.get(key), d);
+            }
+            prev = key;
+            key = terms.higherKey(key);
+        }
+    }
+
+    /**
+     * Computes the next edit distance row after appending c to the term.
+     * Swapping two adjacent letters counts as one edit (optimal string
+     * alignment distance), since that is the most common typo.
+     *
+     * @param twoBack The row before prev, or null at the first character.
+     * @param before  The character appended before c.
+     * @return The smallest value in the new row. Once it exceeds the allowed
+     *         distance, no longer term with this prefix can come back in range.
+     */
+    private static int step(int[] twoBack, int[] prev, int[] cur, String word, char c, char before) {
+        cur[0] = prev[0] + 1;
+        int rowMin = cur[0];
+        for (int j = 1; j < cur.length; j++) {
+            int cost = word.charAt(j - 1) == c ? 0 : 1;
+            int d = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+            if (twoBack != null && j > 1 && word.charAt(j - 2) == c && word.charAt(j - 1) == before) {
+                d = Math.min(d, twoBack[j - 2] + 1);
+            }
+            cur[j] = d;
+            rowMin = Math.min(rowMin, d);
+        }
+        return rowMin;
+    }
+
+    /**
+     * @return The first term that does not start with prefix and sorts after
+     *         it, or null.
+     */
+    private String nextAfterPrefix(String prefix) {
+        char last = prefix.charAt(prefix.length() - 1);
+        if (last == Character.MAX_VALUE) {
+            return terms.higherKey(prefix + Character.MAX_VALUE);
+        }
+        return terms.ceilingKey(prefix.substring(0, prefix.length() - 1) + (char) (last + 1));
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int n = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < n && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int maxDistance(String word) {
+        if (word.length() <= 3) {
+            return 0;
+        }
+        return word.length() <= 7 ? 1 : 2;
+    }
+
+    private static String textOf(Book b) {
+        return b.getName() + "\n" + b.getAuthor();
+    }
+
+    /**
+     * Splits text into lower-case words with accents removed, so accented
+     * and plain spellings of a name are the same term.
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "")
+                .toLowerCase(Locale.ROOT);
+        for (String w : normalized.split("[^\\p{L}\\p{N}]+")) {
+            if (!w.isEmpty()) {
+                words.add(w);
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,667 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes full snapshots of the library in a directory.
+ *
+ * Every snapshot is written to a temporary file, forced to disk and then
+ * atomically renamed to library-NNNN.snap, so a crash can never leave a
+ * half-written snapshot under a real name. Each file ends with a CRC32 of its
+ * contents; loading falls back to an older snapshot if the newest one fails
+ * the check. Only the newest KEEP_SNAPSHOTS files are kept.
+ *
+ * A snapshot starts with the name of the library's review store
+ * (reviews-NNNN.dat, see reviews()) and the sync state, then holds each book's
+ * fields, the handle of its review in that store, its tags and its sync
+ * versions. The trailer before the checksum holds the stored size of the
+ * reviews the books refer to. There is a single format version; a snapshot
+ * in any other is rejected.
+ *
+ * Every write also refreshes a small head-of-list cache (head.cache): the
+ * first HEAD_SIZE books in list order, without reviews, which the UI shows
+ * while the full snapshot is still loading.
+ */
+public class LibrarySnapshots {
+    // --- Constants ---
+    private static final int MAGIC = 0x424b5452; // "BKTR"
+    private static final int VERSION = 1;
+    private static final int KEEP_SNAPSHOTS = 3;
+    private static final String PREFIX = "library-";
+    private static final String SUFFIX = ".snap";
+    private static final String TEMP_NAME = "library.snap.tmp";
+    private static final int HEAD_MAGIC = 0x424b4844; // "BKHD"
+    static final int HEAD_SIZE = 100; // Comfortably more than one screenful
+    private static final String HEAD_NAME = "head.cache";
+    private static final String HEAD_TEMP_NAME = "head.cache.tmp";
+    private static final String REVIEWS_PREFIX = "reviews-";
+    private static final String REVIEWS_SUFFIX = ".dat";
+    private static final long COMPACT_MIN_BYTES = 1 << 20; // Smaller review stores are never compacted
+
+    // The part of a snapshot before its books
+    private record Header(String reviewFile, SyncState sync) {
+    }
+
+    private final Path directory;
+    private long generation; // Number of the newest snapshot written or found
+    private ReviewStore reviews; // Opened by reviews()
+    private Path verified; // The newest snapshot known to pass verify
+
+    /**
+     * @param directory The directory holding the snapshots. It is created on
+     *                  the first write if it does not exist.
+     */
+    public LibrarySnapshots(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The directory given by the booktrackr.dir system property, or
+     *         ~/.booktrackr by default.
+     */
+    public static Path defaultDirectory() {
+        String dir = System.getProperty("booktrackr.dir");
+        return dir != null ? Path.of(dir) : Path.of(System.getProperty("user.home"), ".booktrackr");
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes a new snapshot and removes the ones it supersedes.
+     *
+     * @param snapshot The books and sync state to save.
+     * @return The path of the new snapshot.
+     * @throws IOException If the snapshot could not be written. Older snapshots
+     *                     are left untouched in that case.
+     */
+    public synchronized Path write(BookMenu.Snapshot snapshot) throws IOException {
+        ReviewStore store = reviews();
+        // Handles only mean something in the store they came from, so reviews
+        // kept anywhere else are copied in first.
+        boolean foreign = ReviewStore.getDefault() != store;
+        Path target;
+        try (SnapshotWriter writer = new SnapshotWriter(snapshot.sync(), store)) {
+            snapshot.books().forEach(r -> {
+                try {
+                    writer.add(foreign ? withReview(r, store.append(r.review())) : r);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            target = writer.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writeHead(snapshot.head());
+        return target;
+    }
+
+    /**
+     * Writes one snapshot file. Records are added one at a time, so a snapshot
+     * can be rewritten while another is streamed in. Closing a writer that was
+     * not finished discards the file.
+     */
+    private final class SnapshotWriter implements Closeable {
+        private final ReviewStore store;
+        private final Path temp = directory.resolve(TEMP_NAME);
+        private final FileChannel channel;
+        private final OutputStream raw;
+        private final CheckedOutputStream checked;
+        private final DataOutputStream out;
+        private long reviewBytes; // Stored size of the reviews the records refer to
+        private boolean finished;
+
+        SnapshotWriter(SyncState sync, ReviewStore store) throws IOException {
+            this.store = store;
+            Files.createDirectories(directory);
+            channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            raw = Channels.newOutputStream(channel);
+            checked = new CheckedOutputStream(new BufferedOutputStream(raw, 1 << 16), new CRC32());
+            out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, store.getFile().getFileName().toString());
+            writeSyncState(out, sync);
+        }
+
+        // r's review handle must be in the writer's store
+        void add(BookRecord r) throws IOException {
+            out.writeBoolean(true);
+            out.writeLong(r.id());
+            writeString(out, r.name());
+            writeString(out, r.author());
+            out.writeInt(r.year());
+            writeString(out, r.genre());
+            writeString(out, r.readingStatus());
+            out.writeInt(r.rating());
+            out.writeLong(r.reviewHandle());
+            reviewBytes += store.entryLength(r.reviewHandle());
+            out.writeInt(r.tags().length);
+            for (String tag : r.tags()) {
+                writeString(out, tag);
+            }
+            out.writeLong(r.baseStamp());
+            out.writeLong(r.baseSeq());
+            out.writeBoolean(r.versions() != null);
+            if (r.versions() != null) {
+                for (long v : r.versions()) {
+                    out.writeLong(v);
+                }
+            }
+        }
+
+        /**
+         * Completes the snapshot, forces it and the reviews it refers to to
+         * disk, and renames it to the next generation.
+         */
+        Path finish() throws IOException {
+            List<Path> existing = list();
+            if (!existing.isEmpty()) {
+                generation = Math.max(generation, generationOf(existing.get(0)));
+            }
+            Path target = directory.resolve(String.format("%s%010d%s", PREFIX, generation + 1, SUFFIX));
+            out.writeBoolean(false);
+            out.writeLong(reviewBytes);
+            out.flush();
+            // The checksum itself is written past the checked stream.
+            new DataOutputStream(raw).writeLong(checked.getChecksum().getValue());
+            store.force();
+            channel.force(true);
+            channel.close();
+            finished = true;
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            forceDirectory();
+            generation++;
+            verified = target;
+            compact();
+            return target;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Opens the review store of the library, which snapshots refer to by
+     * handle; it should be made the default store (ReviewStore.setDefault)
+     * before any book is created. The store is the one the newest valid
+     * snapshot names. If most of the store is no longer referenced, the
+     * reviews in use are copied into a fresh one and the snapshot is
+     * rewritten to point at it. This happens before any book holds a handle,
+     * so no handle has to change.
+     *
+     * @throws IOException If the store cannot be opened.
+     */
+    public synchronized ReviewStore reviews() throws IOException {
+        if (reviews != null) {
+            return reviews;
+        }
+        Files.createDirectories(directory);
+        Path newest = null;
+        for (Path file : list()) {
+            if (verify(file)) {
+                newest = verified = file;
+                break;
+            }
+        }
+        Header header = newest != null ? readHeader(newest) : null;
+        if (header != null) {
+            reviews = new ReviewStore(directory.resolve(header.reviewFile()));
+        } else {
+            List<Path> stores = listReviewFiles();
+            reviews = new ReviewStore(stores.isEmpty() ? nextReviewFile() : stores.get(0));
+        }
+        try {
+            if (header != null && reviews.size() > COMPACT_MIN_BYTES && reviews.size() > 2 * reviewBytes(newest)) {
+                ReviewStore compacted = new ReviewStore(nextReviewFile());
+                try {
+                    rewrite(newest, header, compacted);
+                } catch (IOException | UncheckedIOException e) {
+                    compacted.close(); // Its file goes with the next compact()
+                    throw e;
+                }
+                reviews.close();
+                reviews = compacted;
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // The snapshot is still readable as it is.
+            System.err.println("Could not rewrite " + newest + " with its reviews compacted: " + e);
+        }
+        return reviews;
+    }
+
+    // Writes the snapshot again as the newest one, copying its reviews into store
+    private void rewrite(Path file, Header header, ReviewStore store) throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(header.sync(), store)) {
+            read(file, r -> {
+                try {
+                    writer.add(r);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, store);
+            writer.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static BookRecord withReview(BookRecord r, long reviewHandle) {
+        return new BookRecord(r.id(), r.name(), r.author(), r.year(), r.genre(), r.readingStatus(), r.rating(),
+                reviewHandle, r.tags(), r.baseStamp(), r.baseSeq(), r.versions());
+    }
+
+    /**
+     * Rewrites the head-of-list cache. It is only a cache, so it is not
+     * forced to disk and a failure is not reported beyond a warning.
+     */
+    private void writeHead(List<BookRecord> books) {
+        Path temp = directory.resolve(HEAD_TEMP_NAME);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)), new CRC32());
+            try (DataOutputStream out = new DataOutputStream(checked)) {
+                int count = Math.min(HEAD_SIZE, books.size());
+                out.writeInt(HEAD_MAGIC);
+                out.writeInt(count);
+                for (BookRecord r : books.subList(0, count)) {
+                    out.writeLong(r.id());
+                    writeString(out, r.name());
+                    writeString(out, r.author());
+                    out.writeInt(r.year());
+                    writeString(out, r.genre());
+                    writeString(out, r.readingStatus());
+                    out.writeInt(r.rating());
+                }
+                out.writeLong(checked.getChecksum().getValue());
+            }
+            Files.move(temp, directory.resolve(HEAD_NAME), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not write the head-of-list cache: " + e);
+        }
+    }
+
+    /**
+     * Reads the head-of-list cache written with the newest snapshot. The
+     * records have no reviews and no sync versions, so they are for display
+     * only.
+     *
+     * @return The cached books in list order, or an empty list if there is no
+     *         valid cache.
+     */
+    public List<BookRecord> readHead() {
+        List<BookRecord> head = new ArrayList<>();
+        try {
+            // The cache is small, so it is checked as a whole before parsing.
+            byte[] bytes = Files.readAllBytes(directory.resolve(HEAD_NAME));
+            if (bytes.length < 16) {
+                return head;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - Long.BYTES);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            in.skipNBytes(bytes.length - Long.BYTES);
+            if (in.readLong() != crc.getValue()) {
+                return head;
+            }
+            in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - Long.BYTES));
+            if (in.readInt() != HEAD_MAGIC) {
+                return head;
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                head.add(new BookRecord(in.readLong(), readString(in), readString(in), in.readInt(),
+                        readString(in), readString(in), in.readInt(), ReviewStore.NO_REVIEW, null, 0, 0, null));
+            }
+            return head;
+        } catch (IOException e) {
+            return new ArrayList<>(); // Missing or damaged; the full load will fill the list
+        }
+    }
+
+    /**
+     * Streams the records of the newest valid snapshot to a consumer.
+     *
+     * @param sink        Receives each record in the order it was saved.
+     * @param loadReviews Whether records come with their reviews, as handles
+     *                    into the default ReviewStore. When that is the
+     *                    library's store (see reviews()) nothing is copied.
+     *                    When false, records come back without a review.
+     * @return The sync state saved with the snapshot, or null if there is no
+     *         valid snapshot.
+     * @throws IOException If the directory cannot be read.
+     */
+    public SyncState loadLatest(Consumer<BookRecord> sink, boolean loadReviews) throws IOException {
+        for (Path file : list()) {
+            if (file.equals(verified) || verify(file)) {
+                return read(file, sink, loadReviews);
+            }
+            System.err.println("Skipping corrupt snapshot " + file);
+        }
+        return null;
+    }
+
+    /**
+     * Lists the snapshots in the directory, newest first.
+     */
+    public List<Path> list() throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path p : stream) {
+                files.add(p);
+            }
+        }
+        // Zero-padded generation numbers sort lexicographically.
+        files.sort(Collections.reverseOrder());
+        return files;
+    }
+
+    /**
+     * Checks that a snapshot is complete and matches its checksum, without
+     * keeping any of it in memory.
+     */
+    public static boolean verify(Path file) {
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            long length = Files.size(file);
+            if (length < 16) {
+                return false;
+            }
+            CheckedInputStream checked = new CheckedInputStream(raw, new CRC32());
+            byte[] buf = new byte[1 << 16];
+            long remaining = length - Long.BYTES;
+            while (remaining > 0) {
+                int n = checked.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    return false;
+                }
+                remaining -= n;
+            }
+            long expected = new DataInputStream(raw).readLong();
+            return expected == checked.getChecksum().getValue();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Streams the records of a snapshot to a consumer. Memory use does not
+     * depend on the size of the snapshot.
+     *
+     * @param loadReviews See loadLatest.
+     * @return The sync state saved with the snapshot.
+     * @throws IOException If the file is not a snapshot or is truncated, or
+     *                     its review store is missing.
+     */
+    public SyncState read(Path file, Consumer<BookRecord> sink, boolean loadReviews) throws IOException {
+        return read(file, sink, loadReviews ? ReviewStore.getDefault() : null);
+    }
+
+    // Reads a snapshot with its reviews as handles into target, or without them if target is null
+    private SyncState read(Path file, Consumer<BookRecord> sink, ReviewStore target) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            Header header = readHeader(in, file);
+            ReviewStore source = target != null ? openReviews(header.reviewFile()) : null;
+            try {
+                while (in.readBoolean()) {
+                    long id = in.readLong();
+                    String name = readString(in);
+                    String author = readString(in);
+                    int year = in.readInt();
+                    String genre = readString(in);
+                    String status = readString(in);
+                    int rating = in.readInt();
+                    long handle = in.readLong();
+                    long reviewHandle;
+                    if (target == null) {
+                        reviewHandle = ReviewStore.NO_REVIEW;
+                    } else {
+                        reviewHandle = source == target ? handle : target.transferFrom(source, handle);
+                    }
+                    String[] tags = new String[in.readInt()];
+                    for (int i = 0; i < tags.length; i++) {
+                        tags[i] = readString(in);
+                    }
+                    long baseStamp = in.readLong();
+                    long baseSeq = in.readLong();
+                    long[] versions = null;
+                    if (in.readBoolean()) {
+                        versions = new long[2 * Book.FIELD_COUNT];
+                        for (int i = 0; i < versions.length; i++) {
+                            versions[i] = in.readLong();
+                        }
+                    }
+                    sink.accept(new BookRecord(id, name, author, year, genre, status, rating, reviewHandle, tags,
+                            baseStamp, baseSeq, versions));
+                }
+                return header.sync();
+            } finally {
+                if (source != null && source != reviews) {
+                    source.close();
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated snapshot: " + file, e);
+        }
+    }
+
+    private static Header readHeader(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            return readHeader(in, file);
+        } catch (EOFException e) {
+            throw new IOException("Truncated snapshot: " + file, e);
+        }
+    }
+
+    private static Header readHeader(DataInputStream in, Path file) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a BookTrackr snapshot: " + file);
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version + ": " + file);
+        }
+        String reviewFile = readString(in);
+        return new Header(reviewFile, readSyncState(in));
+    }
+
+    // The stored size of the reviews a snapshot refers to, kept just before its checksum
+    private static long reviewBytes(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(Long.BYTES);
+            long pos = channel.size() - 2 * Long.BYTES;
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, pos + buf.position());
+                if (n < 0) {
+                    throw new EOFException("Truncated snapshot: " + file);
+                }
+            }
+            return buf.getLong(0);
+        }
+    }
+
+    // The library's store if it has the given name, otherwise that store opened on its own
+    private ReviewStore openReviews(String name) throws IOException {
+        if (reviews != null && reviews.getFile().getFileName().toString().equals(name)) {
+            return reviews;
+        }
+        Path file = directory.resolve(name);
+        if (!Files.exists(file)) {
+            throw new IOException("Missing review store: " + file);
+        }
+        return new ReviewStore(file);
+    }
+
+    /**
+     * Deletes all but the newest KEEP_SNAPSHOTS snapshots, and every review
+     * store that neither they nor this instance use.
+     */
+    private void compact() throws IOException {
+        List<Path> files = list();
+        Set<String> inUse = new HashSet<>();
+        if (reviews != null) {
+            inUse.add(reviews.getFile().getFileName().toString());
+        }
+        for (int i = 0; i < files.size(); i++) {
+            if (i >= KEEP_SNAPSHOTS) {
+                Files.deleteIfExists(files.get(i));
+                continue;
+            }
+            try {
+                inUse.add(readHeader(files.get(i)).reviewFile());
+            } catch (IOException e) {
+                // A damaged snapshot is never loaded, so it needs no store.
+            }
+        }
+        for (Path store : listReviewFiles()) {
+            if (!inUse.contains(store.getFileName().toString())) {
+                Files.deleteIfExists(store);
+            }
+        }
+    }
+
+    /**
+     * Lists the review stores in the directory, newest first.
+     */
+    private List<Path> listReviewFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                REVIEWS_PREFIX + "*" + REVIEWS_SUFFIX)) {
+            for (Path p : stream) {
+                files.add(p);
+            }
+        }
+        files.sort(Collections.reverseOrder());
+        return files;
+    }
+
+    // A review store name numbered past every existing one
+    private Path nextReviewFile() throws IOException {
+        List<Path> stores = listReviewFiles();
+        long number = 0;
+        if (!stores.isEmpty()) {
+            String name = stores.get(0).getFileName().toString();
+            try {
+                number = Long.parseLong(name.substring(REVIEWS_PREFIX.length(),
+                        name.length() - REVIEWS_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // Not one of ours; start over the numbering
+            }
+        }
+        return directory.resolve(String.format("%s%010d%s", REVIEWS_PREFIX, number + 1, REVIEWS_SUFFIX));
+    }
+
+    /**
+     * Forces the rename to disk. Not every platform can open a directory for
+     * this, in which case the rename is left to the file system.
+     */
+    private void forceDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Best effort only
+        }
+    }
+
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writeSyncState(DataOutputStream out, SyncState state) throws IOException {
+        out.writeLong(state.instanceId());
+        out.writeShort(state.node());
+        out.writeLong(state.clock());
+        out.writeInt(state.watermarks().size());
+        for (Map.Entry<Long, Long> e : state.watermarks().entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        out.writeInt(state.tombstones().size());
+        for (Map.Entry<Long, SyncState.Tombstone> e : state.tombstones().entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue().stamp());
+            out.writeLong(e.getValue().seq());
+        }
+    }
+
+    private static SyncState readSyncState(DataInputStream in) throws IOException {
+        long instanceId = in.readLong();
+        int node = in.readUnsignedShort();
+        long clock = in.readLong();
+        Map<Long, Long> watermarks = new HashMap<>();
+        for (int n = in.readInt(); n > 0; n--) {
+            watermarks.put(in.readLong(), in.readLong());
+        }
+        Map<Long, SyncState.Tombstone> tombstones = new HashMap<>();
+        for (int n = in.readInt(); n > 0; n--) {
+            tombstones.put(in.readLong(), new SyncState.Tombstone(in.readLong(), in.readLong()));
+        }
+        return new SyncState(instanceId, node, clock, watermarks, tombstones);
+    }
+
+    // Strings are written as a length followed by UTF-8 bytes; -1 means null.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
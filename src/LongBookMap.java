@@ -0,0 +1,188 @@
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An open-addressing hash map from primitive long ids to books.
+ *
+ * Keys and values live in two parallel arrays with linear probing, so there
+ * are no boxed keys or entry objects and lookups do not allocate. The key 0 is
+ * reserved to mark empty slots; BookId never produces it.
+ */
+public class LongBookMap {
+    // --- Constants ---
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private Book[] values;
+    private int size;
+    private int mask; // capacity - 1, capacity is always a power of two
+    private int resizeAt; // size at which the arrays are doubled
+
+    public LongBookMap() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Book[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Spreads the bits of an id so time-ordered ids do not cluster.
+     */
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The book with the given id, or null if there is none.
+     */
+    public Book get(long key) {
+        if (key == 0) {
+            return null;
+        }
+        for (int i = slot(key);; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Associates a book with an id, replacing any previous book.
+     *
+     * @return The previous book for the id, or null.
+     */
+    public Book put(long key, Book value) {
+        if (key == 0) {
+            throw new IllegalArgumentException("0 is not a valid book id");
+        }
+        for (int i = slot(key);; i = (i + 1) & mask) {
+            long k = keys[i];
+            if (k == key) {
+                Book old = values[i];
+                values[i] = value;
+                return old;
+            }
+            if (k == 0) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size > resizeAt) {
+                    rehash(keys.length * 2);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Removes the book with the given id. Following entries of the probe chain
+     * are shifted back, so no tombstones are left behind.
+     *
+     * @return The removed book, or null if there was none.
+     */
+    public Book remove(long key) {
+        if (key == 0) {
+            return null;
+        }
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == 0) {
+                return null;
+            }
+            i = (i + 1) & mask;
+        }
+        Book old = values[i];
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            // Move the entry into the gap unless its home slot lies cyclically in (gap, j]
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+        size--;
+        return old;
+    }
+
+    public void clear() {
+        allocate(DEFAULT_CAPACITY);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Book[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = slot(oldKeys[i]);
+                while (keys[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * @return A read-only view of the books in the map, in no particular order.
+     */
+    public Collection<Book> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Book> iterator() {
+                return new Iterator<>() {
+                    private final Book[] snapshot = values;
+                    private int next = advance(0);
+
+                    private int advance(int from) {
+                        while (from < snapshot.length && snapshot[from] == null) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < snapshot.length;
+                    }
+
+                    @Override
+                    public Book next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Book b = snapshot[next];
+                        next = advance(next + 1);
+                        return b;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
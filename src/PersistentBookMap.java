@@ -0,0 +1,573 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * An immutable map from book id to BookRecord whose versions share structure.
+ *
+ * The map is a hash array mapped trie: each node has up to 32 children, picked
+ * by 5 bits of the mixed book id, and stores only the children that exist,
+ * with a bitmap saying which. put and remove copy just the nodes on the path
+ * to the changed entry (about four for a million books) and share the rest,
+ * so keeping many versions costs memory in proportion to what changed
+ * between them. Removing collapses nodes left with a single record, so the
+ * shape of the trie depends only on its ids; that lets diff skip every
+ * subtree two versions share.
+ */
+public final class PersistentBookMap {
+    // --- Constants ---
+    private static final int BITS = 5; // Bits of the hash used per level
+    private static final int MASK = (1 << BITS) - 1;
+
+    public static final PersistentBookMap EMPTY = new PersistentBookMap(new Node(0, new Object[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    /**
+     * A trie node. Bit i of bitmap is set when child i exists; the children
+     * are stored in order in slots, each either a Node or a BookRecord.
+     */
+    private static final class Node {
+        final int bitmap;
+        final Object[] slots;
+
+        Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        // The slot of child bit, or -1 if the child does not exist
+        int position(int bit) {
+            return (bitmap & bit) == 0 ? -1 : Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object child(int bit) {
+            int pos = position(bit);
+            return pos < 0 ? null : slots[pos];
+        }
+
+        Node with(int pos, Object child) {
+            Object[] copy = slots.clone();
+            copy[pos] = child;
+            return new Node(bitmap, copy);
+        }
+
+        Node inserting(int bit, Object child) {
+            int pos = Integer.bitCount(bitmap & (bit - 1));
+            Object[] copy = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, copy, 0, pos);
+            copy[pos] = child;
+            System.arraycopy(slots, pos, copy, pos + 1, slots.length - pos);
+            return new Node(bitmap | bit, copy);
+        }
+
+        Node removing(int bit, int pos) {
+            Object[] copy = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, copy, 0, pos);
+            System.arraycopy(slots, pos + 1, copy, pos, copy.length - pos);
+            return new Node(bitmap & ~bit, copy);
+        }
+    }
+
+    private PersistentBookMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Builds a map holding the given records in one pass, without the
+     * intermediate versions a series of puts would create.
+     *
+     * @param records Records with distinct ids.
+     */
+    public static PersistentBookMap of(Collection<BookRecord> records) {
+        if (records.isEmpty()) {
+            return EMPTY;
+        }
+        BookRecord[] array = records.toArray(new BookRecord[0]);
+        long[] hashes = new long[array.length];
+        for (int i = 0; i < array.length; i++) {
+            hashes[i] = hash(array[i].id());
+        }
+        return new PersistentBookMap(build(array, hashes, 0), array.length);
+    }
+
+    // Splits the records by the 5 hash bits at shift and builds each part one level down
+    private static Node build(BookRecord[] records, long[] hashes, int shift) {
+        int[] counts = new int[1 << BITS];
+        for (long h : hashes) {
+            counts[index(h, shift)]++;
+        }
+        int bitmap = 0;
+        int[] starts = new int[counts.length];
+        for (int i = 0, start = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                bitmap |= 1 << i;
+            }
+            starts[i] = start;
+            start += counts[i];
+        }
+        BookRecord[] sortedRecords = new BookRecord[records.length];
+        long[] sortedHashes = new long[hashes.length];
+        int[] next = starts.clone();
+        for (int i = 0; i < records.length; i++) {
+            int n = next[index(hashes[i], shift)]++;
+            sortedRecords[n] = records[i];
+            sortedHashes[n] = hashes[i];
+        }
+        Object[] slots = new Object[Integer.bitCount(bitmap)];
+        for (int i = 0, pos = 0; i < counts.length; i++) {
+            if (counts[i] == 1) {
+                slots[pos++] = sortedRecords[starts[i]];
+            } else if (counts[i] > 1) {
+                int from = starts[i], to = from + counts[i];
+                slots[pos++] = build(Arrays.copyOfRange(sortedRecords, from, to),
+                        Arrays.copyOfRange(sortedHashes, from, to), shift + BITS);
+            }
+        }
+        return new Node(bitmap, slots);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The record with the given id, or null if there is none.
+     */
+    public BookRecord get(long id) {
+        long h = hash(id);
+        Node node = root;
+        for (int shift = 0;; shift += BITS) {
+            Object child = node.child(1 << index(h, shift));
+            if (child instanceof Node n) {
+                node = n;
+            } else {
+                BookRecord r = (BookRecord) child;
+                return r != null && r.id() == id ? r : null;
+            }
+        }
+    }
+
+    /**
+     * @return A map with the record added, or replacing the record with the
+     *         same id. This map is unchanged.
+     */
+    public PersistentBookMap put(BookRecord record) {
+        boolean[] added = new boolean[1];
+        Node newRoot = put(root, record, hash(record.id()), 0, added);
+        return newRoot == root ? this : new PersistentBookMap(newRoot, added[0] ? size + 1 : size);
+    }
+
+    private static Node put(Node node, BookRecord record, long h, int shift, boolean[] added) {
+        int bit = 1 << index(h, shift);
+        int pos = node.position(bit);
+        if (pos < 0) {
+            added[0] = true;
+            return node.inserting(bit, record);
+        }
+        Object slot = node.slots[pos];
+        if (slot instanceof Node child) {
+            Node newChild = put(child, record, h, shift + BITS, added);
+            return newChild == child ? node : node.with(pos, newChild);
+        }
+        BookRecord existing = (BookRecord) slot;
+        if (existing.id() == record.id()) {
+            return existing == record ? node : node.with(pos, record);
+        }
+        added[0] = true;
+        return node.with(pos, pair(existing, hash(existing.id()), record, h, shift + BITS));
+    }
+
+    // A node holding two records whose hashes agree up to shift
+    private static Node pair(BookRecord a, long ha, BookRecord b, long hb, int shift) {
+        int ia = index(ha, shift), ib = index(hb, shift);
+        if (ia == ib) {
+            return new Node(1 << ia, new Object[] { pair(a, ha, b, hb, shift + BITS) });
+        }
+        return new Node((1 << ia) | (1 << ib), ia < ib ? new Object[] { a, b } : new Object[] { b, a });
+    }
+
+    /**
+     * @return A map without the record with the given id. This map is
+     *         unchanged.
+     */
+    public PersistentBookMap remove(long id) {
+        Object newRoot = remove(root, id, hash(id), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? EMPTY : new PersistentBookMap((Node) newRoot, size - 1);
+    }
+
+    /**
+     * @return The node unchanged if the id is not in it, otherwise its
+     *         replacement: a smaller node, its one remaining record (below the
+     *         root), or null if it is left empty.
+     */
+    private static Object remove(Node node, long id, long h, int shift) {
+        int bit = 1 << index(h, shift);
+        int pos = node.position(bit);
+        if (pos < 0) {
+            return node;
+        }
+        Object slot = node.slots[pos];
+        Object replacement;
+        if (slot instanceof Node child) {
+            replacement = remove(child, id, h, shift + BITS);
+            if (replacement == child) {
+                return node;
+            }
+        } else if (((BookRecord) slot).id() == id) {
+            replacement = null;
+        } else {
+            return node;
+        }
+        if (replacement == null) {
+            if (node.slots.length == 1) {
+                return null;
+            }
+            Node smaller = node.removing(bit, pos);
+            return shift > 0 && smaller.slots.length == 1 && smaller.slots[0] instanceof BookRecord
+                    ? smaller.slots[0]
+                    : smaller;
+        }
+        if (shift > 0 && node.slots.length == 1 && replacement instanceof BookRecord) {
+            return replacement;
+        }
+        return node.with(pos, replacement);
+    }
+
+    /**
+     * Reports every id whose record differs between two maps, skipping the
+     * subtrees they share, so comparing versions a few edits apart takes time
+     * in proportion to those edits.
+     *
+     * @param changed Called with the record in from and the record in to;
+     *                either is null if the id is only in the other map.
+     */
+    public static void diff(PersistentBookMap from, PersistentBookMap to, BiConsumer<BookRecord, BookRecord> changed) {
+        diff(from.root, to.root, changed);
+    }
+
+    private static void diff(Object a, Object b, BiConsumer<BookRecord, BookRecord> changed) {
+        if (a == b) {
+            return;
+        }
+        if (a instanceof Node na && b instanceof Node nb) {
+            int bits = na.bitmap | nb.bitmap;
+            while (bits != 0) {
+                int bit = Integer.lowestOneBit(bits);
+                diff(na.child(bit), nb.child(bit), changed);
+                bits &= ~bit;
+            }
+            return;
+        }
+        if (a instanceof Node || b instanceof Node) {
+            // A record (or nothing) on one side, a subtree on the other
+            boolean nodeFirst = a instanceof Node;
+            BookRecord single = (BookRecord) (nodeFirst ? b : a);
+            boolean[] matched = new boolean[1];
+            forEachRecord(nodeFirst ? a : b, r -> {
+                if (single != null && r.id() == single.id()) {
+                    matched[0] = true;
+                    if (r != single) {
+                        report(nodeFirst, r, single, changed);
+                    }
+                } else {
+                    report(nodeFirst, r, null, changed);
+                }
+            });
+            if (single != null && !matched[0]) {
+                report(!nodeFirst, single, null, changed);
+            }
+            return;
+        }
+        BookRecord ra = (BookRecord) a, rb = (BookRecord) b;
+        if (ra != null && rb != null && ra.id() == rb.id()) {
+            changed.accept(ra, rb);
+            return;
+        }
+        if (ra != null) {
+            changed.accept(ra, null);
+        }
+        if (rb != null) {
+            changed.accept(null, rb);
+        }
+    }
+
+    // Reports a pair given as (this side, other side) in from/to order
+    private static void report(boolean fromSide, BookRecord mine, BookRecord other,
+            BiConsumer<BookRecord, BookRecord> changed) {
+        if (fromSide) {
+            changed.accept(mine, other);
+        } else {
+            changed.accept(other, mine);
+        }
+    }
+
+    /**
+     * Calls action with every record, in no particular order.
+     */
+    public void forEach(Consumer<BookRecord> action) {
+        forEachRecord(root, action);
+    }
+
+    private static void forEachRecord(Object slot, Consumer<BookRecord> action) {
+        if (slot instanceof Node node) {
+            for (Object child : node.slots) {
+                forEachRecord(child, action);
+            }
+        } else if (slot != null) {
+            action.accept((BookRecord) slot);
+        }
+    }
+
+    /**
+     * @return The number of trie nodes, which depends only on the ids held
+     *         (see remove). For tests.
+     */
+    int nodeCount() {
+        return countNodes(root);
+    }
+
+    private static int countNodes(Object slot) {
+        if (!(slot instanceof Node node)) {
+            return 0;
+        }
+        int count = 1;
+        for (Object child : node.slots) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    /**
+     * @return Every record, in no particular order.
+     */
+    public List<BookRecord> records() {
+        List<BookRecord> result = new ArrayList<>(size);
+        forEach(result::add);
+        return result;
+    }
+
+    // --- Rewriting many maps ---
+
+    /**
+     * Applies the same edits to many maps that share structure, such as the
+     * versions in an UndoHistory. Each edit maps the record a map has for an
+     * id (null if it has none) to the record it should have (null to remove
+     * it). A subtree shared by several maps is rewritten once and its result
+     * shared in turn, and an edit gives the same record for the same input, so
+     * rewriting every version costs about as much as the edits plus the nodes
+     * on their paths in which the versions differ, and diff between rewritten
+     * versions still skips what they share.
+     */
+    public static final class Rewriter {
+        private final Edits edits;
+        private final Map<Node, Rewritten> nodes = new IdentityHashMap<>();
+        private final Map<BookRecord, BookRecord> records = new IdentityHashMap<>(); // May map to null
+
+        /**
+         * @param edits The edit for each id. Ids without one are left alone.
+         */
+        public Rewriter(Map<Long, UnaryOperator<BookRecord>> edits) {
+            List<Edit> list = new ArrayList<>(edits.size());
+            for (Map.Entry<Long, UnaryOperator<BookRecord>> e : edits.entrySet()) {
+                list.add(new Edit(e.getKey(), e.getValue()));
+            }
+            this.edits = new Edits(list.toArray(new Edit[0]), 0);
+        }
+
+        /**
+         * @return The map with the edits applied. The map is unchanged.
+         */
+        public PersistentBookMap apply(PersistentBookMap map) {
+            if (edits.edits.length == 0) {
+                return map;
+            }
+            Rewritten r = rewrite(map.root, edits);
+            if (r.slot == map.root) {
+                return map;
+            }
+            int size = map.size + r.sizeChange;
+            return size == 0 ? EMPTY : new PersistentBookMap((Node) r.slot, size);
+        }
+
+        /**
+         * Rewrites one slot of the trie with the edits whose ids hash to its
+         * position: a node (the root is always one), or a record or empty
+         * slot below the root. Nodes left with one record collapse into it,
+         * as in remove.
+         */
+        private Rewritten rewrite(Object slot, Edits here) {
+            if (slot instanceof Node node) {
+                Rewritten done = nodes.get(node);
+                if (done == null) {
+                    done = rewriteNode(node, here);
+                    nodes.put(node, done);
+                }
+                return done;
+            }
+            BookRecord existing = (BookRecord) slot;
+            List<BookRecord> result = new ArrayList<>();
+            boolean existingEdited = false;
+            for (Edit edit : here.edits) {
+                BookRecord r;
+                if (existing != null && existing.id() == edit.id) {
+                    existingEdited = true;
+                    r = edited(existing, edit);
+                } else {
+                    r = edit.added();
+                }
+                if (r != null) {
+                    result.add(r);
+                }
+            }
+            if (existing != null && !existingEdited) {
+                result.add(existing);
+            }
+            int sizeChange = result.size() - (existing != null ? 1 : 0);
+            if (result.size() <= 1) {
+                return new Rewritten(result.isEmpty() ? null : result.get(0), sizeChange);
+            }
+            BookRecord[] array = result.toArray(new BookRecord[0]);
+            long[] hashes = new long[array.length];
+            for (int i = 0; i < array.length; i++) {
+                hashes[i] = hash(array[i].id());
+            }
+            return new Rewritten(build(array, hashes, here.shift), sizeChange);
+        }
+
+        private Rewritten rewriteNode(Node node, Edits here) {
+            Object[] children = new Object[1 << BITS];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = node.child(1 << i);
+            }
+            boolean changed = false;
+            int sizeChange = 0;
+            for (int i = 0; i < children.length; i++) {
+                Edits below = here.child(i);
+                if (below != null) {
+                    Rewritten r = rewrite(children[i], below);
+                    changed |= r.slot != children[i];
+                    children[i] = r.slot;
+                    sizeChange += r.sizeChange;
+                }
+            }
+            if (!changed) {
+                return new Rewritten(node, 0);
+            }
+            int bitmap = 0;
+            List<Object> slots = new ArrayList<>();
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != null) {
+                    bitmap |= 1 << i;
+                    slots.add(children[i]);
+                }
+            }
+            if (here.shift > 0 && slots.isEmpty()) {
+                return new Rewritten(null, sizeChange);
+            }
+            if (here.shift > 0 && slots.size() == 1 && slots.get(0) instanceof BookRecord only) {
+                return new Rewritten(only, sizeChange);
+            }
+            return new Rewritten(new Node(bitmap, slots.toArray()), sizeChange);
+        }
+
+        // The edit applied to a record, the same object each time it is asked for
+        private BookRecord edited(BookRecord existing, Edit edit) {
+            if (records.containsKey(existing)) {
+                return records.get(existing);
+            }
+            BookRecord r = edit.operator.apply(existing);
+            records.put(existing, r);
+            return r;
+        }
+    }
+
+    // One edit for a Rewriter
+    private static final class Edit {
+        final long id;
+        final long hash;
+        final UnaryOperator<BookRecord> operator;
+        private BookRecord added; // The record for maps without one, once computed
+        private boolean addedKnown;
+
+        Edit(long id, UnaryOperator<BookRecord> operator) {
+            this.id = id;
+            this.hash = hash(id);
+            this.operator = operator;
+        }
+
+        BookRecord added() {
+            if (!addedKnown) {
+                added = operator.apply(null);
+                addedKnown = true;
+            }
+            return added;
+        }
+    }
+
+    // The edits whose ids hash to one position in the trie, split by the next 5 bits on first use
+    private static final class Edits {
+        final Edit[] edits;
+        final int shift;
+        private Edits[] children;
+
+        Edits(Edit[] edits, int shift) {
+            this.edits = edits;
+            this.shift = shift;
+        }
+
+        // The edits one level down at index i, or null if there are none
+        Edits child(int i) {
+            if (children == null) {
+                children = new Edits[1 << BITS];
+                List<List<Edit>> parts = new ArrayList<>();
+                for (int j = 0; j < children.length; j++) {
+                    parts.add(new ArrayList<>());
+                }
+                for (Edit e : edits) {
+                    parts.get(index(e.hash, shift)).add(e);
+                }
+                for (int j = 0; j < children.length; j++) {
+                    if (!parts.get(j).isEmpty()) {
+                        children[j] = new Edits(parts.get(j).toArray(new Edit[0]), shift + BITS);
+                    }
+                }
+            }
+            return children[i];
+        }
+    }
+
+    // A rewritten slot and how many records it gained (negative if it lost some)
+    private record Rewritten(Object slot, int sizeChange) {
+    }
+
+    // --- Hashing ---
+
+    // Book ids are time-ordered, so their low bits are spread first (MurmurHash3's
+    // 64-bit finalizer). The mix is a bijection, so different ids always part by
+    // the last level.
+    private static long hash(long id) {
+        long h = id;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int index(long h, int shift) {
+        return (int) (h >>> shift) & MASK;
+    }
+}
@@ -0,0 +1,559 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An append-only history of reading sessions: when a book was started, how
+ * many pages were read in each session, and when it was finished.
+ *
+ * Events are partitioned by month, one file per month (sessions/YYYY-MM.log).
+ * On disk a partition is row-wise: one fixed-size record per event, so
+ * recording an event is a single append. Only in memory is each partition
+ * stored column-wise, in primitive arrays, and range queries only scan the
+ * partitions that overlap the range. A per-book index keeps each book's pages
+ * and latest start and finish, so the per-book queries do not scan at all.
+ *
+ * Daily, weekly and yearly totals are updated in memory as events are
+ * appended. The daily totals are also saved in rollups.cache along with the
+ * size of every partition they cover, so opening the log only reads the
+ * partitions if they changed since; otherwise the events are loaded on first
+ * use. The cache is written when the log is opened and when it is closed,
+ * not on every event, so a log that was not closed (after a crash, say) is
+ * simply read in full the next time.
+ */
+public class ReadingLog implements Closeable {
+    // --- Constants ---
+    public static final byte START = 0; // Started reading the book
+    public static final byte PROGRESS = 1; // Read some pages
+    public static final byte FINISH = 2; // Finished the book
+    private static final int RECORD_SIZE = 17; // id (8) + second offset (4) + type (1) + pages (4)
+    private static final int CACHE_MAGIC = 0x424b524c; // "BKRL"
+    private static final String CACHE_NAME = "rollups.cache";
+    private static final String CACHE_TEMP_NAME = "rollups.cache.tmp";
+
+    /** The periods totals can be rolled up by. */
+    public enum Period {
+        DAY, WEEK, YEAR
+    }
+
+    /**
+     * Totals for one period.
+     *
+     * @param pages    Pages read.
+     * @param sessions Number of reading sessions (PROGRESS events).
+     * @param finished Number of books finished.
+     */
+    public record Totals(long pages, int sessions, int finished) {
+        static final Totals EMPTY = new Totals(0, 0, 0);
+
+        Totals plus(byte type, int pages) {
+            return new Totals(this.pages + pages, sessions + (type == PROGRESS ? 1 : 0),
+                    finished + (type == FINISH ? 1 : 0));
+        }
+    }
+
+    /** Receives events from a range query. */
+    public interface EventSink {
+        void accept(long bookId, Instant time, byte type, int pages);
+    }
+
+    private final Path directory;
+    private final ZoneId zone; // Zone used to decide which day an event falls on
+    private final TreeMap<YearMonth, Partition> partitions = new TreeMap<>();
+    private boolean eventsLoaded; // Whether partitions holds every event in the files
+    private final Map<Long, BookStats> byBook = new HashMap<>(); // Filled with the events
+    // Rollups, keyed by the first day of each period
+    private final TreeMap<LocalDate, Totals> byDay = new TreeMap<>();
+    private final TreeMap<LocalDate, Totals> byWeek = new TreeMap<>();
+    private final TreeMap<LocalDate, Totals> byYear = new TreeMap<>();
+    // The size of each partition file the rollups cover, null once another writer was seen
+    private TreeMap<YearMonth, Long> covered = new TreeMap<>();
+    private boolean cacheStale; // Whether events were recorded since rollups.cache was written
+
+    /**
+     * Opens the log in a directory. The rollups come from rollups.cache when
+     * it covers every partition as it is; otherwise all partitions are read.
+     *
+     * @param directory The directory holding the partition files.
+     * @param zone      The time zone days are counted in.
+     * @throws IOException If an existing partition cannot be read.
+     */
+    public ReadingLog(Path directory, ZoneId zone) throws IOException {
+        this.directory = directory;
+        this.zone = zone;
+        if (!readCache(partitionSizes())) {
+            loadEvents(true);
+            writeCache();
+        }
+    }
+
+    /**
+     * Opens the log kept alongside a library's snapshots, counting days in the
+     * system time zone.
+     *
+     * @param libraryDirectory The directory holding the library snapshots.
+     */
+    public static ReadingLog inLibrary(Path libraryDirectory) throws IOException {
+        return new ReadingLog(libraryDirectory.resolve("sessions"), ZoneId.systemDefault());
+    }
+
+    /**
+     * Records an event now.
+     *
+     * @param bookId The book the event belongs to.
+     * @param type   START, PROGRESS or FINISH.
+     * @param pages  Pages read in this session, 0 if unknown.
+     * @throws IOException If the event could not be written.
+     */
+    public void record(long bookId, byte type, int pages) throws IOException {
+        record(bookId, Instant.now(), type, pages);
+    }
+
+    /**
+     * Records an event at a given time.
+     */
+    public void record(long bookId, Instant time, byte type, int pages) throws IOException {
+        record(new long[] { bookId }, time, type, pages);
+    }
+
+    /**
+     * Records the same event for several books at once, with a single write
+     * to the log.
+     */
+    public synchronized void record(long[] bookIds, Instant time, byte type, int pages) throws IOException {
+        if (type < START || type > FINISH) {
+            throw new IllegalArgumentException("Unknown event type: " + type);
+        }
+        if (pages < 0) {
+            throw new IllegalArgumentException("pages must not be negative");
+        }
+        if (bookIds.length == 0) {
+            return;
+        }
+        YearMonth month = YearMonth.from(time.atZone(ZoneOffset.UTC));
+        int offset = (int) (time.getEpochSecond() - partitionStart(month));
+
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE * bookIds.length);
+        for (long bookId : bookIds) {
+            buf.putLong(bookId).putInt(offset).put(type).putInt(pages);
+        }
+        buf.flip();
+        Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(fileFor(month), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            long end = channel.size();
+            if (end % RECORD_SIZE != 0) {
+                end -= end % RECORD_SIZE; // Drop a record cut short by a crash
+                channel.truncate(end);
+            }
+            if (covered != null && end != covered.getOrDefault(month, 0L)) {
+                covered = null; // Someone else appended; rebuild the rollups on the next open
+            }
+            while (buf.hasRemaining()) {
+                end += channel.write(buf, end);
+            }
+            if (covered != null) {
+                covered.put(month, end);
+            }
+        }
+        for (long bookId : bookIds) {
+            add(month, bookId, offset, type, pages, eventsLoaded);
+        }
+        cacheStale = true;
+    }
+
+    /**
+     * Saves the rollup cache if events were recorded since it was written.
+     * A failure is only a warning, since the next open reads the partitions
+     * instead. The log can still be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        if (cacheStale) {
+            writeCache();
+            cacheStale = false;
+        }
+    }
+
+    /**
+     * Records the events implied by a reading status change: starting to read,
+     * or finishing. Other changes are ignored.
+     */
+    public void recordStatusChange(long bookId, String oldStatus, String newStatus) throws IOException {
+        recordStatusChanges(new long[] { bookId }, new String[] { oldStatus }, newStatus);
+    }
+
+    /**
+     * Records the events implied by giving several books the same status,
+     * with a single write to the log.
+     *
+     * @param oldStatuses The status each book had before, in the same order
+     *                    as bookIds.
+     */
+    public void recordStatusChanges(long[] bookIds, String[] oldStatuses, String newStatus) throws IOException {
+        byte type;
+        if ("reading".equalsIgnoreCase(newStatus)) {
+            type = START;
+        } else if ("finished".equalsIgnoreCase(newStatus)) {
+            type = FINISH;
+        } else {
+            return;
+        }
+        long[] changed = new long[bookIds.length];
+        int count = 0;
+        for (int i = 0; i < bookIds.length; i++) {
+            if (!newStatus.equalsIgnoreCase(oldStatuses[i])) {
+                changed[count++] = bookIds[i];
+            }
+        }
+        record(Arrays.copyOf(changed, count), Instant.now(), type, 0);
+    }
+
+    /**
+     * Returns the totals for each period between two dates (inclusive) that
+     * has any events.
+     */
+    public synchronized SortedMap<LocalDate, Totals> rollup(Period period, LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, Totals> map = switch (period) {
+            case DAY -> byDay;
+            case WEEK -> byWeek;
+            case YEAR -> byYear;
+        };
+        return new TreeMap<>(map.subMap(periodStart(period, from), true, to, true));
+    }
+
+    /**
+     * Streams the events between two instants (inclusive), optionally for one
+     * book only. Only partitions overlapping the range are scanned.
+     *
+     * @param bookId The book to return events for, or 0 for all books.
+     */
+    public synchronized void events(long bookId, Instant from, Instant to, EventSink sink) {
+        eventsNeeded();
+        YearMonth first = YearMonth.from(from.atZone(ZoneOffset.UTC));
+        YearMonth last = YearMonth.from(to.atZone(ZoneOffset.UTC));
+        for (Partition p : partitions.subMap(first, true, last, true).values()) {
+            long base = partitionStart(p.month);
+            long lo = from.getEpochSecond() - base;
+            long hi = to.getEpochSecond() - base;
+            for (int i = 0; i < p.size; i++) {
+                if (p.seconds[i] >= lo && p.seconds[i] <= hi && (bookId == 0 || p.bookIds[i] == bookId)) {
+                    sink.accept(p.bookIds[i], Instant.ofEpochSecond(base + p.seconds[i]), p.types[i], p.pages[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The total pages logged for a book.
+     */
+    public synchronized long pagesRead(long bookId) {
+        eventsNeeded();
+        BookStats stats = byBook.get(bookId);
+        return stats == null ? 0 : stats.pages;
+    }
+
+    /**
+     * @return The time from the latest start to the latest finish of a book, or
+     *         null if it has not been started and finished.
+     */
+    public synchronized Duration timeToFinish(long bookId) {
+        eventsNeeded();
+        BookStats stats = byBook.get(bookId);
+        return stats == null || stats.finish == Long.MIN_VALUE ? null
+                : Duration.ofSeconds(stats.finish - stats.startBeforeFinish);
+    }
+
+    /**
+     * Reads every partition into memory, if that has not happened yet. The
+     * per-book and range queries do this on first use; call it ahead of time
+     * to keep the reading off a thread that must stay responsive.
+     *
+     * @throws IOException If a partition cannot be read.
+     */
+    public synchronized void loadEvents() throws IOException {
+        if (!eventsLoaded) {
+            loadEvents(false);
+        }
+    }
+
+    // Reads every partition, rebuilding the rollups from them as well if asked
+    private void loadEvents(boolean withRollups) throws IOException {
+        partitions.clear();
+        byBook.clear();
+        if (withRollups) {
+            byDay.clear();
+            byWeek.clear();
+            byYear.clear();
+            covered = new TreeMap<>();
+        }
+        // In month order, so each book's index sees its events in time order
+        for (Map.Entry<YearMonth, Long> e : partitionSizes().entrySet()) {
+            load(e.getKey(), withRollups);
+            if (withRollups) {
+                covered.put(e.getKey(), e.getValue());
+            }
+        }
+        eventsLoaded = true;
+    }
+
+    // Loads the events on first use, for queries that cannot report an IOException
+    private void eventsNeeded() {
+        try {
+            loadEvents();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the reading log", e);
+        }
+    }
+
+    // Reads one partition into memory, adding its events to the rollups too if they are being rebuilt
+    private void load(YearMonth month, boolean withRollups) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(fileFor(month)));
+        // A crash mid-append can leave a partial record at the end; it is ignored.
+        while (buf.remaining() >= RECORD_SIZE) {
+            long bookId = buf.getLong();
+            int offset = buf.getInt();
+            byte type = buf.get();
+            int pages = buf.getInt();
+            if (withRollups) {
+                addToRollups(month, offset, type, pages);
+            }
+            addEvent(month, bookId, offset, type, pages);
+        }
+    }
+
+    // Adds an appended event to the rollups, and to the events if they are in memory
+    private void add(YearMonth month, long bookId, int offset, byte type, int pages, boolean withEvent) {
+        addToRollups(month, offset, type, pages);
+        if (withEvent) {
+            addEvent(month, bookId, offset, type, pages);
+        }
+    }
+
+    private void addEvent(YearMonth month, long bookId, int offset, byte type, int pages) {
+        partitions.computeIfAbsent(month, Partition::new).add(bookId, offset, type, pages);
+        BookStats stats = byBook.computeIfAbsent(bookId, id -> new BookStats());
+        if (stats.lastMonth != null && month.isBefore(stats.lastMonth)) {
+            // Recorded out of order; redo the book's index in time order
+            stats = new BookStats();
+            byBook.put(bookId, stats);
+            for (Partition p : partitions.values()) {
+                for (int i = 0; i < p.size; i++) {
+                    if (p.bookIds[i] == bookId) {
+                        stats.add(p.month, p.seconds[i], p.types[i], p.pages[i]);
+                    }
+                }
+            }
+        } else {
+            stats.add(month, offset, type, pages);
+        }
+    }
+
+    private void addToRollups(YearMonth month, int offset, byte type, int pages) {
+        LocalDate day = Instant.ofEpochSecond(partitionStart(month) + offset).atZone(zone).toLocalDate();
+        Totals one = Totals.EMPTY.plus(type, pages);
+        byDay.merge(day, one, ReadingLog::sum);
+        byWeek.merge(periodStart(Period.WEEK, day), one, ReadingLog::sum);
+        byYear.merge(periodStart(Period.YEAR, day), one, ReadingLog::sum);
+    }
+
+    // --- Rollup cache ---
+
+    /**
+     * Loads the daily totals from rollups.cache, and the weekly and yearly
+     * ones from those, if the cache was written for the same zone and exactly
+     * the partitions there are now.
+     *
+     * @return false if there is no such cache.
+     */
+    private boolean readCache(TreeMap<YearMonth, Long> sizes) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(directory.resolve(CACHE_NAME))))) {
+            if (in.readInt() != CACHE_MAGIC || !in.readUTF().equals(zone.getId())) {
+                return false;
+            }
+            TreeMap<YearMonth, Long> cached = new TreeMap<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                cached.put(YearMonth.parse(in.readUTF()), in.readLong());
+            }
+            if (!cached.equals(sizes)) {
+                return false;
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                LocalDate day = LocalDate.ofEpochDay(in.readLong());
+                Totals t = new Totals(in.readLong(), in.readInt(), in.readInt());
+                byDay.put(day, t);
+                byWeek.merge(periodStart(Period.WEEK, day), t, ReadingLog::sum);
+                byYear.merge(periodStart(Period.YEAR, day), t, ReadingLog::sum);
+            }
+            covered = cached;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // Missing, damaged or from an incompatible version
+            byDay.clear();
+            byWeek.clear();
+            byYear.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Saves the daily totals and the partition sizes they cover. It is only a
+     * cache: a failure is reported as a warning, and the cache is removed
+     * instead once another writer was seen.
+     */
+    private void writeCache() {
+        Path cache = directory.resolve(CACHE_NAME);
+        try {
+            if (covered == null) {
+                Files.deleteIfExists(cache);
+                return;
+            }
+            if (!Files.isDirectory(directory)) {
+                return; // Nothing logged yet
+            }
+            Path temp = directory.resolve(CACHE_TEMP_NAME);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(CACHE_MAGIC);
+                out.writeUTF(zone.getId());
+                out.writeInt(covered.size());
+                for (Map.Entry<YearMonth, Long> e : covered.entrySet()) {
+                    out.writeUTF(e.getKey().toString());
+                    out.writeLong(e.getValue());
+                }
+                out.writeInt(byDay.size());
+                for (Map.Entry<LocalDate, Totals> e : byDay.entrySet()) {
+                    out.writeLong(e.getKey().toEpochDay());
+                    out.writeLong(e.getValue().pages());
+                    out.writeInt(e.getValue().sessions());
+                    out.writeInt(e.getValue().finished());
+                }
+            }
+            Files.move(temp, cache, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not write the reading rollup cache: " + e);
+        }
+    }
+
+    /**
+     * @return The size of every partition file, by month.
+     */
+    private TreeMap<YearMonth, Long> partitionSizes() throws IOException {
+        TreeMap<YearMonth, Long> sizes = new TreeMap<>();
+        if (!Files.isDirectory(directory)) {
+            return sizes;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    sizes.put(YearMonth.parse(name.substring(0, name.length() - ".log".length())), Files.size(file));
+                } catch (RuntimeException e) {
+                    // Not a partition file
+                }
+            }
+        }
+        return sizes;
+    }
+
+    private static Totals sum(Totals a, Totals b) {
+        return new Totals(a.pages() + b.pages(), a.sessions() + b.sessions(), a.finished() + b.finished());
+    }
+
+    private static LocalDate periodStart(Period period, LocalDate day) {
+        return switch (period) {
+            case DAY -> day;
+            case WEEK -> day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            case YEAR -> day.withDayOfYear(1);
+        };
+    }
+
+    private static long partitionStart(YearMonth month) {
+        return month.atDay(1).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+    }
+
+    private Path fileFor(YearMonth month) {
+        return directory.resolve(month + ".log");
+    }
+
+    /**
+     * One book's entry in the per-book index, built from its events in time
+     * order.
+     */
+    private static class BookStats {
+        long pages;
+        YearMonth lastMonth; // Month of the latest event added
+        long start = Long.MIN_VALUE; // Latest start
+        long finish = Long.MIN_VALUE; // Latest finish that followed a start
+        long startBeforeFinish = Long.MIN_VALUE; // The start that finish followed
+
+        void add(YearMonth month, int offset, byte type, int pageCount) {
+            long t = partitionStart(month) + offset;
+            pages += pageCount;
+            lastMonth = month;
+            if (type == START) {
+                start = t;
+            } else if (type == FINISH && start != Long.MIN_VALUE) {
+                finish = t;
+                startBeforeFinish = start;
+            }
+        }
+    }
+
+    /**
+     * The events of one month, stored column by column.
+     */
+    private static class Partition {
+        final YearMonth month;
+        long[] bookIds = new long[16];
+        int[] seconds = new int[16]; // Seconds since the start of the month (UTC)
+        byte[] types = new byte[16];
+        int[] pages = new int[16];
+        int size;
+
+        Partition(YearMonth month) {
+            this.month = month;
+        }
+
+        void add(long bookId, int offset, byte type, int pageCount) {
+            if (size == bookIds.length) {
+                int capacity = size * 2;
+                bookIds = Arrays.copyOf(bookIds, capacity);
+                seconds = Arrays.copyOf(seconds, capacity);
+                types = Arrays.copyOf(types, capacity);
+                pages = Arrays.copyOf(pages, capacity);
+            }
+            bookIds[size] = bookId;
+            seconds[size] = offset;
+            types[size] = type;
+            pages[size] = pageCount;
+            size++;
+        }
+    }
+}
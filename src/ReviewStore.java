@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An append-only store for review text, so that books only keep a small
+ * offset handle on the heap instead of the full review.
+ *
+ * Each review is deflated and appended to the backing file as
+ * [flag][raw length][stored length][bytes]. Reads go through read-only
+ * mappings of the file, SEGMENT_SIZE bytes each, so files past 2 GB work and
+ * growth only remaps the last segment; an entry that straddles two segments is
+ * read from the channel instead. The most recently viewed reviews are kept in
+ * a small LRU cache. Old entries are never rewritten, so a handle stays valid
+ * for the lifetime of the file.
+ *
+ * A library keeps its reviews in a store in its directory, which snapshots
+ * refer to by handle and which is compacted when it is mostly unreferenced
+ * (see LibrarySnapshots.reviews). Appends take a file lock, so another process
+ * appending to the same file cannot overwrite them.
+ */
+public class ReviewStore {
+    // --- Constants ---
+    public static final long NO_REVIEW = -1; // Handle used for empty reviews
+    private static final int CACHE_SIZE = 64; // Number of decoded reviews kept in memory
+    private static final int HEADER_SIZE = 9; // flag (1) + raw length (4) + stored length (4)
+    private static final byte STORED = 0; // Bytes are plain UTF-8 (compression did not help)
+    private static final byte DEFLATED = 1; // Bytes are deflated UTF-8
+    private static final int SEGMENT_SIZE = 1 << 26; // Bytes per mapping (64 MB)
+
+    private static ReviewStore defaultStore;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int segmentSize; // Bytes per mapping, SEGMENT_SIZE outside of tests
+    private long size; // End of the file as last seen
+    private final List<MappedByteBuffer> segments = new ArrayList<>(); // Segment i maps from i * segmentSize
+    private final Map<Long, String> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Opens (or creates) a review store backed by the given file.
+     *
+     * @param file The file to append reviews to.
+     * @throws IOException If the file cannot be opened.
+     */
+    public ReviewStore(Path file) throws IOException {
+        this(file, SEGMENT_SIZE);
+    }
+
+    // Lets tests use segments small enough to roll over
+    ReviewStore(Path file, int segmentSize) throws IOException {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.size = channel.size();
+    }
+
+    /**
+     * Returns the store shared by all books. Unless setDefault was called, it
+     * is backed by a temporary file that is deleted when the application
+     * exits.
+     */
+    public static synchronized ReviewStore getDefault() {
+        if (defaultStore == null) {
+            try {
+                Path file = Files.createTempFile("booktrackr-reviews", ".dat");
+                file.toFile().deleteOnExit();
+                defaultStore = new ReviewStore(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create the review store", e);
+            }
+        }
+        return defaultStore;
+    }
+
+    /**
+     * Makes a store the one shared by all books, usually the store of the
+     * library being opened. Must be called before any review is stored, since
+     * handles into the previous store mean nothing in the new one.
+     */
+    public static synchronized void setDefault(ReviewStore store) {
+        defaultStore = store;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return The size of the backing file in bytes.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Compresses and appends a review to the store.
+     *
+     * @param text The review text.
+     * @return The handle to read the review back with, or NO_REVIEW if the
+     *         text is null or empty.
+     */
+    public synchronized long append(String text) {
+        if (text == null || text.isEmpty()) {
+            return NO_REVIEW;
+        }
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = deflate(raw);
+        boolean useDeflated = deflated.length < raw.length;
+        byte[] stored = useDeflated ? deflated : raw;
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + stored.length);
+        buf.put(useDeflated ? DEFLATED : STORED);
+        buf.putInt(raw.length);
+        buf.putInt(stored.length);
+        buf.put(stored);
+        buf.flip();
+
+        long handle = appendEntry(buf);
+        cache.put(handle, text);
+        return handle;
+    }
+
+    /**
+     * Copies an entry from another store as it is stored, without
+     * decompressing it. Used to compact a store into a new file.
+     *
+     * @return The handle of the copy in this store.
+     */
+    public synchronized long transferFrom(ReviewStore source, long handle) {
+        if (handle == NO_REVIEW) {
+            return NO_REVIEW;
+        }
+        ByteBuffer entry = ByteBuffer.allocate((int) source.entryLength(handle));
+        source.readEntry(handle, entry);
+        entry.flip();
+        return appendEntry(entry);
+    }
+
+    /**
+     * @return The number of bytes the entry takes in the file, header
+     *         included, or 0 for NO_REVIEW.
+     */
+    public synchronized long entryLength(long handle) {
+        if (handle == NO_REVIEW) {
+            return 0;
+        }
+        return HEADER_SIZE + (long) header(handle).getInt(5);
+    }
+
+    // Writes an entry at the current end of the file, whoever appended last
+    private long appendEntry(ByteBuffer entry) {
+        try {
+            FileLock lock = channel.lock();
+            try {
+                long handle = channel.size();
+                long pos = handle;
+                while (entry.hasRemaining()) {
+                    pos += channel.write(entry, pos);
+                }
+                size = pos;
+                return handle;
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write review", e);
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk, so that a snapshot referring
+     * to it can be made durable.
+     */
+    public synchronized void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Closes the backing file. The store cannot be used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        segments.clear();
+        cache.clear();
+        channel.close();
+    }
+
+    /**
+     * Reads a review back, decompressing it if it is not cached.
+     *
+     * @param handle A handle returned by append, or NO_REVIEW.
+     * @return The review text, or an empty string for NO_REVIEW.
+     */
+    public synchronized String read(long handle) {
+        if (handle == NO_REVIEW) {
+            return "";
+        }
+        String cached = cache.get(handle);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            ByteBuffer header = header(handle);
+            byte flag = header.get(0);
+            int rawLength = header.getInt(1);
+            ByteBuffer stored = ByteBuffer.allocate(header.getInt(5));
+            copy(handle + HEADER_SIZE, stored);
+            byte[] raw = flag == DEFLATED ? inflate(stored.array(), rawLength) : stored.array();
+            String text = new String(raw, StandardCharsets.UTF_8);
+            cache.put(handle, text);
+            return text;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read review", e);
+        }
+    }
+
+    // Reads the whole entry at handle, header included, into dst
+    private synchronized void readEntry(long handle, ByteBuffer dst) {
+        try {
+            header(handle);
+            copy(handle, dst);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read review", e);
+        }
+    }
+
+    /**
+     * Reads the header of the entry at handle, checking that the whole entry
+     * lies within the file.
+     */
+    private ByteBuffer header(long handle) {
+        try {
+            if (handle >= 0 && handle + HEADER_SIZE > size) {
+                size = channel.size(); // Another process may have appended since
+            }
+            if (handle < 0 || handle + HEADER_SIZE > size) {
+                throw new IllegalArgumentException("Invalid review handle: " + handle);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            copy(handle, header);
+            int storedLength = header.getInt(5);
+            if (storedLength < 0 || handle + HEADER_SIZE + storedLength > size) {
+                throw new IllegalArgumentException("Invalid review handle: " + handle);
+            }
+            return header;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read review", e);
+        }
+    }
+
+    /**
+     * Fills dst with the bytes of the file from pos on. Bytes within one
+     * segment come from its mapping, which is extended if the file has grown
+     * since it was made; anything else is read from the channel.
+     */
+    private void copy(long pos, ByteBuffer dst) throws IOException {
+        int index = (int) (pos / segmentSize);
+        int offset = (int) (pos % segmentSize);
+        if (offset + dst.remaining() > segmentSize) {
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, pos);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of review file");
+                }
+                pos += n;
+            }
+            return;
+        }
+        while (segments.size() <= index) {
+            segments.add(null);
+        }
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null || offset + dst.remaining() > segment.capacity()) {
+            long start = (long) index * segmentSize;
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+            segments.set(index, segment);
+        }
+        dst.put(segment.slice(offset, dst.remaining()));
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] out = new byte[raw.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] stored, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != rawLength) {
+                throw new IOException("Truncated review data");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt review data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
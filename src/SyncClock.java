@@ -0,0 +1,58 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Lamport clock that orders edits for sync.
+ *
+ * Every local edit takes the next tick. Ticks serve two purposes: a tick is
+ * the local sequence number of the edit, which watermarks are compared
+ * against, and tick &lt;&lt; 10 | node is its version stamp, which decides
+ * which of two concurrent edits to the same field wins. Seeing a stamp from
+ * another instance moves the clock past it, so an edit made after a sync
+ * always outranks everything that sync brought in. The node is the library's
+ * BookId node, which no two libraries that sync share, so stamps never tie.
+ */
+public final class SyncClock {
+    // --- Constants ---
+    private static final int NODE_BITS = 10;
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private SyncClock() {
+    }
+
+    /**
+     * @return A new tick, greater than every tick and observed stamp so far.
+     */
+    public static long tick() {
+        return counter.incrementAndGet();
+    }
+
+    /**
+     * @return The latest tick handed out, without advancing the clock.
+     */
+    public static long current() {
+        return counter.get();
+    }
+
+    /**
+     * Moves the clock forward to at least the given tick, e.g. when restoring
+     * a saved library or receiving an edit from another instance.
+     */
+    public static void observe(long tick) {
+        counter.accumulateAndGet(tick, Math::max);
+    }
+
+    /**
+     * @return The version stamp of an edit made by this instance at a tick.
+     */
+    public static long stamp(long tick) {
+        return (tick << NODE_BITS) | BookId.node();
+    }
+
+    /**
+     * @return The tick a version stamp was made at.
+     */
+    public static long tickOf(long stamp) {
+        return stamp >>> NODE_BITS;
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes one instance sends another during a sync: for each changed book
+ * only the fields that changed since the peer's watermark, with their stamps,
+ * plus the books deleted since then. A delta can also ask for the full
+ * records of books the sender was sent only some fields of but does not have.
+ *
+ * On the wire every entry starts with a tag byte. A book entry is its id, a
+ * bit mask of the fields that follow, and for each field its stamp and value;
+ * stamps, lengths and numbers are written as variable-length integers, so a
+ * one-field edit costs a couple of dozen bytes whatever the library size.
+ */
+public class SyncDelta {
+    // --- Constants ---
+    private static final byte END = 0;
+    private static final byte BOOK = 1;
+    private static final byte DELETED = 2;
+    private static final byte WANTED = 3;
+    private static final int MAX_STRING = 16 << 20; // Bytes; longer than any title, tag list or review
+
+    /** The changed fields of one book. Unset fields have a null value. */
+    public static class BookChanges {
+        final long id;
+        int mask; // Bit i is set if field i is present
+        final long[] stamps = new long[Book.FIELD_COUNT];
+        final Object[] values = new Object[Book.FIELD_COUNT];
+
+        BookChanges(long id) {
+            this.id = id;
+        }
+
+        void put(int field, Object value, long stamp) {
+            mask |= 1 << field;
+            stamps[field] = stamp;
+            values[field] = value;
+        }
+
+        boolean has(int field) {
+            return (mask & (1 << field)) != 0;
+        }
+    }
+
+    final List<BookChanges> books = new ArrayList<>();
+    final List<long[]> deleted = new ArrayList<>(); // {id, stamp}
+    final List<Long> wanted = new ArrayList<>(); // Ids of books to send in full
+    long high; // The sender's clock when the delta was taken
+
+    public boolean isEmpty() {
+        return books.isEmpty() && deleted.isEmpty() && wanted.isEmpty();
+    }
+
+    /**
+     * @return The number of books changed or deleted.
+     */
+    public int size() {
+        return books.size() + deleted.size();
+    }
+
+    public void write(DataOutput out) throws IOException {
+        for (BookChanges c : books) {
+            out.writeByte(BOOK);
+            out.writeLong(c.id);
+            out.writeByte(c.mask);
+            for (int f = 0; f < Book.FIELD_COUNT; f++) {
+                if (c.has(f)) {
+                    writeVarLong(out, c.stamps[f]);
+                    if (f == Book.FIELD_YEAR || f == Book.FIELD_RATING) {
+                        writeVarLong(out, zigZag((Integer) c.values[f]));
+                    } else {
+                        writeString(out, (String) c.values[f]);
+                    }
+                }
+            }
+        }
+        for (long[] d : deleted) {
+            out.writeByte(DELETED);
+            out.writeLong(d[0]);
+            writeVarLong(out, d[1]);
+        }
+        for (long id : wanted) {
+            out.writeByte(WANTED);
+            out.writeLong(id);
+        }
+        out.writeByte(END);
+        writeVarLong(out, high);
+    }
+
+    /**
+     * Reads a delta written by write.
+     *
+     * @throws IOException If the stream ends early or holds an unknown entry
+     *                     or a string over MAX_STRING bytes.
+     */
+    public static SyncDelta read(DataInput in) throws IOException {
+        SyncDelta delta = new SyncDelta();
+        while (true) {
+            byte tag = in.readByte();
+            if (tag == END) {
+                break;
+            }
+            if (tag == DELETED) {
+                delta.deleted.add(new long[] { in.readLong(), readVarLong(in) });
+                continue;
+            }
+            if (tag == WANTED) {
+                delta.wanted.add(in.readLong());
+                continue;
+            }
+            if (tag != BOOK) {
+                throw new IOException("Unknown sync entry " + tag);
+            }
+            BookChanges c = new BookChanges(in.readLong());
+            int mask = in.readUnsignedByte();
+            for (int f = 0; f < Book.FIELD_COUNT; f++) {
+                if ((mask & (1 << f)) != 0) {
+                    long stamp = readVarLong(in);
+                    Object value = f == Book.FIELD_YEAR || f == Book.FIELD_RATING
+                            ? unZigZag(readVarLong(in))
+                            : readString(in);
+                    c.put(f, value, stamp);
+                }
+            }
+            delta.books.add(c);
+        }
+        delta.high = readVarLong(in);
+        return delta;
+    }
+
+    // --- Encoding helpers ---
+
+    // Unsigned LEB128: 7 bits per byte, high bit set on all but the last byte
+    static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    private static long zigZag(int v) {
+        return ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static int unZigZag(long v) {
+        return (int) (v >>> 1) ^ -(int) (v & 1);
+    }
+
+    // Length + 1 so that 0 can stand for null
+    private static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        long encoded = readVarLong(in);
+        if (encoded == 0) {
+            return null;
+        }
+        // Checked before allocating, so a corrupt or hostile length cannot exhaust the heap
+        if (Long.compareUnsigned(encoded - 1, MAX_STRING) > 0) {
+            throw new IOException("String too long: " + Long.toUnsignedString(encoded - 1));
+        }
+        byte[] bytes = new byte[(int) (encoded - 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
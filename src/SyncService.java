@@ -0,0 +1,474 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Syncs a library with another BookTrackr instance over TCP.
+ *
+ * A session runs in three steps, then a round trip for missing books. The
+ * client sends a hello and every change the server has not seen (everything
+ * after the client's watermark for it). The server, in one step on its model
+ * thread, collects its own changes for the client and merges the client's; it
+ * then replies with those changes and an acknowledgement of the client's. The
+ * client merges them and acknowledges in turn. Each side only moves its
+ * watermark for the other once its changes are acknowledged, so an
+ * interrupted session is simply repeated next time.
+ *
+ * A side that was sent some fields of a book it does not have (see
+ * BookMenu.applyChanges) asks for the whole book along with its next message,
+ * and the peer answers with the full records before the final
+ * acknowledgement, so watermarks only move once those have arrived too.
+ *
+ * Changes a side has just merged are known to the peer they came from, so when
+ * nothing else happened in between the watermark is moved past them as well
+ * and they are not sent back.
+ *
+ * Before any change is exchanged, each side proves it knows the shared
+ * secret (the sync.secret file in the library directory) by returning an
+ * HMAC of both sides' random nonces, so a peer without it learns nothing and
+ * changes nothing. The secret is never sent, but the session itself is not
+ * encrypted.
+ *
+ * All access to the library happens on the model thread; the socket is only
+ * read and written on the calling thread (or the server's thread).
+ */
+public class SyncService implements AutoCloseable {
+    // --- Constants ---
+    public static final int DEFAULT_PORT = 47321;
+    private static final int MAGIC = 0x424b5359; // "BKSY"
+    private static final int PROTOCOL_VERSION = 5; // 2 added tags, 3 the secret, 4 full record requests, 5 nodes
+    private static final int TIMEOUT_MILLIS = 30_000;
+    public static final String SECRET_FILE = "sync.secret";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_BYTES = 16;
+    private static final byte CLIENT = 'C'; // Roles in a proof, so one side's proof cannot be replayed as the other's
+    private static final byte SERVER = 'S';
+    private static final SecureRandom random = new SecureRandom();
+
+    private final BookMenu menu;
+    private final Executor modelThread;
+    private final LibrarySnapshots snapshots; // May be null
+    private final String secret; // May be null
+    private ServerSocket server;
+    private volatile Consumer<Result> sessionListener; // May be null
+
+    /**
+     * The outcome of one session.
+     *
+     * @param peerId        The other library's instance id.
+     * @param booksSent     Books changed or deleted that were sent.
+     * @param booksReceived Books changed or deleted that were received.
+     * @param booksChanged  Books that changed here as a result.
+     * @param bytesSent     Bytes written to the socket.
+     * @param bytesReceived Bytes read from the socket.
+     */
+    public record Result(long peerId, int booksSent, int booksReceived, int booksChanged, long bytesSent,
+            long bytesReceived) {
+    }
+
+    /**
+     * @param menu        The library to sync.
+     * @param modelThread Runs tasks on the thread that owns the library (the
+     *                    EDT in the UI).
+     * @param snapshots   If not null, merged changes are saved here before they
+     *                    are acknowledged, so a crash cannot lose changes the
+     *                    peer will not send again.
+     * @param secret      The secret shared with the peers (see readSecret), or
+     *                    null to sync only with peers that have none.
+     */
+    public SyncService(BookMenu menu, Executor modelThread, LibrarySnapshots snapshots, String secret) {
+        this.menu = menu;
+        this.modelThread = modelThread;
+        this.snapshots = snapshots;
+        this.secret = secret;
+    }
+
+    /**
+     * Reads the sync secret of a library: the first line of the sync.secret
+     * file in its directory, which is copied to every instance it syncs with.
+     *
+     * @return The secret, or null if the library has none.
+     */
+    public static String readSecret(Path directory) throws IOException {
+        try {
+            String text = Files.readString(directory.resolve(SECRET_FILE), StandardCharsets.UTF_8).strip();
+            int end = text.indexOf('\n');
+            String secret = (end < 0 ? text : text.substring(0, end)).strip();
+            return secret.isEmpty() ? null : secret;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts accepting sync sessions on the loopback interface, one at a time,
+     * on a daemon thread.
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     * @return The port actually listened on.
+     * @throws IOException If the port cannot be bound.
+     */
+    public synchronized int listen(int port) throws IOException {
+        return listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Starts accepting sync sessions on an address, one at a time, on a daemon
+     * thread. Any address but loopback needs a secret, so that other machines
+     * cannot read or change the library.
+     *
+     * @throws IOException If the address cannot be bound, or is not loopback
+     *                     and there is no secret.
+     */
+    public synchronized int listen(InetSocketAddress address) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Already listening on port " + server.getLocalPort());
+        }
+        if (secret == null && (address.getAddress() == null || !address.getAddress().isLoopbackAddress())) {
+            throw new IOException("Accepting sessions from other machines needs a " + SECRET_FILE
+                    + " file in the library directory");
+        }
+        server = new ServerSocket();
+        server.bind(address);
+        ServerSocket listening = server;
+        Thread thread = new Thread(() -> acceptLoop(listening), "booktrackr-sync");
+        thread.setDaemon(true);
+        thread.start();
+        return server.getLocalPort();
+    }
+
+    /**
+     * Sets a listener that is run on the model thread after each session a
+     * peer started, e.g. to refresh the UI.
+     */
+    public void onSession(Consumer<Result> listener) {
+        this.sessionListener = listener;
+    }
+
+    private void acceptLoop(ServerSocket listening) {
+        while (!listening.isClosed()) {
+            try (Socket socket = listening.accept()) {
+                Result result = serve(socket);
+                Consumer<Result> listener = sessionListener;
+                if (listener != null) {
+                    modelThread.execute(() -> listener.accept(result));
+                }
+            } catch (SocketException e) {
+                if (!listening.isClosed()) {
+                    System.err.println("Sync session failed: " + e);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Sync session failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Runs one session as the client.
+     *
+     * @param host The host of the other instance.
+     * @param port The port it listens on.
+     * @return What was exchanged.
+     * @throws IOException If the connection fails, the peer is not a
+     *                     compatible BookTrackr or does not share the secret.
+     *                     Nothing is lost in that case; the next session sends
+     *                     the same changes again.
+     */
+    public Result syncWith(String host, int port) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            Counting counting = new Counting(socket);
+            DataOutputStream out = counting.out;
+            DataInputStream in = counting.in;
+
+            byte[] nonce = newNonce();
+            writeHello(out, nonce);
+            out.flush();
+            Hello peer = readHello(in);
+            long peerId = peer.instanceId();
+            checkProof(in, SERVER, nonce, peer.nonce());
+            out.write(proof(CLIENT, nonce, peer.nonce()));
+            avoidNode(peer);
+
+            SyncDelta mine = onModelThread(() -> menu.changesSince(menu.getWatermark(peerId)));
+            mine.write(out);
+            out.flush();
+
+            SyncDelta theirs = SyncDelta.read(in);
+            long acked = in.readLong();
+            Merge merge = onModelThread(() -> merge(theirs, mine.high));
+            save(merge.saved);
+            SyncDelta asked = onModelThread(() -> menu.fullRecords(theirs.wanted));
+            asked.wanted.addAll(merge.incomplete);
+            asked.write(out);
+            out.flush();
+
+            SyncDelta full = SyncDelta.read(in);
+            Merge fullMerge = onModelThread(() -> merge(full, merge.watermark));
+            save(fullMerge.saved);
+            out.writeLong(theirs.high);
+            out.flush();
+            if (acked == mine.high) {
+                modelThread.execute(() -> menu.setWatermark(peerId, fullMerge.watermark));
+            }
+            return new Result(peerId, mine.size() + asked.size(), theirs.size() + full.size(),
+                    merge.changed + fullMerge.changed, counting.sent(), counting.received());
+        }
+    }
+
+    /**
+     * Runs one session as the server.
+     */
+    private Result serve(Socket socket) throws IOException {
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        Counting counting = new Counting(socket);
+        DataOutputStream out = counting.out;
+        DataInputStream in = counting.in;
+
+        Hello peer = readHello(in);
+        long peerId = peer.instanceId();
+        byte[] nonce = newNonce();
+        writeHello(out, nonce);
+        out.write(proof(SERVER, peer.nonce(), nonce));
+        out.flush();
+        checkProof(in, CLIENT, peer.nonce(), nonce);
+        avoidNode(peer);
+
+        SyncDelta theirs = SyncDelta.read(in);
+        // Collect before merging, in one step, so the reply holds nothing from the client.
+        SyncDelta[] mine = new SyncDelta[1];
+        Merge merge = onModelThread(() -> {
+            mine[0] = menu.changesSince(menu.getWatermark(peerId));
+            return merge(theirs, mine[0].high);
+        });
+        save(merge.saved);
+        mine[0].wanted.addAll(merge.incomplete);
+        mine[0].write(out);
+        out.writeLong(theirs.high);
+        out.flush();
+
+        SyncDelta asked = SyncDelta.read(in);
+        Merge fullMerge = onModelThread(() -> merge(asked, merge.watermark));
+        save(fullMerge.saved);
+        SyncDelta full = onModelThread(() -> menu.fullRecords(asked.wanted));
+        full.write(out);
+        out.flush();
+
+        long acked = in.readLong();
+        if (acked == mine[0].high) {
+            modelThread.execute(() -> menu.setWatermark(peerId, fullMerge.watermark));
+        }
+        return new Result(peerId, mine[0].size() + full.size(), theirs.size() + asked.size(),
+                merge.changed + fullMerge.changed, counting.sent(), counting.received());
+    }
+
+    // The result of merging a peer's changes
+    private record Merge(int changed, long watermark, BookMenu.Snapshot saved, List<Long> incomplete) {
+    }
+
+    /**
+     * Merges a peer's changes. Runs on the model thread.
+     *
+     * @param sentUpTo The high tick of the changes sent to the peer, or the
+     *                 watermark of an earlier merge in the same session.
+     * @return The watermark to record once the peer acknowledges them: past the
+     *         merged changes if nothing changed locally since they were
+     *         collected, otherwise just what was sent.
+     */
+    private Merge merge(SyncDelta theirs, long sentUpTo) {
+        boolean untouched = SyncClock.current() == sentUpTo;
+        List<Long> incomplete = new ArrayList<>();
+        int changed = menu.applyChanges(theirs, incomplete);
+        long watermark = untouched ? SyncClock.current() : sentUpTo;
+        BookMenu.Snapshot saved = snapshots != null && changed > 0 ? menu.snapshot() : null;
+        return new Merge(changed, watermark, saved, incomplete);
+    }
+
+    private void save(BookMenu.Snapshot snapshot) throws IOException {
+        if (snapshot != null) {
+            snapshots.write(snapshot);
+        }
+    }
+
+    private <T> T onModelThread(Supplier<T> task) throws IOException {
+        try {
+            return CompletableFuture.supplyAsync(task, modelThread).join();
+        } catch (CompletionException e) {
+            throw new IOException("Sync failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    // What a peer says first: who it is, and the nonce its proof will answer
+    private record Hello(long instanceId, int node, byte[] nonce) {
+    }
+
+    /**
+     * Moves this library off the peer's BookId node if they share it. Both
+     * sides see the clash, and the one with the lower instance id moves.
+     * Only called once the peer has proven it knows the secret.
+     */
+    private void avoidNode(Hello peer) throws IOException {
+        onModelThread(() -> {
+            if (peer.node() == menu.getNode() && menu.getInstanceId() < peer.instanceId()) {
+                menu.changeNode(peer.node());
+            }
+            return null;
+        });
+    }
+
+    private void writeHello(DataOutputStream out, byte[] nonce) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(PROTOCOL_VERSION);
+        out.writeLong(onModelThread(menu::getInstanceId));
+        out.writeShort(onModelThread(menu::getNode));
+        out.write(nonce);
+    }
+
+    private Hello readHello(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Peer is not a BookTrackr instance");
+        }
+        int version = in.readUnsignedByte();
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException("Unsupported sync protocol version " + version);
+        }
+        long peerId = in.readLong();
+        if (peerId == onModelThread(menu::getInstanceId)) {
+            throw new IOException("Cannot sync a library with itself");
+        }
+        int peerNode = in.readUnsignedShort();
+        byte[] nonce = new byte[NONCE_BYTES];
+        in.readFully(nonce);
+        return new Hello(peerId, peerNode, nonce);
+    }
+
+    private static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * @return The proof that the side in role knows the secret, for the
+     *         session with these nonces.
+     */
+    private byte[] proof(byte role, byte[] clientNonce, byte[] serverNonce) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            // Prefixed so that a missing secret is a key too
+            byte[] key = ("BookTrackr sync\n" + (secret != null ? secret : "")).getBytes(StandardCharsets.UTF_8);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            mac.update(role);
+            mac.update(clientNonce);
+            mac.update(serverNonce);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot compute the sync proof: " + e, e);
+        }
+    }
+
+    private void checkProof(DataInputStream in, byte role, byte[] clientNonce, byte[] serverNonce)
+            throws IOException {
+        byte[] expected = proof(role, clientNonce, serverNonce);
+        byte[] received = new byte[expected.length];
+        in.readFully(received);
+        if (!MessageDigest.isEqual(expected, received)) {
+            throw new IOException("Peer does not have this library's sync secret");
+        }
+    }
+
+    /**
+     * Stops accepting sessions.
+     */
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            server = null;
+        }
+    }
+
+    /**
+     * Buffered data streams over a socket that count the bytes passing through.
+     */
+    private static class Counting {
+        final DataOutputStream out;
+        final DataInputStream in;
+        private final long[] counts = new long[2]; // sent, received
+
+        Counting(Socket socket) throws IOException {
+            OutputStream rawOut = new FilterOutputStream(socket.getOutputStream()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    counts[0] += len;
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    counts[0]++;
+                }
+            };
+            InputStream rawIn = new FilterInputStream(socket.getInputStream()) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = in.read(b, off, len);
+                    counts[1] += Math.max(n, 0);
+                    return n;
+                }
+
+                @Override
+                public int read() throws IOException {
+                    int b = in.read();
+                    if (b >= 0) {
+                        counts[1]++;
+                    }
+                    return b;
+                }
+            };
+            this.out = new DataOutputStream(new BufferedOutputStream(rawOut, 1 << 16));
+            this.in = new DataInputStream(new BufferedInputStream(rawIn, 1 << 16));
+        }
+
+        long sent() {
+            return counts[0];
+        }
+
+        long received() {
+            return counts[1];
+        }
+    }
+}
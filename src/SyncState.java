@@ -0,0 +1,25 @@
+import java.util.Map;
+
+/**
+ * The library-wide sync bookkeeping that is saved along with the books.
+ *
+ * @param instanceId Identifies this library to the instances it syncs with.
+ * @param node       The BookId node of this library's ids and stamps.
+ * @param clock      The SyncClock tick at the time of the snapshot.
+ * @param watermarks For each peer instance, the highest local tick whose
+ *                   changes that peer is known to have received.
+ * @param tombstones Deleted books by id, so deletions reach peers that still
+ *                   have the book.
+ */
+public record SyncState(long instanceId, int node, long clock, Map<Long, Long> watermarks,
+        Map<Long, Tombstone> tombstones) {
+
+    /**
+     * The version of a deletion.
+     *
+     * @param stamp The stamp of the deletion.
+     * @param seq   The local tick at which the deletion was made or received.
+     */
+    public record Tombstone(long stamp, long seq) {
+    }
+}
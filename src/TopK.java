@@ -0,0 +1,48 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the k smallest items offered to it, using a bounded max-heap. Offering
+ * n items costs O(n log k), so taking the first page of a large listing does
+ * not require sorting all of it.
+ */
+public class TopK<T> {
+    private final Comparator<? super T> comp;
+    private final int k;
+    private final PriorityQueue<T> heap; // Largest kept item on top
+
+    /**
+     * @param comp The order to select by.
+     * @param k    The number of items to keep.
+     */
+    public TopK(Comparator<? super T> comp, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative");
+        }
+        this.comp = comp;
+        this.k = k;
+        this.heap = new PriorityQueue<>(Math.max(1, Math.min(k, 1 << 16)), comp.reversed());
+    }
+
+    /**
+     * Offers an item, keeping it only if it is among the k smallest so far.
+     */
+    public void offer(T item) {
+        if (heap.size() < k) {
+            heap.add(item);
+        } else if (k > 0 && comp.compare(item, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(item);
+        }
+    }
+
+    /**
+     * @return The kept items in sorted order.
+     */
+    public ArrayList<T> toSortedList() {
+        ArrayList<T> result = new ArrayList<>(heap);
+        result.sort(comp);
+        return result;
+    }
+}
@@ -0,0 +1,345 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Multi-level undo and redo for a library.
+ *
+ * Every version of the library is kept as a PersistentBookMap of book states.
+ * Consecutive versions share everything but the books that changed between
+ * them, so thousands of steps over a large library cost memory in proportion
+ * to the edits, not to the library. The history hears which books changed
+ * from BookMenu's book listener, and checkpoint turns the changes since the
+ * last version into a new one. Moving to another version compares the two
+ * maps, skipping the subtrees they share, and reverts only the books that
+ * differ (see BookMenu.revertBooks), so a jump costs O(log n) per changed
+ * book.
+ *
+ * Changes merged from another instance are not steps. They are folded into
+ * every version instead (see rebase), so undo and redo only move through
+ * local edits: they never take back what a peer sent, and never remove a
+ * book that arrived by sync, which would delete it on every instance. A merge
+ * is recorded once and folded into a version only when that version is
+ * needed, so merging does not cost a rewrite of the whole history.
+ *
+ * Like BookMenu, the history must only be used on the thread that owns the
+ * library.
+ */
+public class UndoHistory {
+    // --- Constants ---
+    public static final int DEFAULT_MAX_STEPS = 10_000;
+    private static final String UNNAMED_STEP = "Edit"; // Label for changes nobody checkpointed
+    private static final int MAX_UNFOLDED_MERGES = 32; // More and every version is brought up to date
+
+    /**
+     * One version of the library and the action that led to it (null for the
+     * first). Its books have the first `rebased` entries of merges folded in;
+     * use books(i) for the version with all of them.
+     */
+    private record Version(PersistentBookMap books, String label, int rebased) {
+    }
+
+    private final BookMenu menu;
+    private final int maxSteps;
+    private final List<Version> versions = new ArrayList<>();
+    private int current; // The version the library is at, which always has every merge folded in
+    // The edits of each merge not yet folded into every version, oldest first
+    private final List<Map<Long, UnaryOperator<BookRecord>>> merges = new ArrayList<>();
+    // Rewriters for the merges from an index on, shared so rebased versions still share structure
+    private final Map<Integer, PersistentBookMap.Rewriter> rewriters = new HashMap<>();
+    private final Set<Long> pending = new HashSet<>(); // Books changed since the current version
+    private final Set<Long> merged = new HashSet<>(); // Books changed by the merge in progress
+    private boolean merging; // Set while changes from another instance are merged
+    private boolean reverting; // Set while moving between versions, whose states are already known
+
+    /**
+     * Starts a history at the library's current state, keeping up to
+     * DEFAULT_MAX_STEPS steps.
+     */
+    public UndoHistory(BookMenu menu) {
+        this(menu, DEFAULT_MAX_STEPS);
+    }
+
+    /**
+     * Starts a history at the library's current state.
+     *
+     * @param maxSteps The number of steps kept; the oldest are forgotten.
+     */
+    public UndoHistory(BookMenu menu, int maxSteps) {
+        if (maxSteps < 1) {
+            throw new IllegalArgumentException("maxSteps must be at least 1");
+        }
+        this.menu = menu;
+        this.maxSteps = maxSteps;
+        List<BookRecord> states = new ArrayList<>();
+        for (Book b : menu.listAllBooks()) {
+            states.add(stateOf(b));
+        }
+        versions.add(new Version(PersistentBookMap.of(states), null, 0));
+        menu.addBookListener(id -> {
+            if (!reverting) {
+                (merging ? merged : pending).add(id);
+            }
+        });
+        menu.addMergeListener(new BookMenu.MergeListener() {
+            @Override
+            public void beforeMerge() {
+                checkpoint(UNNAMED_STEP); // So the current version is exactly what the merge starts from
+                merging = true;
+            }
+
+            @Override
+            public void afterMerge() {
+                merging = false;
+                rebase(merged);
+                merged.clear();
+            }
+        });
+    }
+
+    /**
+     * Records the changes made since the last step as a new step, dropping
+     * any steps that could have been redone.
+     *
+     * @param label Describes the step, e.g. "Remove 3 books".
+     * @return false if nothing changed, in which case no step is added.
+     */
+    public boolean checkpoint(String label) {
+        if (pending.isEmpty()) {
+            return false;
+        }
+        PersistentBookMap before = books(current);
+        PersistentBookMap after = before;
+        for (long id : pending) {
+            Book b = menu.findBookById(id);
+            if (b == null) {
+                after = after.remove(id);
+            } else {
+                BookRecord state = stateOf(b);
+                if (!sameState(state, after.get(id))) {
+                    after = after.put(state);
+                }
+            }
+        }
+        pending.clear();
+        if (after == before) {
+            return false; // Edited back to what it was
+        }
+        versions.subList(current + 1, versions.size()).clear();
+        versions.add(new Version(after, label, merges.size()));
+        if (versions.size() > maxSteps + 1) {
+            versions.subList(0, versions.size() - maxSteps - 1).clear();
+        }
+        current = versions.size() - 1;
+        return true;
+    }
+
+    public boolean canUndo() {
+        return current > 0 || !pending.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return current < versions.size() - 1 && pending.isEmpty();
+    }
+
+    /**
+     * @return The label of the step undo would revert, or null if there is
+     *         none.
+     */
+    public String undoLabel() {
+        if (!pending.isEmpty()) {
+            return UNNAMED_STEP;
+        }
+        return current > 0 ? versions.get(current).label() : null;
+    }
+
+    /**
+     * @return The label of the step redo would repeat, or null if there is
+     *         none.
+     */
+    public String redoLabel() {
+        return canRedo() ? versions.get(current + 1).label() : null;
+    }
+
+    /**
+     * Reverts the last step. Changes not yet checkpointed become a step of
+     * their own first, so they are what gets undone.
+     *
+     * @return false if there was nothing to undo.
+     */
+    public boolean undo() {
+        checkpoint(UNNAMED_STEP);
+        if (current == 0) {
+            return false;
+        }
+        jumpTo(current - 1);
+        return true;
+    }
+
+    /**
+     * Repeats the last undone step.
+     *
+     * @return false if there was nothing to redo.
+     */
+    public boolean redo() {
+        if (!canRedo()) {
+            return false;
+        }
+        jumpTo(current + 1);
+        return true;
+    }
+
+    /**
+     * Brings the library to any version in the history. Uncheckpointed
+     * changes are checkpointed first, which drops the redo steps.
+     *
+     * @param version Between 0 (the oldest kept) and versionCount() - 1.
+     */
+    public void jumpTo(int version) {
+        checkpoint(UNNAMED_STEP);
+        if (version < 0 || version >= versions.size()) {
+            throw new IndexOutOfBoundsException("No version " + version + " in a history of " + versions.size());
+        }
+        if (version == current) {
+            return;
+        }
+        Map<Long, BookRecord> states = new HashMap<>();
+        PersistentBookMap.diff(books(current), books(version),
+                (from, to) -> states.put(from != null ? from.id() : to.id(), to));
+        reverting = true;
+        try {
+            menu.revertBooks(states);
+        } finally {
+            reverting = false;
+        }
+        current = version;
+    }
+
+    /**
+     * @return The number of versions kept, including the current one.
+     */
+    public int versionCount() {
+        return versions.size();
+    }
+
+    /**
+     * @return The index of the version the library is at.
+     */
+    public int currentVersion() {
+        return current;
+    }
+
+    /**
+     * @return The label of the step that led to a version, or null for the
+     *         version the history started at.
+     */
+    public String label(int version) {
+        return versions.get(version).label();
+    }
+
+    /**
+     * Folds merged changes into every version, as if the peer had made them
+     * before the history started. Each merged field replaces that field in
+     * the versions that have the book; a book the merge added is added to
+     * every version, and one it removed is removed from every version.
+     *
+     * The merge's edits are recorded, and only the current version is
+     * rewritten now; the others are when books needs them. Once
+     * MAX_UNFOLDED_MERGES merges are pending, every version is brought up to
+     * date and the edits are dropped. Versions share structure, and so do
+     * their rewrites (see PersistentBookMap.Rewriter), so that costs about as
+     * much as the merges rather than that times the number of versions.
+     *
+     * @param ids The books the merge changed. The current version still holds
+     *            their state from before the merge.
+     */
+    private void rebase(Set<Long> ids) {
+        PersistentBookMap base = books(current);
+        Map<Long, UnaryOperator<BookRecord>> edits = new HashMap<>();
+        for (long id : ids) {
+            BookRecord before = base.get(id);
+            Book b = menu.findBookById(id);
+            BookRecord after = b == null ? null : stateOf(b);
+            if (after == null || before == null) {
+                edits.put(id, r -> after);
+            } else if (!sameState(before, after)) {
+                edits.put(id, r -> r == null ? null : rebased(r, before, after));
+            }
+        }
+        if (edits.isEmpty()) {
+            return;
+        }
+        merges.add(edits);
+        rewriters.clear(); // Each covered the merges up to this one
+        books(current);
+        if (merges.size() > MAX_UNFOLDED_MERGES) {
+            for (int i = 0; i < versions.size(); i++) {
+                books(i);
+            }
+            merges.clear();
+            rewriters.clear();
+            versions.replaceAll(v -> new Version(v.books(), v.label(), 0));
+        }
+    }
+
+    /**
+     * @return The books of a version with every merge folded in. The version
+     *         is kept that way, so each merge is folded into it only once.
+     */
+    private PersistentBookMap books(int version) {
+        Version v = versions.get(version);
+        if (v.rebased() < merges.size()) {
+            PersistentBookMap.Rewriter rewriter = rewriters.computeIfAbsent(v.rebased(), this::rewriterFrom);
+            v = new Version(rewriter.apply(v.books()), v.label(), merges.size());
+            versions.set(version, v);
+        }
+        return v.books();
+    }
+
+    // A rewriter for the merges from first on, each book's edits applied in merge order
+    private PersistentBookMap.Rewriter rewriterFrom(int first) {
+        Map<Long, UnaryOperator<BookRecord>> edits = new HashMap<>();
+        for (Map<Long, UnaryOperator<BookRecord>> merge : merges.subList(first, merges.size())) {
+            merge.forEach((id, edit) -> edits.merge(id, edit, (earlier, later) -> r -> later.apply(earlier.apply(r))));
+        }
+        return new PersistentBookMap.Rewriter(edits);
+    }
+
+    // A version's state of a book with the fields a merge changed from before to after
+    private static BookRecord rebased(BookRecord r, BookRecord before, BookRecord after) {
+        return new BookRecord(r.id(),
+                pick(r.name(), before.name(), after.name()),
+                pick(r.author(), before.author(), after.author()),
+                pick(r.year(), before.year(), after.year()),
+                pick(r.genre(), before.genre(), after.genre()),
+                pick(r.readingStatus(), before.readingStatus(), after.readingStatus()),
+                pick(r.rating(), before.rating(), after.rating()),
+                pick(r.reviewHandle(), before.reviewHandle(), after.reviewHandle()),
+                pick(r.tags(), before.tags(), after.tags()), 0, 0, null);
+    }
+
+    private static <T> T pick(T mine, T before, T after) {
+        return Objects.deepEquals(before, after) ? mine : after;
+    }
+
+    // A book's fields without its sync versions, which undo does not restore
+    private static BookRecord stateOf(Book b) {
+        return new BookRecord(b.getId(), b.getName(), b.getAuthor(), b.getYear(), b.getGenre(),
+                b.getReadingStatus(), b.getRating(), b.getReviewHandle(), b.tagArray(), 0, 0, null);
+    }
+
+    // Compares the fields stateOf keeps. Not BookRecord.equals, which compares the tag arrays by reference.
+    private static boolean sameState(BookRecord a, BookRecord b) {
+        return a != null && b != null && a.id() == b.id() && Objects.equals(a.name(), b.name())
+                && Objects.equals(a.author(), b.author()) && a.year() == b.year()
+                && Objects.equals(a.genre(), b.genre()) && Objects.equals(a.readingStatus(), b.readingStatus())
+                && a.rating() == b.rating() && a.reviewHandle() == b.reviewHandle()
+                && Arrays.equals(a.tags(), b.tags());
+    }
+}
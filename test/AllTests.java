@@ -0,0 +1,30 @@
+/**
+ * Runs every test class. From the repository root:
+ *
+ * <pre>
+ * javac -d out src/*.java test/*.java && java -cp out AllTests
+ * </pre>
+ *
+ * Each test class has a main method that runs its tests and throws on the
+ * first failure, so it can also be run on its own.
+ */
+public class AllTests {
+    public static void main(String[] args) throws Exception {
+        TopKTest.main(args);
+        ReviewStoreTest.main(args);
+        ReadingLogTest.main(args);
+        LongBookMapTest.main(args);
+        FuzzyIndexTest.main(args);
+        SyncDeltaTest.main(args);
+        SyncServiceTest.main(args);
+        BookMenuTest.main(args);
+        BookTrackrCliTest.main(args);
+        LibrarySnapshotsTest.main(args);
+        AutosaverTest.main(args);
+        BookBitmapTest.main(args);
+        BookQueryTest.main(args);
+        PersistentBookMapTest.main(args);
+        UndoHistoryTest.main(args);
+        System.out.println("All tests passed.");
+    }
+}
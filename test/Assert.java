@@ -0,0 +1,37 @@
+import java.util.Objects;
+
+/**
+ * The few assertions the tests need, so they run with a plain JDK and no test
+ * framework (see AllTests).
+ */
+final class Assert {
+    private Assert() {
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * Runs code that must throw an exception of the given type.
+     */
+    static void fails(Class<? extends Throwable> type, Runnable code, String message) {
+        try {
+            code.run();
+        } catch (Throwable t) {
+            if (type.isInstance(t)) {
+                return;
+            }
+            throw new AssertionError(message + ": threw " + t, t);
+        }
+        throw new AssertionError(message + ": nothing was thrown");
+    }
+}
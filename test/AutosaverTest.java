@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Tests for Autosaver: closing saves the last edit right away, however
+ * recently it was made, and writes nothing when everything is saved.
+ */
+public class AutosaverTest {
+    public static void main(String[] args) throws Exception {
+        ReviewStore previous = ReviewStore.getDefault();
+        try {
+            closeSavesTheLastEdit();
+            closeWithNothingUnsavedWritesNothing();
+        } finally {
+            ReviewStore.setDefault(previous);
+        }
+        System.out.println("AutosaverTest passed");
+    }
+
+    static void closeSavesTheLastEdit() throws Exception {
+        Path directory = Files.createTempDirectory("booktrackr-autosave-test");
+        ExecutorService modelThread = Executors.newSingleThreadExecutor();
+        try {
+            LibrarySnapshots snapshots = new LibrarySnapshots(directory);
+            ReviewStore.setDefault(snapshots.reviews());
+            BookMenu menu = new BookMenu();
+            Autosaver autosaver = new Autosaver(snapshots, menu::snapshot, modelThread);
+            menu.addChangeListener(autosaver::markDirty);
+            Book dune = new Book("Dune", "Frank Herbert", 1965);
+            on(modelThread, () -> menu.addBook(dune));
+            // Well within the quiet period, so only close can have saved it
+            on(modelThread, () -> {
+                dune.setRating(5);
+                menu.notifyBookChanged(dune);
+                autosaver.close();
+            });
+            Assert.equal(1, snapshots.list().size(), "snapshots written");
+            BookMenu loaded = new BookMenu();
+            new LibrarySnapshots(directory).loadLatest(r -> loaded.addBook(r.toBook()), true);
+            Assert.equal(5, loaded.findBookById(dune.getId()).getRating(), "last edit");
+        } finally {
+            modelThread.shutdown();
+            delete(directory);
+        }
+    }
+
+    static void closeWithNothingUnsavedWritesNothing() throws Exception {
+        Path directory = Files.createTempDirectory("booktrackr-autosave-test");
+        ExecutorService modelThread = Executors.newSingleThreadExecutor();
+        try {
+            LibrarySnapshots snapshots = new LibrarySnapshots(directory);
+            ReviewStore.setDefault(snapshots.reviews());
+            BookMenu menu = new BookMenu();
+            Autosaver autosaver = new Autosaver(snapshots, menu::snapshot, modelThread);
+            on(modelThread, autosaver::close);
+            Assert.equal(0, snapshots.list().size(), "snapshots written");
+        } finally {
+            modelThread.shutdown();
+            delete(directory);
+        }
+    }
+
+    // --- Helpers ---
+
+    private static void on(ExecutorService modelThread, Runnable task) throws InterruptedException,
+            ExecutionException {
+        modelThread.submit(task).get();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Tests for BookBitmap, mainly that chunks stay correct as they switch
+ * between array and bitmap containers at 4096 values.
+ */
+public class BookBitmapTest {
+    private static final int ARRAY_MAX = 4096; // As in BookBitmap
+    private static final int CHUNK = 1 << 16;
+
+    public static void main(String[] args) {
+        crossesArrayMaxBothWays();
+        setOperationsMatchBitSet();
+        copyIsIndependent();
+        forEachWhileStopsEarly();
+        rejectsNegativeValues();
+        System.out.println("BookBitmapTest passed");
+    }
+
+    static void crossesArrayMaxBothWays() {
+        BookBitmap bitmap = new BookBitmap();
+        BitSet expected = new BitSet();
+        bitmap.add(CHUNK + 7); // Another chunk, which must not be disturbed
+        expected.set(CHUNK + 7);
+        for (int i = 0; i <= ARRAY_MAX; i++) {
+            bitmap.add(i * 13 % CHUNK);
+            expected.set(i * 13 % CHUNK);
+            if (i >= ARRAY_MAX - 1) {
+                same(expected, bitmap, "around the switch to a bitmap, at " + (i + 1) + " values");
+            }
+        }
+        bitmap.add(0); // Already present in the bitmap container
+        same(expected, bitmap, "adding a present value");
+        for (int i = ARRAY_MAX; i >= 0; i--) {
+            bitmap.remove(i * 13 % CHUNK);
+            expected.clear(i * 13 % CHUNK);
+            if (i >= ARRAY_MAX - 2 || i <= 1) {
+                same(expected, bitmap, "around the switch back to an array, at " + i + " values");
+            }
+        }
+        bitmap.remove(CHUNK + 7);
+        Assert.check(bitmap.isEmpty(), "empty once every value is removed");
+        bitmap.add(5);
+        same(full(5, 6), bitmap, "usable after emptying");
+    }
+
+    static void setOperationsMatchBitSet() {
+        Random random = new Random(11);
+        BitSet[] sets = {
+                new BitSet(),
+                randomSet(random, 0, 100), // Sparse
+                randomSet(random, 0, ARRAY_MAX - 10), // Just below the switch
+                randomSet(random, 0, ARRAY_MAX + 10), // Just above
+                randomSet(random, 0, 40_000), // Dense
+                randomSet(random, CHUNK, 5000), // Another chunk only
+                full(0, CHUNK), // Every value of a chunk
+        };
+        sets[4].or(randomSet(random, 3 * CHUNK, 200)); // Dense here, sparse in a chunk of its own
+        BookBitmap[] bitmaps = new BookBitmap[sets.length];
+        for (int i = 0; i < sets.length; i++) {
+            bitmaps[i] = toBitmap(sets[i]);
+            same(sets[i], bitmaps[i], "set " + i);
+        }
+        for (int i = 0; i < sets.length; i++) {
+            for (int j = 0; j < sets.length; j++) {
+                String pair = " of sets " + i + " and " + j;
+                BitSet and = (BitSet) sets[i].clone();
+                and.and(sets[j]);
+                BitSet or = (BitSet) sets[i].clone();
+                or.or(sets[j]);
+                BitSet andNot = (BitSet) sets[i].clone();
+                andNot.andNot(sets[j]);
+                same(and, BookBitmap.and(bitmaps[i], bitmaps[j]), "and" + pair);
+                same(or, BookBitmap.or(bitmaps[i], bitmaps[j]), "or" + pair);
+                same(andNot, BookBitmap.andNot(bitmaps[i], bitmaps[j]), "andNot" + pair);
+                Assert.equal(and.cardinality(), BookBitmap.andCardinality(bitmaps[i], bitmaps[j]),
+                        "andCardinality" + pair);
+                Assert.equal(or.cardinality(), BookBitmap.orCardinality(bitmaps[i], bitmaps[j]),
+                        "orCardinality" + pair);
+                Assert.equal(andNot.cardinality(), BookBitmap.andNotCardinality(bitmaps[i], bitmaps[j]),
+                        "andNotCardinality" + pair);
+            }
+        }
+        // Results keep working as sets, whichever container kind they ended up with
+        BookBitmap result = BookBitmap.and(bitmaps[4], bitmaps[6]);
+        BitSet expected = (BitSet) sets[4].clone();
+        expected.and(sets[6]);
+        for (int v = 0; v < CHUNK; v += 2) {
+            result.remove(v);
+            expected.clear(v);
+        }
+        same(expected, result, "a result after removing");
+    }
+
+    static void copyIsIndependent() {
+        BookBitmap original = toBitmap(full(0, ARRAY_MAX + 1));
+        BookBitmap copy = original.copy();
+        copy.remove(0);
+        copy.add(CHUNK);
+        same(full(0, ARRAY_MAX + 1), original, "original unchanged");
+        Assert.equal(ARRAY_MAX + 1, copy.cardinality(), "copy changed");
+        Assert.check(!copy.contains(0) && copy.contains(CHUNK), "copy contents");
+    }
+
+    static void forEachWhileStopsEarly() {
+        // An array chunk, a bitmap chunk and another array chunk
+        BookBitmap bitmap = toBitmap(full(0, 10));
+        bitmap = BookBitmap.or(bitmap, toBitmap(full(CHUNK, CHUNK + ARRAY_MAX + 1)));
+        bitmap.add(3 * CHUNK);
+        for (int stop : new int[] { 5, CHUNK + 100, 3 * CHUNK }) {
+            int[] visited = { 0 };
+            int[] last = { -1 };
+            boolean all = bitmap.forEachWhile(v -> {
+                visited[0]++;
+                last[0] = v;
+                return v < stop;
+            });
+            Assert.check(!all, "stopped at " + stop);
+            Assert.equal(stop, last[0], "last value visited");
+            Assert.equal((int) Arrays.stream(bitmap.toArray()).filter(v -> v <= stop).count(), visited[0],
+                    "values visited up to " + stop);
+        }
+        Assert.check(bitmap.forEachWhile(v -> true), "visits everything");
+    }
+
+    static void rejectsNegativeValues() {
+        BookBitmap bitmap = new BookBitmap();
+        Assert.fails(IllegalArgumentException.class, () -> bitmap.add(-1), "negative value");
+        Assert.check(!bitmap.contains(-1), "contains a negative value");
+        bitmap.remove(-1); // Ignored
+        Assert.check(bitmap.isEmpty(), "still empty");
+    }
+
+    // Checks contents, cardinality and ascending order against a BitSet
+    private static void same(BitSet expected, BookBitmap actual, String message) {
+        Assert.equal(expected.cardinality(), actual.cardinality(), message + ": cardinality");
+        Assert.check(Arrays.equals(expected.stream().toArray(), actual.toArray()), message + ": values");
+        for (int v = expected.nextSetBit(0); v >= 0; v = expected.nextSetBit(v + 1)) {
+            Assert.check(actual.contains(v), message + ": contains " + v);
+            Assert.check(!actual.contains(v + 1) || expected.get(v + 1), message + ": does not contain " + (v + 1));
+        }
+    }
+
+    private static BitSet randomSet(Random random, int base, int count) {
+        BitSet set = new BitSet();
+        while (set.cardinality() < count) {
+            set.set(base + random.nextInt(CHUNK));
+        }
+        return set;
+    }
+
+    private static BitSet full(int from, int to) {
+        BitSet set = new BitSet();
+        set.set(from, to);
+        return set;
+    }
+
+    private static BookBitmap bitmap(int... values) {
+        BookBitmap bitmap = new BookBitmap();
+        for (int v : values) {
+            bitmap.add(v);
+        }
+        return bitmap;
+    }
+
+    private static BookBitmap toBitmap(BitSet set) {
+        return bitmap(set.stream().toArray());
+    }
+}
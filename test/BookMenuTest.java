@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for BookMenu's batch updates: updateBooks and removeBooks change
+ * every known book, keep the indexes in step, store a batch review once and
+ * notify change listeners once per batch.
+ */
+public class BookMenuTest {
+    public static void main(String[] args) throws IOException {
+        ReviewStore previous = ReviewStore.getDefault();
+        Path file = Files.createTempFile("booktrackr-menu-test", ".dat");
+        try {
+            ReviewStore store = new ReviewStore(file);
+            ReviewStore.setDefault(store);
+            updatesEveryBookWithOneNotification(store);
+            badRatingIsRejectedUpFront();
+            removesEveryBookWithOneNotification();
+            store.close();
+        } finally {
+            ReviewStore.setDefault(previous);
+            Files.deleteIfExists(file);
+        }
+        System.out.println("BookMenuTest passed");
+    }
+
+    static void updatesEveryBookWithOneNotification(ReviewStore store) {
+        BookMenu menu = new BookMenu();
+        List<Book> books = addBooks(menu, 5);
+        int[] changes = { 0 };
+        List<Long> changed = new ArrayList<>();
+        menu.addChangeListener(() -> changes[0]++);
+        menu.addBookListener(changed::add);
+
+        long[] ids = { books.get(0).getId(), books.get(2).getId(), 12345, books.get(4).getId() };
+        long before = store.size();
+        int updated = menu.updateBooks(ids, new BookChange().setReadingStatus("finished").setRating(4)
+                .setReview("A batch review, stored once."));
+        Assert.equal(3, updated, "books updated");
+        Assert.equal(1, changes[0], "change notifications");
+        Assert.equal(List.of(ids[0], ids[1], ids[3]), changed, "books reported changed");
+        for (int i : new int[] { 0, 2, 4 }) {
+            Book b = books.get(i);
+            Assert.equal("finished", b.getReadingStatus(), "status " + i);
+            Assert.equal(4, b.getRating(), "rating " + i);
+            Assert.equal("A batch review, stored once.", b.getReview(), "review " + i);
+            Assert.equal(books.get(0).getReviewHandle(), b.getReviewHandle(), "shared review " + i);
+        }
+        Assert.equal(before + store.entryLength(books.get(0).getReviewHandle()), store.size(), "review stored once");
+        Assert.equal("to-be-read", books.get(1).getReadingStatus(), "untouched book");
+
+        // The indexes follow the batch
+        Assert.equal(3, menu.count(new BookQuery().status("finished")), "finished books");
+        Assert.equal(2, menu.count(new BookQuery().status("to-be-read")), "books still to read");
+        Assert.equal(3, menu.query(new BookQuery().rating(4)).size(), "books rated 4");
+
+        // Nothing to change, or nothing changed, notifies nobody
+        Assert.equal(0, menu.updateBooks(ids, new BookChange()), "empty change");
+        Assert.equal(0, menu.updateBooks(new long[] { 12345 }, new BookChange().setRating(1)), "unknown ids");
+        Assert.equal(1, changes[0], "no further notifications");
+    }
+
+    static void badRatingIsRejectedUpFront() {
+        BookMenu menu = new BookMenu();
+        List<Book> books = addBooks(menu, 3);
+        int[] changes = { 0 };
+        menu.addChangeListener(() -> changes[0]++);
+        Assert.fails(IllegalArgumentException.class, () -> new BookChange().setRating(6), "rating above 5");
+        Assert.fails(IllegalArgumentException.class, () -> new BookChange().setRating(-1), "negative rating");
+        Assert.equal(0, changes[0], "no notification");
+        for (Book b : books) {
+            Assert.equal(0, b.getRating(), "rating unchanged");
+        }
+    }
+
+    static void removesEveryBookWithOneNotification() {
+        BookMenu menu = new BookMenu();
+        List<Book> books = addBooks(menu, 4);
+        int[] changes = { 0 };
+        menu.addChangeListener(() -> changes[0]++);
+        long[] ids = { books.get(1).getId(), 12345, books.get(3).getId() };
+        Assert.equal(2, menu.removeBooks(ids), "books removed");
+        Assert.equal(1, changes[0], "change notifications");
+        Assert.equal(2, menu.size(), "books left");
+        Assert.check(menu.findBookById(ids[0]) == null && menu.findBookById(ids[2]) == null, "removed");
+        Assert.check(menu.getSyncState().tombstones().keySet().containsAll(List.of(ids[0], ids[2])),
+                "tombstones for the removed books");
+        Assert.equal(2, menu.count(new BookQuery().status("to-be-read")), "indexes");
+        Assert.equal(0, menu.removeBooks(ids), "removed again");
+        Assert.equal(1, changes[0], "no further notifications");
+    }
+
+    // --- Helpers ---
+
+    private static List<Book> addBooks(BookMenu menu, int count) {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Book b = new Book("Book " + i, "Author " + i, 2000 + i);
+            b.setReadingStatus("to-be-read");
+            books.add(b);
+            menu.addBook(b);
+        }
+        return books;
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Tests for BookMenu's query planner: whichever access path it picks (the
+ * status, genre and tag bitmaps, the rating or year index, or a scan of every
+ * book), query and count must agree with filtering and sorting every book by
+ * brute force, also after books are edited and removed.
+ */
+public class BookQueryTest {
+    private static final String[] TAGS = { "owned", "borrowed", "signed", "book club", "rare" };
+    private static final String[] ORDERS = { null, "Title", "Author", "Year" };
+
+    public static void main(String[] args) {
+        Random random = new Random(33);
+        BookMenu menu = new BookMenu();
+        List<Book> added = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Book b = randomBook(random);
+            added.add(b);
+            menu.addBook(b);
+        }
+        eachAccessPath(menu);
+        randomQueries(menu, random);
+
+        // Edits move books between buckets, and removed ordinals are reused
+        for (int i = 0; i < 500; i++) {
+            Book b = added.get(random.nextInt(added.size()));
+            if (menu.findBookById(b.getId()) == null) {
+                continue;
+            }
+            if (i % 3 == 0) {
+                menu.removeBook(b);
+            } else {
+                b.setRating(random.nextInt(6));
+                b.setYear(random.nextInt(4) == 0 ? 0 : 1900 + random.nextInt(120));
+                b.setReadingStatus(Book.STATUSES[random.nextInt(Book.STATUSES.length)]);
+                b.setTags(randomTags(random));
+                menu.notifyBookChanged(b);
+            }
+        }
+        for (int i = 0; i < 300; i++) {
+            menu.addBook(randomBook(random));
+        }
+        eachAccessPath(menu);
+        randomQueries(menu, random);
+        System.out.println("BookQueryTest passed");
+    }
+
+    // One query per access path, each narrowest on the path it is meant to take
+    static void eachAccessPath(BookMenu menu) {
+        List<Function<BookQuery, BookQuery>> queries = List.of(
+                q -> q.tagged("rare").status("reading"), // Bitmaps
+                q -> q.genreIn("Drama", "Comedy").taggedAny("signed", "owned").notTagged("borrowed"),
+                q -> q.rating(5).status("finished"), // Rating index
+                q -> q.minRating(4).where(b -> b.getName().contains("7")),
+                q -> q.yearBetween(1950, 1955).taggedAny("owned", "borrowed"), // Year index
+                q -> q.yearBetween(2030, 1990), // Inverted, so empty
+                q -> q, // Scan
+                q -> q.notTagged("owned"),
+                q -> q.where(b -> b.getAuthor().endsWith("3")));
+        for (Function<BookQuery, BookQuery> query : queries) {
+            for (String order : ORDERS) {
+                check(menu, query.apply(new BookQuery()).orderBy(order));
+                check(menu, query.apply(new BookQuery()).orderBy(order).limit(10));
+                check(menu, query.apply(new BookQuery()).orderBy(order).offset(25).limit(40));
+                check(menu, query.apply(new BookQuery()).orderBy(order).offset(100_000));
+            }
+        }
+    }
+
+    static void randomQueries(BookMenu menu, Random random) {
+        for (int i = 0; i < 300; i++) {
+            BookQuery q = new BookQuery();
+            if (random.nextInt(4) == 0) {
+                q.status(Book.STATUSES[1 + random.nextInt(Book.STATUSES.length - 1)]);
+            }
+            if (random.nextInt(5) == 0) {
+                q.genreIn(Book.GENRES[1 + random.nextInt(8)], Book.GENRES[1 + random.nextInt(8)]);
+            }
+            if (random.nextInt(4) == 0) {
+                q.tagged(TAGS[random.nextInt(TAGS.length)]);
+            }
+            if (random.nextInt(5) == 0) {
+                q.taggedAny(TAGS[random.nextInt(TAGS.length)], TAGS[random.nextInt(TAGS.length)]);
+            }
+            if (random.nextInt(5) == 0) {
+                q.notTagged(TAGS[random.nextInt(TAGS.length)]);
+            }
+            if (random.nextInt(3) == 0) {
+                if (random.nextBoolean()) {
+                    q.rating(random.nextInt(6));
+                } else {
+                    q.minRating(random.nextInt(6));
+                }
+            }
+            if (random.nextInt(3) == 0) {
+                int from = 1900 + random.nextInt(120);
+                q.yearBetween(random.nextInt(10) == 0 ? 0 : from, from + random.nextInt(30));
+            }
+            if (random.nextInt(6) == 0) {
+                int digit = random.nextInt(10);
+                q.where(b -> b.getId() % 10 == digit);
+            }
+            q.orderBy(ORDERS[random.nextInt(ORDERS.length)]);
+            if (random.nextBoolean()) {
+                q.offset(random.nextInt(50)).limit(1 + random.nextInt(60));
+            }
+            check(menu, q);
+        }
+    }
+
+    // --- Helpers ---
+
+    private static void check(BookMenu menu, BookQuery q) {
+        List<Book> expected = new ArrayList<>();
+        for (Book b : menu.listAllBooks()) {
+            if (q.matches(b)) {
+                expected.add(b);
+            }
+        }
+        Assert.equal(expected.size(), menu.count(q), "count");
+        List<Book> actual = menu.query(q);
+        Comparator<Book> comp = q.comparator();
+        if (comp != null) {
+            expected.sort(comp);
+            Assert.equal(window(expected, q), actual, "results ordered by " + q.orderBy);
+            return;
+        }
+        // Any matches will do, as long as there are as many as the window holds
+        Assert.equal(window(expected, q).size(), actual.size(), "unordered results");
+        Set<Book> distinct = new HashSet<>(actual);
+        Assert.equal(actual.size(), distinct.size(), "no book twice");
+        Assert.check(new HashSet<>(expected).containsAll(distinct), "only matching books");
+    }
+
+    private static List<Book> window(List<Book> books, BookQuery q) {
+        int from = Math.min(q.offset, books.size());
+        return books.subList(from, (int) Math.min((long) from + q.limit, books.size()));
+    }
+
+    private static Book randomBook(Random random) {
+        Book b = new Book("Title " + random.nextInt(500), "Author " + random.nextInt(200),
+                random.nextInt(4) == 0 ? 0 : 1900 + random.nextInt(120));
+        b.setGenre(Book.GENRES[random.nextInt(9)]);
+        b.setReadingStatus(Book.STATUSES[random.nextInt(Book.STATUSES.length)]);
+        b.setRating(random.nextInt(6));
+        b.setTags(randomTags(random));
+        return b;
+    }
+
+    private static List<String> randomTags(Random random) {
+        List<String> tags = new ArrayList<>();
+        for (String tag : TAGS) {
+            if (random.nextInt(tag.equals("rare") ? 40 : 4) == 0) {
+                tags.add(tag);
+            }
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Tests for the CSV side of BookTrackrCli: readCsvRow on quoting, line breaks
+ * and blank lines, and a library that is exported, imported into an empty
+ * library and exported again coming out the same.
+ */
+public class BookTrackrCliTest {
+    public static void main(String[] args) throws IOException {
+        readsPlainRows();
+        readsQuotedFields();
+        readsCrlfAndSkipsBlankLines();
+        exportImportRoundTrip();
+        System.out.println("BookTrackrCliTest passed");
+    }
+
+    static void readsPlainRows() throws IOException {
+        List<List<String>> rows = rows("id,title,author\n1,Dune,Frank Herbert\n,,\n2,Emma,Jane Austen");
+        Assert.equal(List.of(List.of("id", "title", "author"), List.of("1", "Dune", "Frank Herbert"),
+                List.of("", "", ""), List.of("2", "Emma", "Jane Austen")), rows, "rows");
+    }
+
+    static void readsQuotedFields() throws IOException {
+        List<List<String>> rows = rows("\"Dune, Part One\",\"The \"\"Spice\"\"\",\"\"\n"
+                + "\"first line\nsecond line\",after\n"
+                + "\"ends in a quote\"\"\"\n");
+        Assert.equal(List.of("Dune, Part One", "The \"Spice\"", ""), rows.get(0), "commas, quotes and empty");
+        Assert.equal(List.of("first line\nsecond line", "after"), rows.get(1), "embedded newline");
+        Assert.equal(List.of("ends in a quote\""), rows.get(2), "escaped quote at the end");
+        Assert.equal(3, rows.size(), "rows");
+    }
+
+    static void readsCrlfAndSkipsBlankLines() throws IOException {
+        List<List<String>> rows = rows("a,b\r\n\"c\r\nd\",e\r\n\r\n\n\r\n");
+        Assert.equal(List.of(List.of("a", "b"), List.of("c\r\nd", "e")), rows, "CRLF rows");
+        Assert.equal(List.of(), rows("\n\n"), "only blank lines");
+        Assert.equal(List.of(), rows(""), "empty input");
+    }
+
+    static void exportImportRoundTrip() throws IOException {
+        ReviewStore previous = ReviewStore.getDefault();
+        Path first = Files.createTempDirectory("booktrackr-cli-test");
+        Path second = Files.createTempDirectory("booktrackr-cli-test");
+        try {
+            LibrarySnapshots source = new LibrarySnapshots(first);
+            ReviewStore.setDefault(source.reviews());
+            BookMenu menu = new BookMenu();
+            Book dune = new Book("Dune, Part One", "Frank \"The Spice\" Herbert", 1965);
+            dune.setGenre("Sci-Fi");
+            dune.setReadingStatus("finished");
+            dune.setRating(5);
+            dune.setReview("Long.\nWorth it,\r\nthough.");
+            dune.setTags(List.of("book club", "owned"));
+            menu.addBook(dune);
+            menu.addBook(new Book("Emma", "Jane Austen", 0));
+            source.write(menu.snapshot());
+            String exported = export(source);
+            Assert.check(exported.startsWith("id,title,author,year,genre,status,rating,review,tags\n"), "header");
+
+            Path csv = first.resolve("library.csv");
+            Files.writeString(csv, exported + "\n\n", StandardCharsets.UTF_8); // Trailing blank lines
+            LibrarySnapshots target = new LibrarySnapshots(second);
+            ReviewStore.setDefault(target.reviews());
+            Assert.equal(0, cli(target, new StringWriter()).execute("import", new String[] { csv.toString() }),
+                    "import exit code");
+            Assert.equal(exported, export(target), "exported again");
+        } finally {
+            ReviewStore.setDefault(previous);
+            delete(first);
+            delete(second);
+        }
+    }
+
+    // --- Helpers ---
+
+    private static List<List<String>> rows(String csv) throws IOException {
+        BufferedReader in = new BufferedReader(new StringReader(csv));
+        List<List<String>> rows = new ArrayList<>();
+        List<String> row;
+        while ((row = BookTrackrCli.readCsvRow(in)) != null) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static String export(LibrarySnapshots snapshots) throws IOException {
+        StringWriter out = new StringWriter();
+        Assert.equal(0, cli(snapshots, out).execute("export", new String[] { "-" }), "export exit code");
+        return out.toString();
+    }
+
+    private static BookTrackrCli cli(LibrarySnapshots snapshots, StringWriter out) {
+        return new BookTrackrCli(snapshots, out, new PrintStream(new ByteArrayOutputStream(), true));
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.List;
+
+/**
+ * Tests for FuzzyIndex: the edit distance allowed for each word length, with
+ * an adjacent swap counting as one edit, and ranking and filtering.
+ */
+public class FuzzyIndexTest {
+    public static void main(String[] args) {
+        shortWordsMustMatchExactly();
+        mediumWordsAllowOneEdit();
+        longWordsAllowTwoEdits();
+        ranksByDistanceThenPopularity();
+        everyWordMustMatch();
+        refilesChangedBooks();
+        filtersBeforeTheLimit();
+        System.out.println("FuzzyIndexTest passed");
+    }
+
+    static void shortWordsMustMatchExactly() {
+        FuzzyIndex index = new FuzzyIndex();
+        Book cat = book("Cat", "Nobody");
+        index.add(cat);
+        Assert.equal(List.of(cat), index.search("cat", 10), "exact");
+        Assert.equal(List.of(cat), index.search("CAT", 10), "case is ignored");
+        Assert.equal(List.of(), index.search("cot", 10), "one edit on 3 letters");
+        Assert.equal(List.of(), index.search("act", 10), "swap on 3 letters");
+    }
+
+    static void mediumWordsAllowOneEdit() {
+        FuzzyIndex index = new FuzzyIndex();
+        Book hobbit = book("The Hobbit", "Tolkien");
+        index.add(hobbit);
+        Assert.equal(List.of(hobbit), index.search("Tolkein", 10), "adjacent swap is one edit");
+        Assert.equal(List.of(hobbit), index.search("Tolkin", 10), "deletion");
+        Assert.equal(List.of(hobbit), index.search("Tolkiens", 10), "insertion");
+        Assert.equal(List.of(hobbit), index.search("Hobbyt", 10), "substitution");
+        Assert.equal(List.of(), index.search("Hobyt", 10), "two edits on 5 letters");
+        Assert.equal(List.of(), index.search("Tlokein", 10), "a swap and another swap on 7 letters");
+    }
+
+    static void longWordsAllowTwoEdits() {
+        FuzzyIndex index = new FuzzyIndex();
+        Book karamazov = book("The Brothers Karamazov", "Dostoevsky");
+        index.add(karamazov);
+        Assert.equal(List.of(karamazov), index.search("Dostoyevsky", 10), "one insertion");
+        Assert.equal(List.of(karamazov), index.search("Dostoyevski", 10), "two edits");
+        Assert.equal(List.of(karamazov), index.search("Kraamzov", 10), "a swap and a deletion");
+        Assert.equal(List.of(), index.search("Dostojevskij", 10), "three edits");
+    }
+
+    static void ranksByDistanceThenPopularity() {
+        FuzzyIndex index = new FuzzyIndex();
+        Book exact = book("Dune", "Herbert");
+        Book popular1 = book("Dunk", "Someone");
+        Book popular2 = book("Dunk", "Someone Else");
+        Book rare = book("Rune", "Another");
+        for (Book b : new Book[] { rare, popular1, exact, popular2 }) {
+            index.add(b);
+        }
+        List<Book> found = index.search("dune", 10);
+        Assert.equal(exact, found.get(0), "exact match first");
+        Assert.check(found.indexOf(popular1) < found.indexOf(rare), "more popular term before a rarer one");
+        Assert.check(found.indexOf(popular2) < found.indexOf(rare), "more popular term before a rarer one");
+        Assert.equal(2, index.search("dune", 2).size(), "limit");
+    }
+
+    static void everyWordMustMatch() {
+        FuzzyIndex index = new FuzzyIndex();
+        Book a = book("War and Peace", "Tolstoy");
+        Book b = book("Peace Talks", "Butcher");
+        index.add(a);
+        index.add(b);
+        Assert.equal(List.of(a), index.search("peace tolstoi", 10), "both words");
+        Assert.equal(2, index.search("peace", 10).size(), "one word");
+    }
+
+    static void refilesChangedBooks() {
+        FuzzyIndex index = new FuzzyIndex();
+        Book b = book("Emma", "Austen");
+        index.add(b);
+        b.setName("Persuasion");
+        index.update(b);
+        Assert.equal(List.of(), index.search("emma", 10), "old title gone");
+        Assert.equal(List.of(b), index.search("persuasion", 10), "new title found");
+        index.remove(b);
+        Assert.equal(List.of(), index.search("austen", 10), "removed");
+    }
+
+    static void filtersBeforeTheLimit() {
+        FuzzyIndex index = new FuzzyIndex();
+        Book wanted = null;
+        for (int i = 0; i < 50; i++) {
+            Book b = book("Foundation " + i, "Asimov");
+            index.add(b);
+            if (i == 49) {
+                wanted = b;
+            }
+        }
+        Book target = wanted;
+        Assert.equal(List.of(target), index.search("foundation", 5, b -> b == target), "one word");
+        Assert.equal(List.of(target), index.search("foundation asimov", 5, b -> b == target), "several words");
+    }
+
+    private static Book book(String title, String author) {
+        return new Book(title, author, 2000);
+    }
+}
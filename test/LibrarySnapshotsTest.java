@@ -0,0 +1,169 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Tests for LibrarySnapshots and the snapshots BookMenu captures: a reload
+ * gives back exactly what was captured, a temporary file left by a crash is
+ * ignored, and a damaged newest snapshot falls back to the one before it.
+ */
+public class LibrarySnapshotsTest {
+    public static void main(String[] args) throws IOException {
+        ReviewStore previous = ReviewStore.getDefault();
+        try {
+            snapshotsFollowEdits();
+            tornTempFileIsIgnored();
+            damagedSnapshotFallsBack();
+        } finally {
+            ReviewStore.setDefault(previous);
+        }
+        System.out.println("LibrarySnapshotsTest passed");
+    }
+
+    static void snapshotsFollowEdits() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-snapshots-test");
+        try {
+            LibrarySnapshots snapshots = open(directory);
+            BookMenu menu = new BookMenu();
+            List<Book> added = new ArrayList<>();
+            for (int i = 0; i < 150; i++) {
+                Book b = new Book("Book " + i, "Author " + (i % 7), 1900 + i);
+                added.add(b);
+                menu.addBook(b);
+            }
+            snapshots.write(menu.snapshot());
+            Assert.equal(content(menu), content(load(directory)), "first snapshot");
+
+            // Only these books are captured again
+            Book edited = added.get(3);
+            edited.setRating(4);
+            edited.setTags(List.of("owned"));
+            menu.notifyBookChanged(edited);
+            menu.removeBook(added.get(5));
+            menu.addBook(new Book("Late Arrival", "Someone", 2024));
+            BookMenu.Snapshot snapshot = menu.snapshot();
+            Assert.equal(menu.size(), snapshot.books().size(), "records");
+            Assert.check(snapshot.books().get(added.get(5).getId()) == null, "removed book");
+            Assert.equal(4, snapshot.books().get(edited.getId()).rating(), "edited book");
+            snapshots.write(snapshot);
+            Assert.equal(content(menu), content(load(directory)), "second snapshot");
+
+            // The head is the first books in list order
+            List<Book> listed = menu.listAllBooks();
+            Assert.equal(LibrarySnapshots.HEAD_SIZE, snapshot.head().size(), "head size");
+            for (int i = 0; i < snapshot.head().size(); i++) {
+                Assert.equal(listed.get(i).getId(), snapshot.head().get(i).id(), "head " + i);
+            }
+            Assert.equal(LibrarySnapshots.HEAD_SIZE, open(directory).readHead().size(), "head cache");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void tornTempFileIsIgnored() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-snapshots-test");
+        try {
+            LibrarySnapshots snapshots = open(directory);
+            BookMenu menu = new BookMenu();
+            menu.addBook(new Book("Dune", "Frank Herbert", 1965));
+            snapshots.write(menu.snapshot());
+
+            // A crash while writing leaves the start of a snapshot under the temporary name
+            Path newest = snapshots.list().get(0);
+            byte[] bytes = Files.readAllBytes(newest);
+            Files.write(directory.resolve("library.snap.tmp"), Arrays.copyOf(bytes, bytes.length / 2));
+            Assert.equal(content(menu), content(load(directory)), "loaded past the temporary file");
+
+            menu.addBook(new Book("Emma", "Jane Austen", 1815));
+            open(directory).write(menu.snapshot());
+            Assert.equal(content(menu), content(load(directory)), "written over the temporary file");
+            Assert.check(!Files.exists(directory.resolve("library.snap.tmp")), "temporary file renamed");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void damagedSnapshotFallsBack() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-snapshots-test");
+        PrintStream err = System.err;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        try {
+            LibrarySnapshots snapshots = open(directory);
+            BookMenu menu = new BookMenu();
+            menu.addBook(new Book("Dune", "Frank Herbert", 1965));
+            snapshots.write(menu.snapshot());
+            String before = content(menu);
+            menu.addBook(new Book("Emma", "Jane Austen", 1815));
+            snapshots.write(menu.snapshot());
+
+            // One flipped bit fails the checksum
+            Path newest = snapshots.list().get(0);
+            try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(1);
+                channel.read(b, 40);
+                b.put(0, (byte) (b.get(0) ^ 1)).rewind();
+                channel.write(b, 40);
+            }
+            Assert.check(!LibrarySnapshots.verify(newest), "bad checksum detected");
+            System.setErr(new PrintStream(log, true));
+            Assert.equal(before, content(load(directory)), "fell back to the previous snapshot");
+
+            // So does a snapshot cut short
+            Files.write(newest, Arrays.copyOf(Files.readAllBytes(snapshots.list().get(1)), 30));
+            Assert.equal(before, content(load(directory)), "fell back past a truncated snapshot");
+        } finally {
+            System.setErr(err);
+            delete(directory);
+        }
+        Assert.check(log.toString().contains("Skipping corrupt snapshot"), "the damage is reported");
+    }
+
+    // --- Helpers ---
+
+    // Opens a library's snapshots as at startup, with its reviews as the default store
+    private static LibrarySnapshots open(Path directory) throws IOException {
+        LibrarySnapshots snapshots = new LibrarySnapshots(directory);
+        ReviewStore.setDefault(snapshots.reviews());
+        return snapshots;
+    }
+
+    private static BookMenu load(Path directory) throws IOException {
+        BookMenu menu = new BookMenu();
+        menu.restoreSyncState(open(directory).loadLatest(r -> menu.addBook(r.toBook()), true));
+        return menu;
+    }
+
+    // Every field of every book, sync versions included, in id order
+    private static String content(BookMenu menu) {
+        StringBuilder text = new StringBuilder();
+        List<Book> books = menu.listAllBooks();
+        books.sort(Comparator.comparingLong(Book::getId));
+        for (Book b : books) {
+            BookRecord r = BookRecord.of(b);
+            text.append(r.id()).append('|').append(r.name()).append('|').append(r.author()).append('|')
+                    .append(r.year()).append('|').append(r.genre()).append('|').append(r.readingStatus())
+                    .append('|').append(r.rating()).append('|').append(r.review()).append('|')
+                    .append(Arrays.toString(r.tags())).append('|').append(r.baseStamp()).append('|')
+                    .append(r.baseSeq()).append('|').append(Arrays.toString(r.versions())).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
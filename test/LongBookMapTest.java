@@ -0,0 +1,88 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for LongBookMap, mainly that backward-shift deletion keeps every
+ * probe chain intact.
+ */
+public class LongBookMapTest {
+    public static void main(String[] args) {
+        matchesHashMapUnderChurn();
+        removeKeepsCollidingKeysReachable();
+        rejectsTheReservedKey();
+        System.out.println("LongBookMapTest passed");
+    }
+
+    static void matchesHashMapUnderChurn() {
+        Random random = new Random(3);
+        Book[] books = new Book[16];
+        for (int i = 0; i < books.length; i++) {
+            books[i] = new Book("Book " + i, "Author", 2000);
+        }
+        LongBookMap map = new LongBookMap();
+        Map<Long, Book> expected = new HashMap<>();
+        for (int step = 0; step < 200_000; step++) {
+            // Few distinct keys, so chains are long and removes shift a lot
+            long key = 1 + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                Assert.equal(expected.remove(key), map.remove(key), "remove " + key);
+            } else {
+                Book b = books[random.nextInt(books.length)];
+                Assert.equal(expected.put(key, b), map.put(key, b), "put " + key);
+            }
+        }
+        Assert.equal(expected.size(), map.size(), "size");
+        for (long key = 1; key <= 2000; key++) {
+            Assert.equal(expected.get(key), map.get(key), "get " + key);
+        }
+        Assert.equal(expected.size(), map.values().size(), "values size");
+        int seen = 0;
+        for (Book b : map.values()) {
+            Assert.check(b != null, "values has no empty slots");
+            seen++;
+        }
+        Assert.equal(expected.size(), seen, "values iterated");
+    }
+
+    static void removeKeepsCollidingKeysReachable() {
+        // Keys are removed in every order relative to their chain, including
+        // chains that wrap past the end of the table.
+        Random random = new Random(4);
+        for (int round = 0; round < 200; round++) {
+            LongBookMap map = new LongBookMap();
+            Set<Long> keys = new HashSet<>();
+            Book b = new Book("Book", "Author", 2000);
+            while (keys.size() < 9) { // Just below the first resize of a 16-slot table
+                long key = 1 + random.nextInt(1_000_000);
+                keys.add(key);
+                map.put(key, b);
+            }
+            Long[] order = keys.toArray(new Long[0]);
+            for (int i = order.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                Long t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+            }
+            for (Long key : order) {
+                Assert.equal(b, map.remove(key), "remove " + key);
+                keys.remove(key);
+                for (long left : keys) {
+                    Assert.equal(b, map.get(left), "still reachable: " + left);
+                }
+                Assert.equal(null, map.get(key), "gone: " + key);
+            }
+            Assert.equal(0, map.size(), "empty");
+        }
+    }
+
+    static void rejectsTheReservedKey() {
+        LongBookMap map = new LongBookMap();
+        Assert.fails(IllegalArgumentException.class, () -> map.put(0, new Book("Book", "Author", 2000)), "put 0");
+        Assert.equal(null, map.get(0), "get 0");
+        Assert.equal(null, map.remove(0), "remove 0");
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.UnaryOperator;
+
+/**
+ * Tests for PersistentBookMap: old versions never change, removing collapses
+ * the trie back to the shape a fresh build has, diff reports exactly the
+ * records that differ, and a Rewriter edits many versions like editing each.
+ */
+public class PersistentBookMapTest {
+    public static void main(String[] args) {
+        matchesHashMapUnderChurn();
+        versionsAreUnchanged();
+        removeCollapsesToTheBuiltShape();
+        diffReportsExactlyTheChanges();
+        rewriterMatchesEditingEachMap();
+        System.out.println("PersistentBookMapTest passed");
+    }
+
+    static void matchesHashMapUnderChurn() {
+        Random random = new Random(7);
+        PersistentBookMap map = PersistentBookMap.EMPTY;
+        Map<Long, BookRecord> expected = new HashMap<>();
+        for (int step = 0; step < 50_000; step++) {
+            long id = randomId(random, 3000);
+            if (random.nextInt(3) == 0) {
+                map = map.remove(id);
+                expected.remove(id);
+            } else {
+                BookRecord r = record(id, "v" + step);
+                map = map.put(r);
+                expected.put(id, r);
+            }
+            Assert.equal(expected.size(), map.size(), "size at step " + step);
+            Assert.equal(expected.get(id), map.get(id), "get at step " + step);
+        }
+        same(expected, map, "after churn");
+    }
+
+    static void versionsAreUnchanged() {
+        Random random = new Random(8);
+        List<PersistentBookMap> versions = new ArrayList<>();
+        List<Map<Long, BookRecord>> contents = new ArrayList<>();
+        PersistentBookMap map = PersistentBookMap.EMPTY;
+        Map<Long, BookRecord> expected = new HashMap<>();
+        for (int step = 0; step < 500; step++) {
+            long id = randomId(random, 200);
+            if (random.nextBoolean()) {
+                map = map.remove(id);
+                expected.remove(id);
+            } else {
+                map = map.put(record(id, "v" + step));
+                expected.put(id, map.get(id));
+            }
+            versions.add(map);
+            contents.add(new HashMap<>(expected));
+        }
+        for (int i = 0; i < versions.size(); i++) {
+            same(contents.get(i), versions.get(i), "version " + i);
+        }
+        Assert.check(map.put(map.get(map.records().get(0).id())) == map, "putting the same record is a no-op");
+        Assert.check(map.remove(-42) == map, "removing a missing id is a no-op");
+    }
+
+    static void removeCollapsesToTheBuiltShape() {
+        Random random = new Random(9);
+        for (int round = 0; round < 50; round++) {
+            List<BookRecord> kept = new ArrayList<>();
+            List<BookRecord> extra = new ArrayList<>();
+            for (int i = 0; i < 1 + random.nextInt(300); i++) {
+                (random.nextBoolean() ? kept : extra).add(record(randomId(random, 1_000_000), "x"));
+            }
+            dedupe(kept, extra);
+            PersistentBookMap built = PersistentBookMap.of(kept);
+            PersistentBookMap edited = PersistentBookMap.EMPTY;
+            List<BookRecord> all = new ArrayList<>(kept);
+            all.addAll(extra);
+            Collections.shuffle(all, random);
+            for (BookRecord r : all) {
+                edited = edited.put(r);
+            }
+            for (BookRecord r : extra) {
+                edited = edited.remove(r.id());
+            }
+            Assert.equal(built.size(), edited.size(), "size in round " + round);
+            Assert.equal(built.nodeCount(), edited.nodeCount(), "nodes in round " + round);
+            for (BookRecord r : kept) {
+                edited = edited.remove(r.id());
+            }
+            Assert.equal(0, edited.size(), "empty in round " + round);
+            Assert.equal(1, edited.nodeCount(), "just the root in round " + round);
+        }
+    }
+
+    static void diffReportsExactlyTheChanges() {
+        Random random = new Random(10);
+        List<BookRecord> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            records.add(record(i * 7919L, "a"));
+        }
+        PersistentBookMap from = PersistentBookMap.of(records);
+        PersistentBookMap to = from;
+        Map<Long, BookRecord[]> expected = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            long id = random.nextInt(2) == 0 ? random.nextInt(5000) * 7919L : 1 + random.nextInt(5000) * 7919L;
+            BookRecord r = random.nextInt(3) == 0 ? null : record(id, "b" + i);
+            to = r == null ? to.remove(id) : to.put(r);
+            BookRecord before = from.get(id);
+            if (before == null && r == null) {
+                expected.remove(id);
+            } else {
+                expected.put(id, new BookRecord[] { before, r });
+            }
+        }
+        Map<Long, BookRecord[]> reported = new HashMap<>();
+        PersistentBookMap.diff(from, to, (a, b) -> {
+            long id = a != null ? a.id() : b.id();
+            Assert.check(reported.put(id, new BookRecord[] { a, b }) == null, "reported once: " + id);
+        });
+        Assert.equal(expected.keySet(), reported.keySet(), "changed ids");
+        for (Map.Entry<Long, BookRecord[]> e : expected.entrySet()) {
+            Assert.check(reported.get(e.getKey())[0] == e.getValue()[0], "from record of " + e.getKey());
+            Assert.check(reported.get(e.getKey())[1] == e.getValue()[1], "to record of " + e.getKey());
+        }
+        PersistentBookMap.diff(to, to, (a, b) -> Assert.check(false, "a map differs from itself"));
+    }
+
+    static void rewriterMatchesEditingEachMap() {
+        Random random = new Random(12);
+        List<PersistentBookMap> versions = new ArrayList<>();
+        PersistentBookMap map = PersistentBookMap.EMPTY;
+        for (int step = 0; step < 300; step++) {
+            long id = randomId(random, 400);
+            map = random.nextInt(4) == 0 ? map.remove(id) : map.put(record(id, "v" + step));
+            versions.add(map);
+        }
+        Map<Long, UnaryOperator<BookRecord>> edits = new HashMap<>();
+        for (int i = 0; i < 60; i++) {
+            long id = randomId(random, 500);
+            switch (i % 3) {
+                case 0 -> edits.put(id, r -> null); // Remove everywhere
+                case 1 -> {
+                    BookRecord added = record(id, "synced");
+                    edits.put(id, r -> added); // Add or replace everywhere
+                }
+                default -> edits.put(id, r -> r == null ? null : record(id, r.name() + "+")); // Edit where present
+            }
+        }
+        PersistentBookMap.Rewriter rewriter = new PersistentBookMap.Rewriter(edits);
+        List<PersistentBookMap> rewritten = new ArrayList<>();
+        for (PersistentBookMap v : versions) {
+            rewritten.add(rewriter.apply(v));
+        }
+        for (int i = 0; i < versions.size(); i++) {
+            Map<Long, BookRecord> expected = new HashMap<>();
+            versions.get(i).forEach(r -> expected.put(r.id(), r));
+            for (Map.Entry<Long, UnaryOperator<BookRecord>> e : edits.entrySet()) {
+                BookRecord r = e.getValue().apply(expected.get(e.getKey()));
+                if (r == null) {
+                    expected.remove(e.getKey());
+                } else {
+                    expected.put(e.getKey(), r);
+                }
+            }
+            PersistentBookMap v = rewritten.get(i);
+            Assert.equal(expected.size(), v.size(), "size of version " + i);
+            for (BookRecord r : v.records()) {
+                BookRecord e = expected.get(r.id());
+                Assert.check(e != null && e.name().equals(r.name()), "record " + r.id() + " of version " + i);
+            }
+            Assert.equal(PersistentBookMap.of(v.records()).nodeCount(), v.nodeCount(), "shape of version " + i);
+        }
+        // Records shared by consecutive versions stay shared, so diff still reports only the steps
+        for (int i = 1; i < versions.size(); i++) {
+            List<Long> before = new ArrayList<>();
+            PersistentBookMap.diff(versions.get(i - 1), versions.get(i),
+                    (a, b) -> before.add(a != null ? a.id() : b.id()));
+            List<Long> after = new ArrayList<>();
+            PersistentBookMap.diff(rewritten.get(i - 1), rewritten.get(i),
+                    (a, b) -> after.add(a != null ? a.id() : b.id()));
+            Assert.check(before.containsAll(after), "rewriting added differences between versions " + i);
+        }
+        Assert.check(new PersistentBookMap.Rewriter(new HashMap<>()).apply(map) == map, "no edits");
+    }
+
+    // Checks size, get and records against a HashMap
+    private static void same(Map<Long, BookRecord> expected, PersistentBookMap map, String message) {
+        Assert.equal(expected.size(), map.size(), message + ": size");
+        for (Map.Entry<Long, BookRecord> e : expected.entrySet()) {
+            Assert.check(map.get(e.getKey()) == e.getValue(), message + ": get " + e.getKey());
+        }
+        List<BookRecord> records = map.records();
+        Assert.equal(expected.size(), records.size(), message + ": records");
+        for (BookRecord r : records) {
+            Assert.check(expected.get(r.id()) == r, message + ": record " + r.id());
+        }
+    }
+
+    // Keeps each id in one of the lists only
+    private static void dedupe(List<BookRecord> kept, List<BookRecord> extra) {
+        Map<Long, Boolean> seen = new HashMap<>();
+        kept.removeIf(r -> seen.put(r.id(), true) != null);
+        extra.removeIf(r -> seen.put(r.id(), true) != null);
+    }
+
+    // One of a few distinct ids, shaped like BookId's (time in the high bits)
+    private static long randomId(Random random, int distinct) {
+        return ((long) random.nextInt(distinct) << 22) | 7;
+    }
+
+    private static BookRecord record(long id, String name) {
+        return new BookRecord(id, name, "Author", 2000, "", "", 0, ReviewStore.NO_REVIEW, new String[0], 0, 0, null);
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Tests for ReadingLog: events land in the partition of their month, day,
+ * week and year totals add up in the log's time zone, and a log that was not
+ * closed, or whose last record was cut short, is read in full on the next
+ * open instead of trusting rollups.cache.
+ */
+public class ReadingLogTest {
+    private static final int RECORD_SIZE = 17; // As in ReadingLog
+    private static final LocalDate EPOCH = LocalDate.of(1, 1, 1);
+    private static final LocalDate END = LocalDate.of(9999, 12, 31);
+    private static final Instant FIRST = Instant.parse("2000-01-01T00:00:00Z");
+    private static final Instant LAST = Instant.parse("2100-01-01T00:00:00Z");
+
+    public static void main(String[] args) throws IOException {
+        partitionsRollOverByMonth();
+        rollsUpByDayWeekAndYear();
+        perBookStats();
+        unclosedLogIsReadInFull();
+        tornRecordIsIgnored();
+        System.out.println("ReadingLogTest passed");
+    }
+
+    static void partitionsRollOverByMonth() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-log-test");
+        try {
+            ReadingLog log = new ReadingLog(directory, ZoneOffset.UTC);
+            Instant lastOfJanuary = Instant.parse("2024-01-31T23:59:59Z");
+            Instant firstOfFebruary = Instant.parse("2024-02-01T00:00:00Z");
+            Instant march = Instant.parse("2024-03-15T12:00:00Z");
+            log.record(1, lastOfJanuary, ReadingLog.PROGRESS, 10);
+            log.record(new long[] { 1, 2 }, firstOfFebruary, ReadingLog.PROGRESS, 20);
+            log.record(2, march, ReadingLog.FINISH, 0);
+            Assert.equal((long) RECORD_SIZE, Files.size(directory.resolve("2024-01.log")), "January");
+            Assert.equal(2L * RECORD_SIZE, Files.size(directory.resolve("2024-02.log")), "February");
+            Assert.equal((long) RECORD_SIZE, Files.size(directory.resolve("2024-03.log")), "March");
+
+            Assert.equal(List.of("1@" + lastOfJanuary, "1@" + firstOfFebruary, "2@" + firstOfFebruary, "2@" + march),
+                    events(log, 0, FIRST, LAST), "every event, in time order");
+            Assert.equal(List.of("1@" + firstOfFebruary, "2@" + firstOfFebruary),
+                    events(log, 0, firstOfFebruary, Instant.parse("2024-02-29T23:59:59Z")), "February only");
+            Assert.equal(List.of("2@" + firstOfFebruary, "2@" + march),
+                    events(log, 2, FIRST, LAST), "one book");
+            log.close();
+
+            ReadingLog reopened = new ReadingLog(directory, ZoneOffset.UTC);
+            Assert.equal(events(log, 0, FIRST, LAST), events(reopened, 0, FIRST, LAST),
+                    "events after reopening");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void rollsUpByDayWeekAndYear() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-log-test");
+        try {
+            ReadingLog log = new ReadingLog(directory, ZoneOffset.UTC);
+            log.record(1, Instant.parse("2023-12-31T22:00:00Z"), ReadingLog.PROGRESS, 5); // Sunday
+            log.record(1, Instant.parse("2024-01-01T08:00:00Z"), ReadingLog.PROGRESS, 30); // Monday
+            log.record(1, Instant.parse("2024-01-01T21:00:00Z"), ReadingLog.PROGRESS, 20);
+            log.record(1, Instant.parse("2024-01-03T09:00:00Z"), ReadingLog.FINISH, 0); // Wednesday
+            log.record(2, Instant.parse("2024-01-08T09:00:00Z"), ReadingLog.START, 0); // The next Monday
+            checkRollups(log, "as recorded");
+            log.close();
+            checkRollups(new ReadingLog(directory, ZoneOffset.UTC), "from the cache");
+
+            // Counted in another zone, the late evenings fall on the next day
+            ReadingLog tokyo = new ReadingLog(directory, ZoneId.of("Asia/Tokyo"));
+            Assert.equal(Map.of(LocalDate.of(2024, 1, 1), new ReadingLog.Totals(35, 2, 0),
+                    LocalDate.of(2024, 1, 2), new ReadingLog.Totals(20, 1, 0)),
+                    tokyo.rollup(ReadingLog.Period.DAY, LocalDate.of(2024, 1, 1), LocalDate.of(2024, 1, 2)),
+                    "days in Tokyo");
+            Assert.equal(Map.of(LocalDate.of(2024, 1, 1), new ReadingLog.Totals(55, 3, 1)),
+                    tokyo.rollup(ReadingLog.Period.YEAR, EPOCH, END), "years in Tokyo");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void checkRollups(ReadingLog log, String when) {
+        Assert.equal(Map.of(LocalDate.of(2023, 12, 31), new ReadingLog.Totals(5, 1, 0),
+                LocalDate.of(2024, 1, 1), new ReadingLog.Totals(50, 2, 0),
+                LocalDate.of(2024, 1, 3), new ReadingLog.Totals(0, 0, 1),
+                LocalDate.of(2024, 1, 8), new ReadingLog.Totals(0, 0, 0)),
+                log.rollup(ReadingLog.Period.DAY, EPOCH, END), "days " + when);
+        Assert.equal(Map.of(LocalDate.of(2023, 12, 25), new ReadingLog.Totals(5, 1, 0),
+                LocalDate.of(2024, 1, 1), new ReadingLog.Totals(50, 2, 1),
+                LocalDate.of(2024, 1, 8), new ReadingLog.Totals(0, 0, 0)),
+                log.rollup(ReadingLog.Period.WEEK, EPOCH, END), "weeks " + when);
+        Assert.equal(Map.of(LocalDate.of(2023, 1, 1), new ReadingLog.Totals(5, 1, 0),
+                LocalDate.of(2024, 1, 1), new ReadingLog.Totals(50, 2, 1)),
+                log.rollup(ReadingLog.Period.YEAR, EPOCH, END), "years " + when);
+        // A range starting mid-week still includes that week
+        Assert.equal(List.of(LocalDate.of(2024, 1, 1)), new ArrayList<>(log.rollup(ReadingLog.Period.WEEK,
+                LocalDate.of(2024, 1, 3), LocalDate.of(2024, 1, 7)).keySet()), "week of a mid-week day " + when);
+    }
+
+    static void perBookStats() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-log-test");
+        try {
+            ReadingLog log = new ReadingLog(directory, ZoneOffset.UTC);
+            Instant start = Instant.parse("2024-01-30T10:00:00Z");
+            log.record(1, start, ReadingLog.START, 0);
+            log.record(1, start.plus(Duration.ofDays(1)), ReadingLog.PROGRESS, 100);
+            log.record(1, start.plus(Duration.ofDays(3)), ReadingLog.FINISH, 40); // In the next partition
+            log.record(2, start, ReadingLog.PROGRESS, 7);
+            Assert.equal(140L, log.pagesRead(1), "pages");
+            Assert.equal(Duration.ofDays(3), log.timeToFinish(1), "time to finish");
+            Assert.equal(null, log.timeToFinish(2), "not finished");
+            Assert.equal(0L, log.pagesRead(3), "no events");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void unclosedLogIsReadInFull() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-log-test");
+        try {
+            ReadingLog log = new ReadingLog(directory, ZoneOffset.UTC);
+            log.record(1, Instant.parse("2024-05-01T10:00:00Z"), ReadingLog.PROGRESS, 10);
+            log.close();
+            Path cache = directory.resolve("rollups.cache");
+            byte[] saved = Files.readAllBytes(cache);
+
+            // Recording leaves the cache alone until the log is closed, which a crash prevents
+            log.record(1, Instant.parse("2024-05-02T10:00:00Z"), ReadingLog.PROGRESS, 20);
+            log.record(1, Instant.parse("2024-06-01T10:00:00Z"), ReadingLog.PROGRESS, 30);
+            Assert.check(Arrays.equals(saved, Files.readAllBytes(cache)), "cache not written per event");
+
+            ReadingLog reopened = new ReadingLog(directory, ZoneOffset.UTC);
+            Assert.equal(Map.of(LocalDate.of(2024, 1, 1), new ReadingLog.Totals(60, 3, 0)),
+                    reopened.rollup(ReadingLog.Period.YEAR, EPOCH, END), "stale cache not used");
+            Assert.check(!Arrays.equals(saved, Files.readAllBytes(cache)), "cache rebuilt");
+            Assert.equal(Map.of(LocalDate.of(2024, 1, 1), new ReadingLog.Totals(60, 3, 0)),
+                    new ReadingLog(directory, ZoneOffset.UTC).rollup(ReadingLog.Period.YEAR, EPOCH, END),
+                    "rebuilt cache");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void tornRecordIsIgnored() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-log-test");
+        try {
+            ReadingLog log = new ReadingLog(directory, ZoneOffset.UTC);
+            log.record(1, Instant.parse("2024-05-01T10:00:00Z"), ReadingLog.PROGRESS, 10);
+            log.close();
+
+            // A crash in the middle of an append leaves part of a record behind
+            Path partition = directory.resolve("2024-05.log");
+            Files.write(partition, new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, 0, 0 }, StandardOpenOption.APPEND);
+            ReadingLog reopened = new ReadingLog(directory, ZoneOffset.UTC);
+            Assert.equal(Map.of(LocalDate.of(2024, 5, 1), new ReadingLog.Totals(10, 1, 0)),
+                    reopened.rollup(ReadingLog.Period.DAY, EPOCH, END), "partial record ignored");
+            Assert.equal(10L, reopened.pagesRead(1), "pages");
+
+            // The next append replaces it
+            reopened.record(2, Instant.parse("2024-05-02T10:00:00Z"), ReadingLog.PROGRESS, 5);
+            reopened.close();
+            Assert.equal(2L * RECORD_SIZE, Files.size(partition), "partial record dropped");
+            ReadingLog again = new ReadingLog(directory, ZoneOffset.UTC);
+            Assert.equal(List.of("1@2024-05-01T10:00:00Z", "2@2024-05-02T10:00:00Z"),
+                    events(again, 0, FIRST, LAST), "events");
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // --- Helpers ---
+
+    // Each event as bookId@time
+    private static List<String> events(ReadingLog log, long bookId, Instant from, Instant to) {
+        List<String> events = new ArrayList<>();
+        log.events(bookId, from, to, (id, time, type, pages) -> events.add(id + "@" + time));
+        return events;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Tests for ReviewStore: reviews read back as appended, across segment
+ * boundaries and after the file grows, only the most recently viewed ones
+ * stay cached, and transferFrom copies entries into a compacted store, as
+ * LibrarySnapshots does for a mostly unreferenced one.
+ */
+public class ReviewStoreTest {
+    public static void main(String[] args) throws IOException {
+        ReviewStore previous = ReviewStore.getDefault();
+        try {
+            appendsAndReadsBack();
+            readsAcrossSegments();
+            evictsLeastRecentlyViewed();
+            transferCopiesEntries();
+            snapshotsCompactTheirStore();
+        } finally {
+            ReviewStore.setDefault(previous);
+        }
+        System.out.println("ReviewStoreTest passed");
+    }
+
+    static void appendsAndReadsBack() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-reviews-test");
+        try {
+            Path file = directory.resolve("reviews.dat");
+            ReviewStore store = new ReviewStore(file);
+            Assert.equal(ReviewStore.NO_REVIEW, store.append(null), "null review");
+            Assert.equal(ReviewStore.NO_REVIEW, store.append(""), "empty review");
+            Assert.equal("", store.read(ReviewStore.NO_REVIEW), "no review");
+            long plain = store.append("Short.");
+            long deflated = store.append("Again and again. ".repeat(200));
+            long unicode = store.append("Caf\u00e9 \u2013 \u00fcber \u2605");
+            Assert.check(store.entryLength(deflated) < 200, "repetitive text is deflated");
+            Assert.equal(Files.size(file), store.size(), "size");
+            store.close();
+
+            // Nothing cached this time
+            ReviewStore reopened = new ReviewStore(file);
+            Assert.equal("Short.", reopened.read(plain), "plain");
+            Assert.equal("Again and again. ".repeat(200), reopened.read(deflated), "deflated");
+            Assert.equal("Caf\u00e9 \u2013 \u00fcber \u2605", reopened.read(unicode), "unicode");
+            long end = reopened.size();
+            Assert.fails(IllegalArgumentException.class, () -> reopened.read(end), "handle past the end");
+            reopened.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void readsAcrossSegments() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-reviews-test");
+        try {
+            Path file = directory.resolve("reviews.dat");
+            ReviewStore store = new ReviewStore(file, 64);
+            List<String> texts = new ArrayList<>();
+            List<Long> handles = new ArrayList<>();
+            Random random = new Random(27);
+            for (int i = 0; i < 40; i++) {
+                // Random letters barely deflate, so entries have all sorts of lengths and offsets
+                String text = randomText(random, 1 + random.nextInt(100));
+                texts.add(text);
+                handles.add(store.append(text));
+            }
+            Assert.check(store.size() > 20 * 64, "many segments");
+            store.close();
+
+            ReviewStore reopened = new ReviewStore(file, 64);
+            for (int i = 0; i < texts.size(); i++) {
+                Assert.equal(texts.get(i), reopened.read(handles.get(i)), "review " + i);
+            }
+            // Another writer grows the file past the last segment as mapped
+            ReviewStore writer = new ReviewStore(file, 64);
+            long grown = writer.append("Appended elsewhere.");
+            writer.close();
+            Assert.equal("Appended elsewhere.", reopened.read(grown), "appended after mapping");
+            reopened.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void evictsLeastRecentlyViewed() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-reviews-test");
+        try {
+            Path file = directory.resolve("reviews.dat");
+            ReviewStore store = new ReviewStore(file);
+            List<Long> handles = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                handles.add(store.append(String.format("review %03d", i))); // Stored as it is
+            }
+            store.read(handles.get(0)); // Evicted, but viewed again since
+
+            // Overwrite every entry on disk: only cached reviews still read as before
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                for (int i = 0; i < handles.size(); i++) {
+                    ByteBuffer text = ByteBuffer.wrap(String.format("change %03d", i)
+                            .getBytes(StandardCharsets.UTF_8));
+                    channel.write(text, handles.get(i) + 9);
+                }
+            }
+            Assert.equal("review 000", store.read(handles.get(0)), "recently viewed");
+            Assert.equal("review 099", store.read(handles.get(99)), "recently appended");
+            Assert.equal("change 036", store.read(handles.get(36)), "least recently viewed");
+            Assert.equal("change 001", store.read(handles.get(1)), "evicted first");
+            store.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void transferCopiesEntries() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-reviews-test");
+        try {
+            ReviewStore source = new ReviewStore(directory.resolve("reviews-1.dat"), 64);
+            List<Long> handles = new ArrayList<>();
+            Random random = new Random(28);
+            for (int i = 0; i < 20; i++) {
+                handles.add(source.append(i % 2 == 0 ? randomText(random, 50) : "Kept. ".repeat(30)));
+            }
+            ReviewStore target = new ReviewStore(directory.resolve("reviews-2.dat"), 64);
+            Assert.equal(ReviewStore.NO_REVIEW, target.transferFrom(source, ReviewStore.NO_REVIEW), "no review");
+            long expectedSize = 0;
+            List<Long> copies = new ArrayList<>();
+            for (int i = 0; i < handles.size(); i += 3) {
+                copies.add(target.transferFrom(source, handles.get(i)));
+                expectedSize += source.entryLength(handles.get(i));
+            }
+            Assert.equal(expectedSize, target.size(), "only the copied entries");
+            target.close();
+
+            target = new ReviewStore(directory.resolve("reviews-2.dat"), 64);
+            for (int i = 0; i < copies.size(); i++) {
+                Assert.equal(source.read(handles.get(3 * i)), target.read(copies.get(i)), "copy " + i);
+                Assert.equal(source.entryLength(handles.get(3 * i)), target.entryLength(copies.get(i)),
+                        "copied as stored " + i);
+            }
+            source.close();
+            target.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    static void snapshotsCompactTheirStore() throws IOException {
+        Path directory = Files.createTempDirectory("booktrackr-reviews-test");
+        try {
+            LibrarySnapshots snapshots = new LibrarySnapshots(directory);
+            ReviewStore store = snapshots.reviews();
+            ReviewStore.setDefault(store);
+            BookMenu menu = new BookMenu();
+            Book dune = new Book("Dune", "Frank Herbert", 1965);
+            menu.addBook(dune);
+            menu.addBook(new Book("Emma", "Jane Austen", 1815));
+            Random random = new Random(29);
+            String review = null;
+            for (int i = 0; i < 8; i++) {
+                // Each edit appends a new review; the ones before it are no longer referenced
+                review = randomText(random, 300_000);
+                dune.setReview(review);
+                menu.notifyBookChanged(dune);
+                snapshots.write(menu.snapshot());
+            }
+            Assert.check(store.size() > 1 << 20, "store worth compacting");
+            long before = store.size();
+
+            LibrarySnapshots reopened = new LibrarySnapshots(directory);
+            ReviewStore compacted = reopened.reviews();
+            Assert.check(!compacted.getFile().equals(store.getFile()), "a new store");
+            Assert.check(compacted.size() < before / 4, "only the referenced review");
+            ReviewStore.setDefault(compacted);
+            BookMenu loaded = new BookMenu();
+            reopened.loadLatest(r -> loaded.addBook(r.toBook()), true);
+            Assert.equal(review, loaded.findBookById(dune.getId()).getReview(), "review after compaction");
+            Assert.equal(2, loaded.size(), "books after compaction");
+            store.close();
+            compacted.close();
+        } finally {
+            delete(directory);
+        }
+    }
+
+    // --- Helpers ---
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
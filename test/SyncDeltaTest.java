@@ -0,0 +1,149 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for SyncDelta's wire format: variable-length integers, zigzag-encoded
+ * numbers and strings survive a round trip, and truncated or corrupt input is
+ * rejected.
+ */
+public class SyncDeltaTest {
+    public static void main(String[] args) throws IOException {
+        varLongsRoundTrip();
+        varLongsAreShortForSmallValues();
+        deltasRoundTrip();
+        rejectsMalformedInput();
+        System.out.println("SyncDeltaTest passed");
+    }
+
+    static void varLongsRoundTrip() throws IOException {
+        long[] values = { 0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE, -1,
+                Long.MIN_VALUE };
+        for (long v : values) {
+            Assert.equal(v, readVarLong(varLong(v)), "round trip of " + v);
+        }
+        Random random = new Random(5);
+        for (int i = 0; i < 10_000; i++) {
+            long v = random.nextLong() >>> random.nextInt(64);
+            Assert.equal(v, readVarLong(varLong(v)), "round trip of " + v);
+        }
+    }
+
+    static void varLongsAreShortForSmallValues() throws IOException {
+        Assert.equal(1, varLong(0).length, "0");
+        Assert.equal(1, varLong(127).length, "127");
+        Assert.equal(2, varLong(128).length, "128");
+        Assert.equal(10, varLong(-1).length, "all 64 bits");
+    }
+
+    static void deltasRoundTrip() throws IOException {
+        SyncDelta delta = new SyncDelta();
+        SyncDelta.BookChanges c = new SyncDelta.BookChanges(42);
+        c.put(Book.FIELD_NAME, "\u00dcn\u00efcode \u2713 title", 1L << 40);
+        c.put(Book.FIELD_YEAR, -350, 7);
+        c.put(Book.FIELD_RATING, Integer.MIN_VALUE, 8);
+        c.put(Book.FIELD_GENRE, "", 9);
+        c.put(Book.FIELD_REVIEW, null, 10);
+        delta.books.add(c);
+        SyncDelta.BookChanges d = new SyncDelta.BookChanges(-3);
+        d.put(Book.FIELD_YEAR, Integer.MAX_VALUE, Long.MAX_VALUE);
+        delta.books.add(d);
+        delta.deleted.add(new long[] { 99, 12_345 });
+        delta.wanted.add(7L);
+        delta.high = 1_000_000;
+
+        SyncDelta read = SyncDelta.read(input(write(delta)));
+        Assert.equal(2, read.books.size(), "books");
+        SyncDelta.BookChanges rc = read.books.get(0);
+        Assert.equal(42L, rc.id, "id");
+        Assert.equal(c.mask, rc.mask, "mask");
+        for (int f = 0; f < Book.FIELD_COUNT; f++) {
+            Assert.equal(c.values[f], rc.values[f], "value of field " + f);
+            Assert.equal(c.stamps[f], rc.stamps[f], "stamp of field " + f);
+        }
+        Assert.check(rc.has(Book.FIELD_REVIEW) && rc.values[Book.FIELD_REVIEW] == null,
+                "null is kept apart from empty");
+        SyncDelta.BookChanges rd = read.books.get(1);
+        Assert.equal(-3L, rd.id, "negative id");
+        Assert.equal(Integer.MAX_VALUE, rd.values[Book.FIELD_YEAR], "largest int");
+        Assert.equal(Long.MAX_VALUE, rd.stamps[Book.FIELD_YEAR], "largest stamp");
+        Assert.equal(1, read.deleted.size(), "deleted");
+        Assert.equal(99L, read.deleted.get(0)[0], "deleted id");
+        Assert.equal(12_345L, read.deleted.get(0)[1], "deleted stamp");
+        Assert.equal(List.of(7L), read.wanted, "wanted");
+        Assert.equal(1_000_000L, read.high, "high");
+
+        SyncDelta empty = SyncDelta.read(input(write(new SyncDelta())));
+        Assert.check(empty.isEmpty(), "empty delta");
+    }
+
+    static void rejectsMalformedInput() throws IOException {
+        byte[] tooLong = new byte[11];
+        Arrays.fill(tooLong, (byte) 0x80);
+        failsToRead(() -> SyncDelta.readVarLong(input(tooLong)), IOException.class, "varint over 64 bits");
+
+        byte[] unknownTag = { 9 };
+        failsToRead(() -> SyncDelta.read(input(unknownTag)), IOException.class, "unknown entry");
+
+        SyncDelta delta = new SyncDelta();
+        SyncDelta.BookChanges c = new SyncDelta.BookChanges(1);
+        c.put(Book.FIELD_NAME, "Truncated", 1);
+        delta.books.add(c);
+        byte[] whole = write(delta);
+        byte[] cut = Arrays.copyOf(whole, whole.length - 3);
+        failsToRead(() -> SyncDelta.read(input(cut)), EOFException.class, "truncated");
+
+        // A title claiming to be a terabyte long is refused before anything is allocated
+        ByteArrayOutputStream huge = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(huge);
+        out.writeByte(1);
+        out.writeLong(1);
+        out.writeByte(1 << Book.FIELD_NAME);
+        SyncDelta.writeVarLong(out, 1);
+        SyncDelta.writeVarLong(out, (1L << 40) + 1);
+        failsToRead(() -> SyncDelta.read(input(huge.toByteArray())), IOException.class, "over-long string");
+    }
+
+    private interface Read {
+        Object run() throws IOException;
+    }
+
+    private static void failsToRead(Read read, Class<? extends IOException> type, String message) {
+        try {
+            read.run();
+        } catch (IOException e) {
+            Assert.check(type.isInstance(e), message + ": threw " + e);
+            return;
+        }
+        throw new AssertionError(message + ": nothing was thrown");
+    }
+
+    private static byte[] varLong(long v) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SyncDelta.writeVarLong(new DataOutputStream(bytes), v);
+        return bytes.toByteArray();
+    }
+
+    private static long readVarLong(byte[] bytes) throws IOException {
+        DataInputStream in = input(bytes);
+        long v = SyncDelta.readVarLong(in);
+        Assert.equal(-1, in.read(), "every byte read");
+        return v;
+    }
+
+    private static byte[] write(SyncDelta delta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Tests for SyncService: libraries in temporary directories, each with its own
+ * model thread, sync over loopback sessions in both directions and must end up
+ * with the same books and tombstones, on disk as well as in memory.
+ */
+public class SyncServiceTest {
+    private static final List<Library> libraries = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        try {
+            syncsBothWays();
+            concurrentEditsConverge();
+            deletionWinsAndPropagates();
+            failedSessionIsRetried();
+            restoredLibraryGetsFullRecords();
+        } finally {
+            for (Library library : libraries) {
+                library.close();
+            }
+        }
+        System.out.println("SyncServiceTest passed");
+    }
+
+    static void syncsBothWays() throws Exception {
+        Library a = new Library();
+        Library b = new Library();
+        a.add("Dune", "Frank Herbert");
+        b.add("Emma", "Jane Austen");
+        SyncService.Result result = a.syncWith(b);
+        Assert.equal(1, result.booksSent(), "sent");
+        Assert.equal(1, result.booksReceived(), "received");
+        Assert.equal(2, a.call(a.menu::size), "books in a");
+        a.assertSameAs(b);
+
+        // Nothing changed since, so syncing again changes nothing. (Some books
+        // may be sent back: the libraries share one SyncClock in this process,
+        // so a merge on one side counts as an edit on the other.)
+        result = b.syncWith(a);
+        Assert.equal(0, result.booksChanged(), "books changed again");
+        Assert.equal(0, a.lastServed.booksChanged(), "books changed again in a");
+
+        a.reload();
+        b.reload();
+        a.assertSameAs(b);
+    }
+
+    static void concurrentEditsConverge() throws Exception {
+        Library a = new Library();
+        Library b = new Library();
+        long dune = a.add("Dune", "Frank Herbert");
+        a.syncWith(b);
+
+        // The same field on both sides (the later edit wins) and different fields (both are kept)
+        a.edit(dune, book -> {
+            book.setRating(5);
+            book.setGenre("Sci-Fi");
+        });
+        b.edit(dune, book -> {
+            book.setRating(3);
+            book.setYear(1965);
+        });
+        b.syncWith(a);
+        a.assertSameAs(b);
+        Book merged = a.call(() -> a.menu.findBookById(dune));
+        Assert.equal(3, merged.getRating(), "later rating");
+        Assert.equal("Sci-Fi", merged.getGenre(), "genre from a");
+        Assert.equal(1965, merged.getYear(), "year from b");
+
+        a.reload();
+        b.reload();
+        a.assertSameAs(b);
+    }
+
+    static void deletionWinsAndPropagates() throws Exception {
+        Library a = new Library();
+        Library b = new Library();
+        Library c = new Library();
+        a.add("Dune", "Frank Herbert");
+        long emma = a.add("Emma", "Jane Austen");
+        a.syncWith(b);
+        c.syncWith(b);
+        Assert.equal(2, c.call(c.menu::size), "books in c");
+
+        // b edits the book after a deleted it; the deletion still wins
+        a.remove(emma);
+        b.edit(emma, book -> book.setRating(4));
+        a.syncWith(b);
+        Assert.equal(a.content(), b.content(), "books in a and b");
+        Assert.check(b.call(() -> b.menu.findBookById(emma)) == null, "deleted in b");
+        Assert.check(b.tombstones().contains(emma), "b keeps the deletion until c has it");
+
+        // c, which still has the book and edits it, learns of the deletion from b
+        c.edit(emma, book -> book.setReadingStatus("reading"));
+        c.syncWith(b);
+        Assert.check(c.call(() -> c.menu.findBookById(emma)) == null, "deleted in c");
+        a.assertSameAs(c);
+        b.assertSameAs(c);
+        Assert.check(b.tombstones().isEmpty(), "b forgets the deletion once every peer has it");
+
+        a.reload();
+        b.reload();
+        c.reload();
+        a.assertSameAs(b);
+        b.assertSameAs(c);
+    }
+
+    static void failedSessionIsRetried() throws Exception {
+        Library a = new Library();
+        Library b = new Library();
+        long dune = a.add("Dune", "Frank Herbert");
+        a.syncWith(b);
+        a.edit(dune, book -> book.setName("Dune Messiah"));
+        b.edit(dune, book -> book.setAuthor("F. Herbert"));
+        long aMark = a.call(() -> a.menu.getWatermark(b.id()));
+        long bMark = b.call(() -> b.menu.getWatermark(a.id()));
+
+        // a fails while merging b's changes, after b has merged a's
+        boolean[] failed = new boolean[1];
+        a.run(() -> a.menu.addMergeListener(new BookMenu.MergeListener() {
+            @Override
+            public void beforeMerge() {
+                if (!failed[0]) {
+                    failed[0] = true;
+                    throw new IllegalStateException("Simulated failure");
+                }
+            }
+
+            @Override
+            public void afterMerge() {
+            }
+        }));
+        PrintStream err = System.err;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(log, true));
+        try {
+            try {
+                a.syncWith(b);
+                Assert.check(false, "the session should fail");
+            } catch (IOException e) {
+                // Expected
+            }
+            Assert.equal(aMark, a.call(() -> a.menu.getWatermark(b.id())), "a's watermark after the failure");
+            Assert.equal(bMark, b.call(() -> b.menu.getWatermark(a.id())), "b's watermark after the failure");
+            Assert.equal("Frank Herbert", a.call(() -> a.menu.findBookById(dune).getAuthor()), "not merged in a");
+
+            // The next session sends everything again
+            a.syncWith(b);
+        } finally {
+            System.setErr(err);
+        }
+        Assert.check(log.toString().contains("Sync session failed"), "the server saw the failure");
+        a.assertSameAs(b);
+        Book merged = b.call(() -> b.menu.findBookById(dune));
+        Assert.equal("Dune Messiah", merged.getName(), "name from a");
+        Assert.equal("F. Herbert", merged.getAuthor(), "author from b");
+        Assert.check(a.call(() -> a.menu.getWatermark(b.id())) > aMark, "a's watermark moved");
+        Assert.check(b.call(() -> b.menu.getWatermark(a.id())) > bMark, "b's watermark moved");
+    }
+
+    static void restoredLibraryGetsFullRecords() throws Exception {
+        Library a = new Library();
+        Library b = new Library();
+        a.add("Dune", "Frank Herbert");
+        a.syncWith(b);
+        long solaris = a.add("Solaris", "Stanislaw Lem");
+        a.syncWith(b);
+
+        // b goes back to the snapshot before Solaris arrived, but a believes b has it
+        List<Path> saved = b.snapshots.list();
+        Files.delete(saved.get(0));
+        b.reload();
+        Assert.check(b.call(() -> b.menu.findBookById(solaris)) == null, "b lost the book");
+
+        // Only the rating is sent, so b asks for the whole book
+        a.edit(solaris, book -> book.setRating(5));
+        a.syncWith(b);
+        a.assertSameAs(b);
+        Assert.equal(5, b.call(() -> b.menu.findBookById(solaris).getRating()), "rating in b");
+        Assert.equal("Stanislaw Lem", b.call(() -> b.menu.findBookById(solaris).getAuthor()), "author in b");
+    }
+
+    // --- Helpers ---
+
+    private interface Edit {
+        void apply(Book book);
+    }
+
+    /**
+     * A library in a temporary directory with its own model thread and a
+     * SyncService listening on a free loopback port.
+     */
+    private static final class Library {
+        final Path directory;
+        final ExecutorService thread = Executors.newSingleThreadExecutor();
+        final LibrarySnapshots snapshots;
+        final BlockingQueue<SyncService.Result> served = new LinkedBlockingQueue<>();
+        SyncService.Result lastServed; // The server's side of the last session
+        BookMenu menu;
+        SyncService service;
+        int port;
+
+        Library() throws Exception {
+            directory = Files.createTempDirectory("booktrackr-sync-test");
+            snapshots = new LibrarySnapshots(directory);
+            libraries.add(this);
+            reload();
+            save(); // So there is an older snapshot to go back to
+        }
+
+        /**
+         * Starts over from the newest snapshot on disk, as after a restart.
+         */
+        void reload() throws Exception {
+            if (service != null) {
+                service.close();
+            }
+            menu = call(() -> {
+                BookMenu loaded = new BookMenu();
+                loaded.restoreSyncState(snapshots.loadLatest(r -> loaded.addBook(r.toBook()), true));
+                return loaded;
+            });
+            service = new SyncService(menu, thread, snapshots, null);
+            service.onSession(served::add);
+            port = service.listen(0);
+        }
+
+        long id() throws Exception {
+            return call(menu::getInstanceId);
+        }
+
+        long add(String name, String author) throws Exception {
+            Book book = new Book(name, author, 0);
+            run(() -> menu.addBook(book));
+            save();
+            return book.getId();
+        }
+
+        void remove(long id) throws Exception {
+            run(() -> menu.removeBook(menu.findBookById(id)));
+            save();
+        }
+
+        void edit(long id, Edit edit) throws Exception {
+            run(() -> {
+                Book book = menu.findBookById(id);
+                edit.apply(book);
+                menu.notifyBookChanged(book);
+            });
+            save();
+        }
+
+        // Saves local edits, as the Autosaver would
+        void save() throws Exception {
+            snapshots.write(call(menu::snapshot));
+        }
+
+        /**
+         * Syncs with another library as the client, and waits until both
+         * sides have recorded the outcome.
+         */
+        SyncService.Result syncWith(Library server) throws Exception {
+            SyncService.Result result = service.syncWith("localhost", server.port);
+            server.lastServed = server.served.poll(10, TimeUnit.SECONDS);
+            Assert.check(server.lastServed != null, "the server finished the session");
+            call(() -> null); // The client records its watermark on its model thread
+            return result;
+        }
+
+        /**
+         * @return Every book's id and fields, in id order.
+         */
+        String content() throws Exception {
+            return call(() -> {
+                StringBuilder text = new StringBuilder();
+                List<Book> books = menu.listAllBooks();
+                books.sort(Comparator.comparingLong(Book::getId));
+                for (Book book : books) {
+                    text.append(book.getId()).append('|').append(book.getName()).append('|')
+                            .append(book.getAuthor()).append('|').append(book.getYear()).append('|')
+                            .append(book.getGenre()).append('|').append(book.getReadingStatus()).append('|')
+                            .append(book.getRating()).append('|').append(book.getReview()).append('|')
+                            .append(book.getTags()).append('\n');
+                }
+                return text.toString();
+            });
+        }
+
+        Set<Long> tombstones() throws Exception {
+            return call(() -> new TreeSet<>(menu.getSyncState().tombstones().keySet()));
+        }
+
+        void assertSameAs(Library other) throws Exception {
+            Assert.equal(content(), other.content(), "books");
+            Assert.equal(tombstones(), other.tombstones(), "tombstones");
+        }
+
+        <T> T call(Callable<T> task) throws Exception {
+            return thread.submit(task).get();
+        }
+
+        void run(Runnable task) throws Exception {
+            thread.submit(task).get();
+        }
+
+        void close() throws IOException {
+            service.close();
+            thread.shutdown();
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+}
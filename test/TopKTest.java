@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for TopK and the keyset paging built on it (BookMenu.getBooksPage).
+ */
+public class TopKTest {
+    public static void main(String[] args) {
+        keepsTheSmallestInOrder();
+        handlesKOfZeroAndMoreThanOffered();
+        pagesCoverEveryBookOnce();
+        rejectsCursorFromAnotherOrder();
+        System.out.println("TopKTest passed");
+    }
+
+    static void keepsTheSmallestInOrder() {
+        Random random = new Random(1);
+        List<Integer> all = new ArrayList<>();
+        TopK<Integer> top = new TopK<>(Comparator.naturalOrder(), 10);
+        for (int i = 0; i < 1000; i++) {
+            int n = random.nextInt(500);
+            all.add(n);
+            top.offer(n);
+        }
+        all.sort(null);
+        Assert.equal(all.subList(0, 10), top.toSortedList(), "10 smallest");
+    }
+
+    static void handlesKOfZeroAndMoreThanOffered() {
+        TopK<Integer> none = new TopK<>(Comparator.naturalOrder(), 0);
+        none.offer(1);
+        Assert.equal(List.of(), none.toSortedList(), "k = 0");
+        TopK<Integer> few = new TopK<>(Comparator.naturalOrder(), 5);
+        few.offer(3);
+        few.offer(1);
+        Assert.equal(List.of(1, 3), few.toSortedList(), "fewer than k offered");
+        Assert.fails(IllegalArgumentException.class, () -> new TopK<Integer>(Comparator.naturalOrder(), -1),
+                "negative k");
+    }
+
+    static void pagesCoverEveryBookOnce() {
+        BookMenu menu = new BookMenu();
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            // Few distinct keys, so ties have to be broken by id
+            Book b = new Book("Title " + random.nextInt(20), "Author " + random.nextInt(20), 1990 + random.nextInt(5));
+            menu.addBook(b);
+        }
+        for (String sortBy : new String[] { "Title", "Author", "Year" }) {
+            List<Book> expected = menu.getSortedBooks(sortBy);
+            List<Book> paged = new ArrayList<>();
+            BookMenu.Cursor cursor = null;
+            do {
+                BookMenu.Page page = menu.getBooksPage(sortBy, cursor, 37);
+                paged.addAll(page.books());
+                cursor = page.next();
+            } while (cursor != null);
+            Assert.equal(expected, paged, "pages sorted by " + sortBy);
+        }
+    }
+
+    static void rejectsCursorFromAnotherOrder() {
+        BookMenu menu = new BookMenu();
+        for (int i = 0; i < 5; i++) {
+            menu.addBook(new Book("T" + i, "A" + i, 2000 + i));
+        }
+        BookMenu.Cursor byTitle = menu.getBooksPage("Title", null, 2).next();
+        Assert.fails(IllegalArgumentException.class, () -> menu.getBooksPage("Year", byTitle, 2),
+                "cursor sorted by another key");
+    }
+}
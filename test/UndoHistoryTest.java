@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tests for UndoHistory: undo and redo move through local steps only, with
+ * changes merged from a peer kept in every version, including past the
+ * number of merges the history leaves unfolded.
+ */
+public class UndoHistoryTest {
+    public static void main(String[] args) {
+        undoKeepsMergedChanges();
+        manyMergesBetweenSteps();
+        System.out.println("UndoHistoryTest passed");
+    }
+
+    static void undoKeepsMergedChanges() {
+        BookMenu local = new BookMenu();
+        BookMenu peer = new BookMenu();
+        Book dune = new Book("Dune", "Frank Herbert", 1965);
+        Book emma = new Book("Emma", "Jane Austen", 1815);
+        Book solaris = new Book("Solaris", "Stanislaw Lem", 1961);
+        local.addBook(dune);
+        local.addBook(emma);
+        local.addBook(solaris);
+        merge(peer, local, dune.getId(), emma.getId(), solaris.getId());
+        UndoHistory history = new UndoHistory(local);
+
+        edit(local, dune.getId(), b -> b.setRating(3));
+        history.checkpoint("Rate Dune");
+        edit(local, emma.getId(), b -> b.setName("Emma (annotated)"));
+        history.checkpoint("Rename Emma");
+
+        // The peer changes another field of Dune, adds a book and removes one
+        edit(peer, dune.getId(), b -> b.setGenre("Sci-Fi"));
+        Book mort = new Book("Mort", "Terry Pratchett", 1987);
+        peer.addBook(mort);
+        peer.removeBook(peer.findBookById(solaris.getId()));
+        merge(local, peer, dune.getId(), mort.getId(), solaris.getId());
+        Assert.equal("Sci-Fi", local.findBookById(dune.getId()).getGenre(), "merged genre");
+        Assert.equal(3, local.findBookById(dune.getId()).getRating(), "local rating kept");
+        Assert.equal("Rename Emma", history.undoLabel(), "merges are not steps");
+
+        Assert.check(history.undo() && history.undo(), "undo both steps");
+        Assert.check(!history.undo(), "nothing more to undo");
+        Assert.equal(0, local.findBookById(dune.getId()).getRating(), "rating undone");
+        Assert.equal("Sci-Fi", local.findBookById(dune.getId()).getGenre(), "merged genre kept");
+        Assert.equal("Emma", local.findBookById(emma.getId()).getName(), "name undone");
+        Assert.check(local.findBookById(mort.getId()) != null, "merged book kept");
+        Assert.check(local.findBookById(solaris.getId()) == null, "removed by the peer, so not restored");
+        Assert.equal(3, local.size(), "books at the start");
+
+        Assert.check(history.redo() && history.redo(), "redo both steps");
+        Assert.equal(3, local.findBookById(dune.getId()).getRating(), "rating redone");
+        Assert.equal("Sci-Fi", local.findBookById(dune.getId()).getGenre(), "merged genre still kept");
+        Assert.equal("Emma (annotated)", local.findBookById(emma.getId()).getName(), "name redone");
+        Assert.equal(3, local.size(), "books at the end");
+    }
+
+    static void manyMergesBetweenSteps() {
+        BookMenu local = new BookMenu();
+        BookMenu peer = new BookMenu();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Book b = new Book("Book " + i, "Author " + i, 1900 + i);
+            local.addBook(b);
+            ids.add(b.getId());
+        }
+        merge(peer, local, ids.stream().mapToLong(Long::longValue).toArray());
+        UndoHistory history = new UndoHistory(local);
+
+        // Steps edit ratings, merges edit years, more merges than are left unfolded
+        for (int i = 0; i < 80; i++) {
+            long stepId = ids.get(i % ids.size());
+            edit(local, stepId, b -> b.setRating(b.getRating() % 5 + 1));
+            history.checkpoint("Step " + i);
+            long mergedId = ids.get((i * 7) % ids.size());
+            int year = 2000 + i;
+            edit(peer, mergedId, b -> b.setYear(year));
+            merge(local, peer, mergedId);
+        }
+        String end = content(local);
+        List<String> years = new ArrayList<>();
+        for (long id : ids) {
+            years.add(id + ":" + local.findBookById(id).getYear());
+        }
+
+        int undone = 0;
+        while (history.undo()) {
+            undone++;
+        }
+        Assert.equal(80, undone, "steps undone");
+        for (long id : ids) {
+            Book b = local.findBookById(id);
+            Assert.equal(0, b.getRating(), "rating back at the start");
+            Assert.check(years.contains(id + ":" + b.getYear()), "merged year kept");
+        }
+        history.jumpTo(40);
+        history.jumpTo(history.versionCount() - 1);
+        Assert.equal(end, content(local), "back at the end");
+    }
+
+    // --- Helpers ---
+
+    private interface Edit {
+        void apply(Book book);
+    }
+
+    private static void edit(BookMenu menu, long id, Edit edit) {
+        Book b = menu.findBookById(id);
+        edit.apply(b);
+        menu.notifyBookChanged(b);
+    }
+
+    // Merges the full records of some books, or their deletion, from one library into another
+    private static void merge(BookMenu into, BookMenu from, long... ids) {
+        List<Long> list = new ArrayList<>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        into.applyChanges(from.fullRecords(list), new ArrayList<>());
+    }
+
+    // Every book's fields, in id order
+    private static String content(BookMenu menu) {
+        List<Book> books = menu.listAllBooks();
+        books.sort(Comparator.comparingLong(Book::getId));
+        StringBuilder text = new StringBuilder();
+        for (Book b : books) {
+            text.append(line(b));
+        }
+        return text.toString();
+    }
+
+    private static String line(Book b) {
+        return b.getId() + "|" + b.getName() + "|" + b.getAuthor() + "|" + b.getYear() + "|" + b.getGenre() + "|"
+                + b.getReadingStatus() + "|" + b.getRating() + "|" + b.getTags() + "\n";
+    }
+}